@@ -0,0 +1,105 @@
+package edu.colostate.cs.galileo.adapters;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Stores sketch partitions as files in a directory.  Each partition is
+ * written to {@code <prefix>.<n>.sketch}, where n counts the partitions
+ * stored for the prefix.
+ */
+public class DirectoryPartitionStore implements SketchPartitionStore {
+
+    private File directory;
+
+    public DirectoryPartitionStore(File directory)
+    throws IOException {
+        if (directory.isDirectory() == false && directory.mkdirs() == false) {
+            throw new IOException("Could not create partition directory: "
+                    + directory);
+        }
+        this.directory = directory;
+    }
+
+    private static final String FIRST_PARTITION = ".0.sketch";
+
+    private File partitionFile(String prefix, int n) {
+        return new File(directory, prefix + "." + n + ".sketch");
+    }
+
+    @Override
+    public synchronized void store(String prefix, byte[] partition)
+    throws IOException {
+        int n = 0;
+        while (partitionFile(prefix, n).exists()) {
+            n++;
+        }
+
+        /* Written to a temporary file first, so a partial partition is never
+         * picked up by retrieve() */
+        File tmp = new File(directory, prefix + ".tmp");
+        Files.write(tmp.toPath(), partition);
+        if (tmp.renameTo(partitionFile(prefix, n)) == false) {
+            throw new IOException("Could not store partition " + prefix);
+        }
+    }
+
+    @Override
+    public synchronized List<byte[]> retrieve(String prefix)
+    throws IOException {
+        List<byte[]> partitions = new ArrayList<>();
+        for (int n = 0; partitionFile(prefix, n).exists(); ++n) {
+            File file = partitionFile(prefix, n);
+            partitions.add(Files.readAllBytes(file.toPath()));
+        }
+        return partitions;
+    }
+
+    @Override
+    public synchronized void remove(String prefix, int count)
+    throws IOException {
+        if (count <= 0) {
+            return;
+        }
+
+        for (int n = 0; n < count; ++n) {
+            Files.deleteIfExists(partitionFile(prefix, n).toPath());
+        }
+
+        /* Partitions are numbered contiguously from 0, so any that remain
+         * are shifted down to fill the gap. */
+        for (int n = count; partitionFile(prefix, n).exists(); ++n) {
+            File file = partitionFile(prefix, n);
+            if (file.renameTo(partitionFile(prefix, n - count)) == false) {
+                throw new IOException("Could not renumber partition "
+                        + prefix);
+            }
+        }
+    }
+
+    @Override
+    public synchronized List<String> prefixes()
+    throws IOException {
+        String[] names = directory.list();
+        if (names == null) {
+            throw new IOException("Could not list partition directory: "
+                    + directory);
+        }
+
+        /* Partitions are numbered contiguously, so every stored prefix has a
+         * first partition */
+        List<String> prefixes = new ArrayList<>();
+        for (String name : names) {
+            if (name.endsWith(FIRST_PARTITION)) {
+                prefixes.add(name.substring(
+                            0, name.length() - FIRST_PARTITION.length()));
+            }
+        }
+        Collections.sort(prefixes);
+        return prefixes;
+    }
+}
@@ -0,0 +1,47 @@
+package edu.colostate.cs.galileo.adapters;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Holds the portions of a sketch that have been split off by a
+ * {@link SketchRebalancer}, keyed by their geohash prefix.  Implementations
+ * may keep the partitions on disk or hand them to another node.
+ */
+public interface SketchPartitionStore {
+
+    /**
+     * Stores a partition produced by {@link SketchProcessor#split(String)}.
+     * A prefix may be stored more than once; each partition is kept
+     * separately until the prefix is retrieved.
+     */
+    public void store(String prefix, byte[] partition)
+    throws IOException;
+
+    /**
+     * Retrieves all the partitions stored for a prefix.  The partitions are
+     * kept in the store until they are explicitly removed, so they are not
+     * lost if merging them back in fails.
+     *
+     * @return the partitions, in the order they were stored.
+     */
+    public List<byte[]> retrieve(String prefix)
+    throws IOException;
+
+    /**
+     * Removes the first partitions stored for a prefix, once they have been
+     * merged back in.  Partitions stored after them are kept.
+     *
+     * @param count number of partitions to remove, in the order they were
+     * stored.
+     */
+    public void remove(String prefix, int count)
+    throws IOException;
+
+    /**
+     * Lists the prefixes that currently have partitions in the store.  This
+     * allows partitions stored before a restart to be located again.
+     */
+    public List<String> prefixes()
+    throws IOException;
+}
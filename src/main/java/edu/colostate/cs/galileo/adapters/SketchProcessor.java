@@ -4,29 +4,34 @@ import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 import edu.colostate.cs.galileo.dataset.Metadata;
-import edu.colostate.cs.galileo.dataset.analysis.Quantizer;
 import edu.colostate.cs.galileo.dataset.feature.Feature;
 import edu.colostate.cs.galileo.dataset.feature.FeatureType;
 import edu.colostate.cs.galileo.graph.FeatureHierarchy;
 import edu.colostate.cs.galileo.graph.GraphException;
 import edu.colostate.cs.galileo.graph2.CountContainer;
+import edu.colostate.cs.galileo.graph2.DiffSegment;
 import edu.colostate.cs.galileo.graph2.GraphMetrics;
-import edu.colostate.cs.galileo.graph2.Path;
 import edu.colostate.cs.galileo.graph2.Sketch;
+import edu.colostate.cs.galileo.graph2.SketchDiffLog;
 import edu.colostate.cs.galileo.query2.Expression;
+import edu.colostate.cs.galileo.query2.FramedResultWriter;
 import edu.colostate.cs.galileo.query2.Operator;
 import edu.colostate.cs.galileo.query2.PartitionQuery;
+import edu.colostate.cs.galileo.query2.ResultFrameListener;
 import edu.colostate.cs.galileo.serialization.SerializationInputStream;
 import edu.colostate.cs.galileo.serialization.SerializationOutputStream;
 import edu.colostate.cs.galileo.serialization.Serializer;
@@ -35,9 +40,16 @@ public class SketchProcessor /*extends AbstractGeoSpatialStreamProcessor*/ {
 
     private Sketch sketch;
     private Sketch diff;
+    private long diffSequence = 0;
+    private SketchDiffLog diffLog;
     private FeatureHierarchy hierarchy;
     private Set<String> activeFeatures = new HashSet<>();
 
+    /* Features that are ingested (active and quantized), in record order */
+    private List<String> recordFeatures = new ArrayList<>();
+    private Map<String, Integer> recordPositions = new HashMap<>();
+    private double[] record;
+
     public SketchProcessor() {
         /* Populate the feature hierarchy */
         try {
@@ -46,24 +58,41 @@ public class SketchProcessor /*extends AbstractGeoSpatialStreamProcessor*/ {
                 hierarchy.addFeature(featureName, FeatureType.FLOAT);
             }
             hierarchy.addFeature("location", FeatureType.STRING);
-            this.sketch = new Sketch(hierarchy);
-            this.diff = new Sketch(hierarchy);
 
             for (String featureName : TestConfiguration.FEATURE_NAMES) {
                 activeFeatures.add(featureName);
+                if (TestConfiguration.quantizers.containsKey(featureName)) {
+                    recordPositions.put(featureName, recordFeatures.size());
+                    recordFeatures.add(featureName);
+                }
             }
+            record = new double[recordFeatures.size()];
+
+            this.sketch = newSketch();
+            this.diff = newSketch();
+            this.diffLog = new SketchDiffLog(this.sketch);
         } catch (GraphException e) {
             System.out.println("Could not initialize sketch graph hierarchy");
             e.printStackTrace();
         }
     }
 
-    public GraphMetrics getGraphMetrics() {
+    /**
+     * Creates an empty Sketch that is prepared for record ingest.
+     */
+    private Sketch newSketch()
+    throws GraphException {
+        Sketch s = new Sketch(this.hierarchy);
+        s.prepareRecords(recordFeatures, TestConfiguration.quantizers);
+        return s;
+    }
+
+    public synchronized GraphMetrics getGraphMetrics() {
         System.out.println(this.sketch.getRoot().numDescendants() + "," + this.sketch.getRoot().numLeaves());
         return this.sketch.getMetrics();
     }
 
-    protected void process(GeoHashIndexedRecord event) {
+    protected synchronized void process(GeoHashIndexedRecord event) {
         Metadata eventMetadata = null;
         try {
             byte[] payload = event.getPayload();
@@ -74,33 +103,34 @@ public class SketchProcessor /*extends AbstractGeoSpatialStreamProcessor*/ {
         }
 
         try {
-            Path path = new Path(this.activeFeatures.size() + 1);
+            /* Missing features are left as NaN, which the Sketch treats as
+             * wildcards */
+            Arrays.fill(record, Double.NaN);
             for (Feature f : eventMetadata.getAttributes()) {
-                String featureName = f.getName();
-                if (activeFeatures.contains(featureName) == false) {
-                    continue;
-                }
-
-                Quantizer q = TestConfiguration.quantizers.get(featureName);
-                if (q == null) {
-                    continue;
+                Integer position = recordPositions.get(f.getName());
+                if (position != null) {
+                    record[position] = f.getDouble();
                 }
-
-                Feature quantizedFeature = q.quantize(f);
-                path.add(new Feature(f.getName().intern(), quantizedFeature));
             }
 
             String shortLocation = event.getGeoHash().substring(0, 4);
-            path.add(new Feature("location", shortLocation));
-            this.sketch.addPath(path);
-            this.diff.addPath(path);
+            this.sketch.addRecord(record, shortLocation);
+            this.diff.addRecord(record, shortLocation);
         } catch (Exception e) {
             System.out.println("Failed to insert graph path");
             e.printStackTrace();
         }
     }
 
-    public byte[] split(String prefix) {
+    /**
+     * Removes the portion of the sketch under a geohash prefix and serializes
+     * it so it can be merged back in later with {@link #merge}.
+     *
+     * @return the serialized partition, or null if the split failed.  The
+     * partition is removed from the sketch as it is serialized, so a failed
+     * split may still have removed part of it.
+     */
+    public synchronized byte[] split(String prefix) {
         ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
 
         try {
@@ -111,7 +141,7 @@ public class SketchProcessor /*extends AbstractGeoSpatialStreamProcessor*/ {
             pq.addExpression(
                     new Expression(
                         Operator.STR_PREFIX, new Feature("location", prefix)));
-            pq.execute(sketch.getRoot());
+            sketch.query(pq);
             pq.serializeResults(sketch.getRoot(), out);
             out.close();
 
@@ -119,34 +149,108 @@ public class SketchProcessor /*extends AbstractGeoSpatialStreamProcessor*/ {
         } catch (Exception e) {
             System.out.println("Failed to split sketch");
             e.printStackTrace();
+            return null;
         }
 
         return byteOut.toByteArray();
     }
 
-    public void merge(String prefix, byte[] serializedSketch) {
+    /**
+     * Removes the portion of the sketch under a geohash prefix, passing it to
+     * a listener in frames of (at most, approximately) frameSize bytes.  Each
+     * frame can be merged into another sketch with {@link #mergeFrame}.
+     *
+     * @return true if the split succeeded.
+     */
+    public synchronized boolean split(String prefix,
+            ResultFrameListener listener, int frameSize) {
+        try {
+            PartitionQuery pq = new PartitionQuery();
+            pq.addExpression(
+                    new Expression(
+                        Operator.STR_PREFIX, new Feature("location", prefix)));
+            sketch.query(pq);
+            FramedResultWriter writer
+                = new FramedResultWriter(listener, frameSize);
+            pq.serializeResults(sketch.getRoot(), writer);
+            writer.finish();
+
+            this.sketch.geoTrie.remove(prefix);
+        } catch (Exception e) {
+            System.out.println("Failed to split sketch");
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Merges a frame produced by {@link #split(String, ResultFrameListener,
+     * int)} into the sketch.
+     *
+     * @return true if the frame was merged.
+     */
+    public synchronized boolean mergeFrame(byte[] frame, int length) {
+        try {
+            SerializationInputStream in
+                = FramedResultWriter.openFrame(frame, length);
+            this.sketch.merge(in, false);
+            in.close();
+        } catch (Exception e) {
+            System.out.println("Failed to merge sketch frame");
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Merges a partition produced by {@link #split(String)} into the sketch.
+     * Its statistics are added to any records that arrived for the same
+     * leaves after the split.
+     *
+     * @return true if the partition was merged.
+     */
+    public synchronized boolean merge(String prefix,
+            byte[] serializedSketch) {
         try {
             SerializationInputStream in = new SerializationInputStream(
                     new BufferedInputStream(
                         new GZIPInputStream(
                             new ByteArrayInputStream(serializedSketch))));
 
-            this.sketch.merge(in);
+            this.sketch.merge(in, false);
             in.close();
         } catch (Exception e) {
             System.out.println("Failed to merge sketch");
             e.printStackTrace();
+            return false;
         }
+        return true;
     }
 
-    public double getMemoryConsumptionForPrefix(String prefix) {
+    public synchronized double getMemoryConsumptionForPrefix(String prefix) {
         CountContainer cc = this.sketch.geoTrie.query(prefix);
         long vertices = cc.a;
         long leaves = cc.b;
         return estimateMemoryUsage(vertices, leaves);
     }
 
-    public double getMemoryConsumptionForAllPrefixes() {
+    /**
+     * Estimates the memory consumed by each geohash prefix of a given length.
+     */
+    public synchronized Map<String, Double> getMemoryConsumptionByPrefix(
+            int length) {
+        Map<String, Double> consumption = new HashMap<>();
+        for (Map.Entry<String, CountContainer> entry
+                : this.sketch.geoTrie.queryPrefixes(length).entrySet()) {
+            CountContainer cc = entry.getValue();
+            consumption.put(entry.getKey(), estimateMemoryUsage(cc.a, cc.b));
+        }
+        return consumption;
+    }
+
+    public synchronized double getMemoryConsumptionForAllPrefixes() {
         GraphMetrics gm = this.sketch.getMetrics();
         return estimateMemoryUsage(gm.getVertexCount(), gm.getLeafCount());
     }
@@ -161,36 +265,74 @@ public class SketchProcessor /*extends AbstractGeoSpatialStreamProcessor*/ {
         return ((bytesPerVertex * vertices) + (bytesPerLeaf * leaves)) * 1.7;
     }
 
-    public byte[] getSketchDiff() {
-        ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+    /**
+     * Produces the next segment of the diff log: the records processed since
+     * the previous segment, numbered with the next sequence number.
+     *
+     * @return a serialized {@link DiffSegment}.
+     */
+    public synchronized byte[] getSketchDiff() {
+        byte[] segment = null;
         try {
-            SerializationOutputStream out
-                = new SerializationOutputStream(new GZIPOutputStream(byteOut));
-            diff.getRoot().serialize(out);
-            diff = new Sketch(hierarchy);
+            segment = Serializer.serialize(
+                    new DiffSegment(diffSequence + 1, diff));
+            diffSequence++;
+            diff = newSketch();
         } catch (Exception e) {
             System.out.println("Could not produce sketch diff");
             e.printStackTrace();
         }
 
-        return byteOut.toByteArray();
+        return segment;
     }
 
-    public void populateSketch(String baseDirPath) {
-        this.sketch = new Sketch(this.hierarchy);
+    /**
+     * Applies serialized diff segments to the sketch.  Segments that have
+     * already been applied are skipped, and segments that follow a missing
+     * segment are held until it arrives.
+     *
+     * @return the number of segments applied.
+     */
+    public synchronized int applySketchDiffs(List<byte[]> segments) {
         try {
+            List<DiffSegment> diffs = new ArrayList<>(segments.size());
+            for (byte[] segment : segments) {
+                diffs.add(Serializer.deserialize(DiffSegment.class, segment));
+            }
+            return this.diffLog.apply(diffs);
+        } catch (Exception e) {
+            System.out.println("Could not apply sketch diffs");
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    /**
+     * @return the sequence number of the last diff segment applied to the
+     * sketch.
+     */
+    public synchronized long getDiffWatermark() {
+        return this.diffLog.getWatermark();
+    }
+
+    public synchronized void populateSketch(String baseDirPath) {
+        try {
+            this.sketch = newSketch();
+            this.diffLog = new SketchDiffLog(this.sketch);
             List<File> files = Files.walk(Paths.get(baseDirPath))
                 .filter(Files::isRegularFile)
                 .map(java.nio.file.Path::toFile)
                 .collect(Collectors.toList());
 
+            List<DiffSegment> segments = new ArrayList<>(files.size());
             for (File file : files) {
-                SerializationInputStream in = new SerializationInputStream(
-                        new BufferedInputStream(
-                            new GZIPInputStream(
-                                new FileInputStream(file))));
-                this.sketch.merge(in);
-                in.close();
+                segments.add(Serializer.restore(DiffSegment.class, file));
+            }
+            this.diffLog.apply(segments);
+            if (this.diffLog.numPending() > 0) {
+                System.out.println(this.diffLog.numPending() + " diff segments "
+                        + "after " + this.diffLog.getWatermark()
+                        + " could not be applied; the log has a gap");
             }
         } catch (Exception e) {
             System.out.println("Error during diff restore");
@@ -0,0 +1,233 @@
+package edu.colostate.cs.galileo.adapters;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a {@link SketchProcessor}'s sketch within a memory budget.  Memory use
+ * is estimated from the vertex and leaf counts the sketch records for each
+ * geohash prefix in its GeoTrie.  When the estimate exceeds the budget, the
+ * heaviest prefixes are split off and placed in a
+ * {@link SketchPartitionStore} until the estimate drops to the low water mark.
+ * Once memory frees up, the partitions that were split off first are merged
+ * back in, as long as the sketch stays below the low water mark.  Splitting
+ * down to the low water mark (rather than the budget) keeps a partition that
+ * was just merged back in from being split off again immediately.
+ * Partitions already in the store when the rebalancer is created (for example,
+ * after a restart) are merged back in the same way.
+ */
+public class SketchRebalancer {
+
+    private static final Logger logger = Logger.getLogger("galileo");
+
+    /** Default length of the geohash prefixes that are split off. */
+    public static final int DEFAULT_PREFIX_LENGTH = 2;
+
+    /** Default fraction of the budget that rebalancing aims for. */
+    public static final double DEFAULT_LOW_WATER_MARK = 0.8;
+
+    private SketchProcessor processor;
+    private SketchPartitionStore store;
+
+    private double budget;
+    private double lowWaterMark;
+    private int prefixLength;
+
+    /* Prefixes that have been split off, in the order they were split, along
+     * with their estimated memory consumption.  Prefixes found in the store
+     * at startup have an unknown (NaN) size. */
+    private Map<String, Double> spilled = new LinkedHashMap<>();
+
+    private ScheduledExecutorService rebalanceService;
+
+    public SketchRebalancer(SketchProcessor processor,
+            SketchPartitionStore store, long budget)
+    throws IOException {
+        this(processor, store, budget,
+                DEFAULT_LOW_WATER_MARK, DEFAULT_PREFIX_LENGTH);
+    }
+
+    /**
+     * Creates a SketchRebalancer.
+     *
+     * @param budget memory (in bytes) the sketch may consume.
+     * @param lowWaterMark fraction of the budget to reduce memory consumption
+     * to when the budget is exceeded.
+     * @param prefixLength length of the geohash prefixes that are split off.
+     *
+     * @throws IOException if the partitions already in the store could not be
+     * listed.
+     */
+    public SketchRebalancer(SketchProcessor processor,
+            SketchPartitionStore store, long budget, double lowWaterMark,
+            int prefixLength)
+    throws IOException {
+        if (lowWaterMark <= 0.0 || lowWaterMark > 1.0) {
+            throw new IllegalArgumentException(
+                    "Low water mark must be in (0, 1]");
+        }
+        if (prefixLength <= 0) {
+            throw new IllegalArgumentException(
+                    "Prefix length must be positive");
+        }
+
+        this.processor = processor;
+        this.store = store;
+        this.budget = budget;
+        this.lowWaterMark = lowWaterMark;
+        this.prefixLength = prefixLength;
+
+        /* Partitions left over from a previous run are merged back in once
+         * there is room for them */
+        for (String prefix : store.prefixes()) {
+            spilled.put(prefix, Double.NaN);
+        }
+    }
+
+    /**
+     * Starts rebalancing the sketch in the background.
+     *
+     * @param interval time between rebalancing passes, in milliseconds.
+     */
+    public synchronized void start(long interval) {
+        if (rebalanceService != null) {
+            return;
+        }
+
+        rebalanceService = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "SketchRebalancer");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+
+        rebalanceService.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    rebalance();
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "Could not rebalance sketch", e);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (rebalanceService != null) {
+            rebalanceService.shutdown();
+            rebalanceService = null;
+        }
+    }
+
+    /**
+     * Performs a single rebalancing pass.  Records cannot be processed while
+     * the pass is running.
+     */
+    public void rebalance()
+    throws IOException {
+        synchronized (processor) {
+            double usage = processor.getMemoryConsumptionForAllPrefixes();
+            if (usage > budget) {
+                splitHeaviest(usage);
+            } else {
+                mergeOldest(usage);
+            }
+        }
+    }
+
+    private void splitHeaviest(double usage)
+    throws IOException {
+        double target = budget * lowWaterMark;
+
+        List<Map.Entry<String, Double>> prefixes = new ArrayList<>(
+                processor.getMemoryConsumptionByPrefix(prefixLength)
+                .entrySet());
+        Collections.sort(prefixes, Collections.reverseOrder(
+                    Comparator.comparing(Map.Entry<String, Double>::getValue)));
+
+        for (Map.Entry<String, Double> prefix : prefixes) {
+            if (usage <= target) {
+                break;
+            }
+
+            String name = prefix.getKey();
+            double size = prefix.getValue();
+            logger.log(Level.INFO, "Splitting off prefix {0} ({1} bytes)",
+                    new Object[] { name, (long) size });
+            byte[] partition = processor.split(name);
+            if (partition == null) {
+                throw new IOException("Could not split off prefix " + name);
+            }
+            store.store(name, partition);
+
+            Double previous = spilled.remove(name);
+            spilled.put(name, previous == null ? size : previous + size);
+            usage -= size;
+        }
+    }
+
+    private void mergeOldest(double usage)
+    throws IOException {
+        double target = budget * lowWaterMark;
+
+        Iterator<Map.Entry<String, Double>> it = spilled.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Double> prefix = it.next();
+            double size = prefix.getValue();
+            if (Double.isNaN(size) ? usage >= target : usage + size > target) {
+                break;
+            }
+
+            logger.log(Level.INFO, "Merging prefix {0} back in",
+                    prefix.getKey());
+            int merged = 0;
+            boolean failed = false;
+            try {
+                for (byte[] partition : store.retrieve(prefix.getKey())) {
+                    if (processor.merge(prefix.getKey(), partition) == false) {
+                        failed = true;
+                        break;
+                    }
+                    merged++;
+                }
+            } finally {
+                /* Partitions are only dropped from the store once they are
+                 * part of the sketch again. */
+                store.remove(prefix.getKey(), merged);
+            }
+            if (failed) {
+                throw new IOException("Could not merge prefix "
+                        + prefix.getKey() + " back in");
+            }
+
+            /* Remeasured, since sizes of recovered prefixes are unknown */
+            usage = processor.getMemoryConsumptionForAllPrefixes();
+            it.remove();
+        }
+    }
+
+    /**
+     * @return the geohash prefixes that are currently split off.
+     */
+    public List<String> getSpilledPrefixes() {
+        synchronized (processor) {
+            return new ArrayList<>(spilled.keySet());
+        }
+    }
+}
@@ -34,6 +34,7 @@ import edu.colostate.cs.galileo.event.EventWrapper;
 import edu.colostate.cs.galileo.net.ClientMessageRouter;
 import edu.colostate.cs.galileo.net.GalileoMessage;
 import edu.colostate.cs.galileo.net.NetworkEndpoint;
+import edu.colostate.cs.galileo.net.Transmission;
 
 /**
  * Handles publishing events from a client to a server.
@@ -56,11 +57,13 @@ public class EventPublisher {
 
     /**
      * Publishes an {@link Event} via the client's {@link ClientMessageRouter}.
+     *
+     * @return Transmission that completes once the event has been sent.
      */
-    public void publish(NetworkEndpoint destination, Event event)
+    public Transmission publish(NetworkEndpoint destination, Event event)
     throws IOException {
         GalileoMessage message = wrapper.wrap(event);
-        router.sendMessage(destination, message);
+        return router.sendMessage(destination, message);
     }
 
     /**
@@ -0,0 +1,114 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package edu.colostate.cs.galileo.comm;
+
+import java.io.IOException;
+
+import edu.colostate.cs.galileo.dataset.Block;
+import edu.colostate.cs.galileo.event.Event;
+import edu.colostate.cs.galileo.serialization.SerializationException;
+import edu.colostate.cs.galileo.serialization.SerializationInputStream;
+import edu.colostate.cs.galileo.serialization.SerializationOutputStream;
+
+/**
+ * Response to a {@link BlockRequest}.  On the wire, the response consists of
+ * the block path and a flag indicating whether the block was found, followed
+ * by the serialized block itself.
+ * <p>
+ * StorageNodes avoid deserializing blocks to send them: a response created
+ * with {@link #header(String)} serializes only the path and flag, and the
+ * block's on-disk representation (which is identical to its serialized form)
+ * is streamed directly from the file system after it.
+ *
+ * @author malensek
+ */
+public class BlockResponse implements Event {
+
+    private String blockPath;
+    private boolean found;
+    private Block block;
+
+    public BlockResponse(String blockPath, Block block) {
+        this.blockPath = blockPath;
+        this.block = block;
+        this.found = (block != null);
+    }
+
+    private BlockResponse(String blockPath, boolean found) {
+        this.blockPath = blockPath;
+        this.found = found;
+    }
+
+    /**
+     * Creates a response header for a block that will be appended to the
+     * serialized response by the sender.
+     */
+    public static BlockResponse header(String blockPath) {
+        return new BlockResponse(blockPath, true);
+    }
+
+    /**
+     * Creates a response indicating the requested block could not be found.
+     */
+    public static BlockResponse notFound(String blockPath) {
+        return new BlockResponse(blockPath, false);
+    }
+
+    public String getBlockPath() {
+        return blockPath;
+    }
+
+    public boolean blockFound() {
+        return found;
+    }
+
+    /**
+     * @return the requested Block, or null if it was not found.
+     */
+    public Block getBlock() {
+        return block;
+    }
+
+    @Deserialize
+    public BlockResponse(SerializationInputStream in)
+    throws IOException, SerializationException {
+        blockPath = in.readString();
+        found = in.readBoolean();
+        if (found) {
+            block = new Block(in);
+        }
+    }
+
+    @Override
+    public void serialize(SerializationOutputStream out)
+    throws IOException {
+        out.writeString(blockPath);
+        out.writeBoolean(found);
+        if (block != null) {
+            block.serialize(out);
+        }
+    }
+}
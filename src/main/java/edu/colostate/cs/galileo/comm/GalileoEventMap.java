@@ -38,5 +38,8 @@ public class GalileoEventMap extends EventMap {
         addMapping(201, QueryRequest.class);
         addMapping(202, QueryPreamble.class);
         addMapping(203, QueryResponse.class);
+
+        addMapping(300, BlockRequest.class);
+        addMapping(301, BlockResponse.class);
     }
 }
@@ -51,7 +51,9 @@ public class QueryRequest implements Event {
         return query;
     }
 
-    public String getQueryString() { return ""; }
+    public String getQueryString() {
+        return query.toString();
+    }
 
     @Deserialize
     public QueryRequest(SerializationInputStream in)
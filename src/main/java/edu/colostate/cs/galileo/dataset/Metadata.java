@@ -35,9 +35,16 @@ import edu.colostate.cs.galileo.serialization.ByteSerializable;
 import edu.colostate.cs.galileo.serialization.SerializationException;
 import edu.colostate.cs.galileo.serialization.SerializationInputStream;
 import edu.colostate.cs.galileo.serialization.SerializationOutputStream;
+import edu.colostate.cs.galileo.serialization.Serializer;
 
 public class Metadata implements ByteSerializable {
 
+    static {
+        /* Metadata is deserialized in bulk (MetaArray, MetaBundle), so it is
+         * created directly rather than through the default Deserializer. */
+        Serializer.registerDeserializer(Metadata.class, Metadata::new);
+    }
+
     private String name = "";
 
     /**
@@ -185,6 +185,15 @@ public class Quantizer {
         return ticks.lower(feature);
     }
 
+    /**
+     * Retrieves all the tick marks in this Quantizer, in ascending order.
+     *
+     * @return list of tick marks
+     */
+    public List<Feature> getTicks() {
+        return new ArrayList<>(ticks);
+    }
+
     /**
      * Retrieves the first (smallest) tick mark.
      */
@@ -25,7 +25,10 @@ software, even if advised of the possibility of such damage.
 
 package edu.colostate.cs.galileo.dht;
 
+import java.util.List;
+
 import edu.colostate.cs.galileo.dht.hash.HashException;
+import edu.colostate.cs.galileo.query.Query;
 
 /**
  * This provides an abstract implementation of a Galileo Partitioner, which
@@ -55,4 +58,17 @@ public abstract class Partitioner<T> {
      */
     public abstract NodeInfo locateData(T data)
     throws HashException, PartitionException;
+
+    /**
+     * Determines the StorageNodes that may hold data relevant to a query.
+     * Partitioners that can rule out portions of the network based on the
+     * query should override this method; the default implementation returns
+     * every node in the system.
+     *
+     * @param query query to find candidate destinations for.
+     */
+    public List<NodeInfo> findDestinations(Query query)
+    throws PartitionException {
+        return network.getAllNodes();
+    }
 }
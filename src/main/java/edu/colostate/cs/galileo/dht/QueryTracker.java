@@ -25,20 +25,40 @@ software, even if advised of the possibility of such damage.
 
 package edu.colostate.cs.galileo.dht;
 
-import java.nio.channels.SelectionKey;
+import java.util.List;
 
+import edu.colostate.cs.galileo.event.EventContext;
+
+/**
+ * Tracks the progress of a distributed query.  Each StorageNode involved in
+ * servicing the query replies with a QueryResponse; responses are streamed
+ * back to the client through the originating {@link EventContext} as they
+ * arrive.
+ *
+ * @author malensek
+ */
 public class QueryTracker {
 
     private static final Object counterLock = new Object();
     private static long queryCounter = 0;
     private long queryId;
-    private SelectionKey key;
+    private EventContext context;
+
+    private List<NodeInfo> nodes;
+    private int responses = 0;
 
-    public QueryTracker(SelectionKey key) {
+    /**
+     * Creates a new QueryTracker.
+     *
+     * @param context EventContext of the client that submitted the query.
+     * @param nodes StorageNodes that will reply to the query.
+     */
+    public QueryTracker(EventContext context, List<NodeInfo> nodes) {
         synchronized (counterLock) {
             this.queryId = QueryTracker.queryCounter++;
         }
-        this.key = key;
+        this.context = context;
+        this.nodes = nodes;
     }
 
     public long getQueryId() {
@@ -49,7 +69,36 @@ public class QueryTracker {
         return sessionId + "$" + queryId;
     }
 
-    public SelectionKey getSelectionKey() {
-        return key;
+    /**
+     * @return EventContext of the client that submitted the query.
+     */
+    public EventContext getContext() {
+        return context;
+    }
+
+    /**
+     * @return StorageNodes involved in servicing the query.
+     */
+    public List<NodeInfo> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Records the arrival of a response from one of the StorageNodes involved
+     * in the query.
+     *
+     * @return true if all the expected responses have now been received.
+     */
+    public synchronized boolean responseReceived() {
+        responses++;
+        return isComplete();
+    }
+
+    /**
+     * @return true if all the StorageNodes involved in the query have
+     * responded.
+     */
+    public synchronized boolean isComplete() {
+        return responses >= nodes.size();
     }
 }
@@ -26,22 +26,31 @@ software, even if advised of the possibility of such damage.
 package edu.colostate.cs.galileo.dht;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
 
 import edu.colostate.cs.galileo.dataset.Metadata;
 import edu.colostate.cs.galileo.dataset.feature.Feature;
+import edu.colostate.cs.galileo.dataset.feature.FeatureType;
 import edu.colostate.cs.galileo.dht.hash.BalancedHashRing;
 import edu.colostate.cs.galileo.dht.hash.ConstrainedGeohash;
 import edu.colostate.cs.galileo.dht.hash.HashException;
 import edu.colostate.cs.galileo.dht.hash.HashRing;
 import edu.colostate.cs.galileo.dht.hash.HashTopologyException;
 import edu.colostate.cs.galileo.dht.hash.SHA1;
+import edu.colostate.cs.galileo.query.Expression;
+import edu.colostate.cs.galileo.query.Operation;
+import edu.colostate.cs.galileo.query.Query;
 
 /**
  * Implements a spatial partitioner that creates a two-tiered hierarchical DHT.
+ * Queries that constrain the {@link #SPATIAL_FEATURE} are only routed to the
+ * groups responsible for the matching Geohashes.
  *
  * @author malensek
  */
@@ -49,6 +58,9 @@ public class SpatialHierarchyPartitioner extends Partitioner<Metadata> {
 
     private static final Logger logger = Logger.getLogger("galileo");
 
+    /** Name of the query feature used to constrain queries spatially. */
+    public static final String SPATIAL_FEATURE = "geohash";
+
     private ConstrainedGeohash groupHash;
     private BalancedHashRing<Metadata> groupHashRing;
     private Map<BigInteger, GroupInfo> groupPositions = new HashMap<>();
@@ -59,6 +71,9 @@ public class SpatialHierarchyPartitioner extends Partitioner<Metadata> {
     private Map<BigInteger, Map<BigInteger, NodeInfo>> nodePositions
         = new HashMap<>();
 
+    /** Maps each constrained Geohash to the group responsible for it */
+    private Map<String, GroupInfo> geohashGroups = new HashMap<>();
+
     public SpatialHierarchyPartitioner(StorageNode storageNode,
             NetworkInfo network, String[] geohashes)
     throws PartitionException, HashException, HashTopologyException {
@@ -79,6 +94,13 @@ public class SpatialHierarchyPartitioner extends Partitioner<Metadata> {
         for (GroupInfo group : groups) {
             placeGroup(group);
         }
+
+        for (String geohash : groupHash.getGeohashes()) {
+            BigInteger position = groupHashRing.locateHash(
+                    groupHash.hashGeohash(geohash));
+            geohashGroups.put(geohash.toLowerCase(),
+                    groupPositions.get(position));
+        }
     }
 
     private void placeGroup(GroupInfo group)
@@ -131,4 +153,89 @@ public class SpatialHierarchyPartitioner extends Partitioner<Metadata> {
         }
         return info;
     }
+
+    /**
+     * Determines the StorageNodes that may hold data relevant to a query.  Each
+     * Operation in the query is inspected for expressions on the
+     * {@link #SPATIAL_FEATURE}; only groups whose Geohashes satisfy all of the
+     * spatial expressions in at least one Operation are selected.  If any
+     * Operation is not spatially constrained, every node is returned.
+     */
+    @Override
+    public List<NodeInfo> findDestinations(Query query)
+    throws PartitionException {
+        Set<GroupInfo> groups = new LinkedHashSet<>();
+
+        for (Operation operation : query.getOperations()) {
+            List<Expression> spatialExps
+                = operation.getOperand(SPATIAL_FEATURE);
+            if (spatialExps == null || spatialExps.size() == 0) {
+                return network.getAllNodes();
+            }
+
+            for (String geohash : geohashGroups.keySet()) {
+                if (matches(geohash, spatialExps)) {
+                    groups.add(geohashGroups.get(geohash));
+                }
+            }
+        }
+
+        List<NodeInfo> nodes = new ArrayList<>();
+        for (GroupInfo group : groups) {
+            nodes.addAll(group.getAllNodes());
+        }
+        return nodes;
+    }
+
+    /**
+     * Determines whether any Geohash beginning with the given prefix can
+     * satisfy all of the provided expressions.
+     */
+    private boolean matches(String prefix, List<Expression> expressions)
+    throws PartitionException {
+        for (Expression expression : expressions) {
+            Feature value = expression.getValue();
+            if (value.getType() != FeatureType.STRING) {
+                throw new PartitionException("Spatial query feature '"
+                        + SPATIAL_FEATURE + "' must be a String.");
+            }
+            String hash = value.getString().toLowerCase();
+
+            switch (expression.getOperator()) {
+                case EQUAL:
+                    if (hash.startsWith(prefix) == false
+                            && prefix.startsWith(hash) == false) {
+                        return false;
+                    }
+                    break;
+
+                case LESS:
+                    if (prefix.compareTo(hash) >= 0) {
+                        return false;
+                    }
+                    break;
+
+                case LESSEQUAL:
+                    if (prefix.compareTo(hash) > 0) {
+                        return false;
+                    }
+                    break;
+
+                case GREATER:
+                case GREATEREQUAL:
+                    /* Longer hashes with this prefix may still be greater */
+                    if (prefix.compareTo(hash) < 0
+                            && hash.startsWith(prefix) == false) {
+                        return false;
+                    }
+                    break;
+
+                default:
+                    /* Can't rule anything out (NOTEQUAL, etc.) */
+                    break;
+            }
+        }
+
+        return true;
+    }
 }
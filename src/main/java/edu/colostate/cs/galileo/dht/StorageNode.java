@@ -33,8 +33,11 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import edu.colostate.cs.galileo.comm.BlockRequest;
+import edu.colostate.cs.galileo.comm.BlockResponse;
 import edu.colostate.cs.galileo.comm.GalileoEventMap;
 import edu.colostate.cs.galileo.comm.QueryEvent;
+import edu.colostate.cs.galileo.comm.QueryPreamble;
 import edu.colostate.cs.galileo.comm.QueryRequest;
 import edu.colostate.cs.galileo.comm.QueryResponse;
 import edu.colostate.cs.galileo.comm.StorageEvent;
@@ -45,11 +48,14 @@ import edu.colostate.cs.galileo.dataset.Metadata;
 import edu.colostate.cs.galileo.dataset.feature.Feature;
 import edu.colostate.cs.galileo.dht.hash.HashException;
 import edu.colostate.cs.galileo.dht.hash.HashTopologyException;
+import edu.colostate.cs.galileo.event.BatchEventHandler;
 import edu.colostate.cs.galileo.event.Event;
 import edu.colostate.cs.galileo.event.EventContext;
 import edu.colostate.cs.galileo.event.EventHandler;
 import edu.colostate.cs.galileo.event.EventLinkException;
 import edu.colostate.cs.galileo.event.EventReactor;
+import edu.colostate.cs.galileo.event.ExecutorEventReactor;
+import edu.colostate.cs.galileo.fs.BlockRegion;
 import edu.colostate.cs.galileo.fs.FileSystemException;
 import edu.colostate.cs.galileo.fs.GeospatialFileSystem;
 import edu.colostate.cs.galileo.graph.Path;
@@ -57,6 +63,7 @@ import edu.colostate.cs.galileo.net.ClientConnectionPool;
 import edu.colostate.cs.galileo.net.HostIdentifier;
 import edu.colostate.cs.galileo.net.PortTester;
 import edu.colostate.cs.galileo.net.ServerMessageRouter;
+import edu.colostate.cs.galileo.net.Transmission;
 import edu.colostate.cs.galileo.util.Version;
 
 /**
@@ -71,6 +78,15 @@ public class StorageNode {
     private static final Logger logger = Logger.getLogger("galileo");
     private StatusLine nodeStatus;
 
+    private static final String PROPERTY_PREFIX = "galileo.dht.StorageNode.";
+
+    /* Event dispatch models */
+    private static final String DISPATCH_SINGLE = "single";
+    private static final String DISPATCH_EXECUTOR = "executor";
+
+    private static final int DEFAULT_DISPATCH_QUEUE_SIZE = 10000;
+    private static final int DEFAULT_EVENT_BATCH_SIZE = 64;
+
     private int port;
     private String rootDir;
 
@@ -96,7 +112,7 @@ public class StorageNode {
         this.port = NetworkConfig.DEFAULT_PORT;
         this.rootDir = SystemConfig.getRootDir();
 
-        this.eventReactor = new EventReactor(this, eventMap);
+        this.eventReactor = createEventReactor();
 
         this.sessionId = HostIdentifier.getSessionId(port);
         nodeStatus = new StatusLine(SystemConfig.getRootDir() + "/status.txt");
@@ -107,6 +123,50 @@ public class StorageNode {
         }
      }
 
+    /**
+     * Creates the EventReactor for this node based on the configured dispatch
+     * model.  The "single" model processes all events one at a time on a
+     * single thread.  The "executor" model (the default) processes events
+     * with separate thread pools for storage, queries, and everything else,
+     * so a slow query cannot hold up ingest.  In either model, up to
+     * eventBatchSize queued storage events are stored as a single batch.
+     */
+    private EventReactor createEventReactor()
+    throws EventLinkException {
+        int batchSize = Integer.parseInt(System.getProperty(
+                    PROPERTY_PREFIX + "eventBatchSize",
+                    "" + DEFAULT_EVENT_BATCH_SIZE));
+
+        String dispatch = System.getProperty(
+                PROPERTY_PREFIX + "dispatch", DISPATCH_EXECUTOR);
+        if (dispatch.equals(DISPATCH_SINGLE)) {
+            EventReactor reactor = new EventReactor(this, eventMap);
+            reactor.setMaxBatchSize(batchSize);
+            return reactor;
+        } else if (dispatch.equals(DISPATCH_EXECUTOR) == false) {
+            logger.log(Level.WARNING, "Unknown dispatch model: {0}; using "
+                    + DISPATCH_EXECUTOR, dispatch);
+        }
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        int ingestThreads = Integer.parseInt(System.getProperty(
+                    PROPERTY_PREFIX + "ingestThreads", "" + cores));
+        int queryThreads = Integer.parseInt(System.getProperty(
+                    PROPERTY_PREFIX + "queryThreads", "" + cores));
+        int queueSize = Integer.parseInt(System.getProperty(
+                    PROPERTY_PREFIX + "dispatchQueueSize",
+                    "" + DEFAULT_DISPATCH_QUEUE_SIZE));
+
+        ExecutorEventReactor reactor
+            = new ExecutorEventReactor(this, eventMap, 1, queueSize);
+        reactor.setMaxBatchSize(batchSize);
+        reactor.addExecutor("ingest", ingestThreads, queueSize,
+                StorageRequest.class, StorageEvent.class);
+        reactor.addExecutor("query", queryThreads, queueSize,
+                QueryRequest.class, QueryEvent.class, BlockRequest.class);
+        return reactor;
+    }
+
     /**
      * Begins Server execution.  This method attempts to fail fast to provide
      * immediate feedback to wrapper scripts or other user interface tools.
@@ -158,8 +218,15 @@ public class StorageNode {
         nodeStatus.set("Online");
 
         /* Start processing the message loop */
+        if (eventReactor instanceof ExecutorEventReactor) {
+            /* Events are dispatched to the reactor's thread pools as they
+             * arrive */
+            ((ExecutorEventReactor) eventReactor).awaitTermination();
+            return;
+        }
+
         while (true) {
-            eventReactor.processNextEvent();
+            eventReactor.processNextEvents();
         }
     }
 
@@ -177,9 +244,9 @@ public class StorageNode {
         partitioner = new SpatialHierarchyPartitioner(this, network, geohashes);
     }
 
-    private void sendEvent(NodeInfo node, Event event)
+    private Transmission sendEvent(NodeInfo node, Event event)
     throws IOException {
-        connectionPool.sendMessage(node, eventReactor.wrapEvent(event));
+        return connectionPool.sendMessage(node, eventReactor.wrapEvent(event));
     }
 
     /**
@@ -209,47 +276,89 @@ public class StorageNode {
         fs.storeBlock(store.getBlock());
     }
 
+    /**
+     * Stores a batch of blocks.  The blocks' paths are committed to the path
+     * journal together.
+     */
+    @BatchEventHandler(StorageEvent.class)
+    public void handleStorageBatch(
+            List<StorageEvent> stores, List<EventContext> contexts)
+    throws FileSystemException, IOException {
+        List<Block> blocks = new ArrayList<>(stores.size());
+        for (StorageEvent store : stores) {
+            blocks.add(store.getBlock());
+        }
+
+        logger.log(Level.INFO, "Storing {0} blocks", blocks.size());
+        fs.storeBlocks(blocks);
+    }
+
     /**
      * Handles a query request from a client.  Query requests result in a number
-     * of subqueries being performed across the Galileo network.
+     * of subqueries being performed across the Galileo network.  Only the
+     * StorageNodes that may hold relevant data (as determined by the
+     * {@link Partitioner}) are contacted.
      */
     @EventHandler
     public void handleQueryRequest(QueryRequest request, EventContext context)
-    throws IOException {
+    throws IOException, PartitionException {
         String queryString = request.getQueryString();
         logger.log(Level.INFO, "Query request: {0}", queryString);
 
         /* Determine StorageNodes that contain relevant data. */
-        //featureGraph.query(
-        List<NodeInfo> queryNodes = new ArrayList<>();
-        queryNodes.addAll(network.getAllNodes());
+        List<NodeInfo> queryNodes
+            = partitioner.findDestinations(request.getQuery());
 
         /* Set up QueryTracker for this request */
-//        QueryTracker tracker = new QueryTracker(
-//                message.getContext().getSelectionKey());
-//        String clientId = tracker.getIdString(sessionId);
-//        queryTrackers.put(clientId, tracker);
-//
-//        /* Send a Query Preamble to the client */
-//        QueryPreamble preamble = new QueryPreamble(
-//                clientId, queryString, queryNodes);
-//        publishResponse(preamble);
-//
-//        /* Optionally write out where this query is going */
-//        if (logger.isLoggable(Level.INFO)) {
-//            StringBuilder sb = new StringBuilder();
-//            sb.append("Forwarding Query to nodes: ");
-//            for (NodeInfo node : queryNodes) {
-//                sb.append(node.toString() + " ");
-//            }
-//            logger.info(sb.toString());
-//        }
-//
-//        QueryEvent query = new QueryEvent(tracker.getIdString(sessionId),
-//                request.getQuery());
-//        for (NodeInfo node : queryNodes) {
-//            publishEvent(query, node);
-//        }
+        QueryTracker tracker = new QueryTracker(context, queryNodes);
+        String clientId = tracker.getIdString(sessionId);
+        if (queryNodes.isEmpty() == false) {
+            queryTrackers.put(clientId, tracker);
+        }
+
+        /* Send a Query Preamble to the client */
+        QueryPreamble preamble = new QueryPreamble(
+                clientId, queryString, queryNodes);
+        context.sendReply(preamble);
+
+        /* Optionally write out where this query is going */
+        if (logger.isLoggable(Level.INFO)) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Forwarding Query to nodes: ");
+            for (NodeInfo node : queryNodes) {
+                sb.append(node.toString() + " ");
+            }
+            logger.info(sb.toString());
+        }
+
+        QueryEvent query = new QueryEvent(clientId, request.getQuery());
+        for (NodeInfo node : queryNodes) {
+            try {
+                sendEvent(node, query).toCompletableFuture()
+                    .whenComplete((result, e) -> {
+                        if (e != null) {
+                            queryForwardFailed(clientId, node, e);
+                        }
+                    });
+            } catch (IOException e) {
+                queryForwardFailed(clientId, node, e);
+            }
+        }
+    }
+
+    /**
+     * Replies on behalf of a node that a query could not be forwarded to, so
+     * the client isn't left waiting for a response that will never arrive.
+     */
+    private void queryForwardFailed(String clientId, NodeInfo node,
+            Throwable cause) {
+        logger.log(Level.WARNING, "Failed to forward query to " + node, cause);
+        try {
+            handleQueryResponse(new QueryResponse(clientId,
+                        new ArrayList<Path<Feature, String>>()), null);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not send empty response", e);
+        }
     }
 
     /**
@@ -268,6 +377,11 @@ public class StorageNode {
         context.sendReply(response);
     }
 
+    /**
+     * Handles partial query results from a StorageNode.  Results are streamed
+     * to the client as they arrive; once every node involved in the query has
+     * responded, the query's tracker is discarded.
+     */
     @EventHandler
     public void handleQueryResponse(
             QueryResponse response, EventContext context)
@@ -279,7 +393,36 @@ public class StorageNode {
                     response.getId());
             return;
         }
-        //sendMessage(tracker.getSelectionKey(), message);
+
+        if (tracker.responseReceived()) {
+            queryTrackers.remove(response.getId());
+        }
+
+        tracker.getContext().sendReply(response);
+    }
+
+    /**
+     * Handles a request for the contents of a stored block.  The block is not
+     * deserialized; its on-disk representation is streamed directly to the
+     * client after the response header.
+     */
+    @EventHandler
+    public void handleBlockRequest(BlockRequest request, EventContext context)
+    throws IOException {
+        String blockPath = request.getBlockPath();
+
+        BlockRegion region;
+        try {
+            region = fs.locateBlock(blockPath);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not locate requested block", e);
+            context.sendReply(BlockResponse.notFound(blockPath));
+            return;
+        }
+
+        logger.log(Level.INFO, "Sending block: {0}", region);
+        context.sendReply(BlockResponse.header(blockPath), region.getFile(),
+                region.getPosition(), region.getLength());
     }
 
     /**
@@ -295,6 +438,9 @@ public class StorageNode {
             try {
                 connectionPool.forceShutdown();
                 messageRouter.shutdown();
+                if (eventReactor instanceof ExecutorEventReactor) {
+                    ((ExecutorEventReactor) eventReactor).shutdown();
+                }
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -211,7 +211,18 @@ public class BalancedHashRing<T> implements HashRing<T> {
 
     @Override
     public BigInteger locate(T data) throws HashException {
-        BigInteger hashLocation = function.hash(data);
+        return locateHash(function.hash(data));
+    }
+
+    /**
+     * Determines the ring entry responsible for an already-computed position
+     * in the hash space.
+     *
+     * @param hashLocation position in the hash space to locate.
+     *
+     * @return the position of the ring entry responsible for the location.
+     */
+    public BigInteger locateHash(BigInteger hashLocation) {
         BigInteger node = entryMap.ceilingKey(hashLocation);
 
         /* Wraparound edge case */
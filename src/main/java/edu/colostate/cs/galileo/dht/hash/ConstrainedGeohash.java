@@ -87,6 +87,37 @@ public class ConstrainedGeohash implements HashFunction<Metadata> {
         return position;
     }
 
+    /**
+     * Retrieves the position of a Geohash in this hash function's space.
+     *
+     * @param geohash Geohash String at the precision of this hash function.
+     *
+     * @return position of the Geohash in the hash space.
+     */
+    public BigInteger hashGeohash(String geohash)
+    throws HashException {
+        BigInteger position = hashMappings.get(geohash.toLowerCase());
+        if (position == null) {
+            throw new HashException("Could not find position in hash space.");
+        }
+
+        return position;
+    }
+
+    /**
+     * Retrieves the constrained set of Geohashes this function operates on.
+     */
+    public String[] getGeohashes() {
+        return geohashes;
+    }
+
+    /**
+     * Retrieves the Geohash precision (in characters) used by this function.
+     */
+    public int getPrecision() {
+        return precision;
+    }
+
     @Override
     public BigInteger maxValue() {
         return BigInteger.valueOf(geohashes.length);
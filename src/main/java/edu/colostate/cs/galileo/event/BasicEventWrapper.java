@@ -31,10 +31,10 @@ import edu.colostate.cs.galileo.serialization.SerializationInputStream;
 import edu.colostate.cs.galileo.serialization.SerializationOutputStream;
 import edu.colostate.cs.galileo.serialization.Serializer;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.PooledByteBufAllocator;
+
 import java.io.IOException;
 
 /**
@@ -54,27 +54,31 @@ public class BasicEventWrapper implements EventWrapper {
     @Override
     public GalileoMessage wrap(Event e)
     throws IOException {
-        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
-        SerializationOutputStream sOut = new SerializationOutputStream(
-                new BufferedOutputStream(bOut));
+        ByteBuf buf = PooledByteBufAllocator.DEFAULT.buffer();
+        try {
+            SerializationOutputStream sOut = new SerializationOutputStream(
+                    new ByteBufOutputStream(buf));
 
-        int eventId = eventMap.getInt(e.getClass());
-        sOut.writeInt(eventId);
-        sOut.writeSerializable(e);
-        sOut.close();
+            int eventId = eventMap.getInt(e.getClass());
+            sOut.writeInt(eventId);
+            sOut.writeSerializable(e);
+            sOut.close();
+        } catch (IOException | RuntimeException ex) {
+            buf.release();
+            throw ex;
+        }
 
-        byte[] payload = bOut.toByteArray();
-        GalileoMessage msg = new GalileoMessage(payload);
+        GalileoMessage msg = new GalileoMessage(buf);
         return msg;
     }
 
     @Override
     public Event unwrap(GalileoMessage msg)
     throws IOException, SerializationException {
-        ByteArrayInputStream byteIn
-            = new ByteArrayInputStream(msg.payload());
-        BufferedInputStream buffIn = new BufferedInputStream(byteIn);
-        SerializationInputStream sIn = new SerializationInputStream(buffIn);
+        /* Read from a view of the readable bytes, so the message can be
+         * unwrapped again */
+        SerializationInputStream sIn
+            = new SerializationInputStream(msg.buffer().nioBuffer());
 
         int eventId = sIn.readInt();
         Class<? extends Event> clazz = eventMap.getClass(eventId);
@@ -82,4 +86,27 @@ public class BasicEventWrapper implements EventWrapper {
 
         return e;
     }
+
+    @Override
+    public Class<? extends Event> eventClass(GalileoMessage msg)
+    throws IOException {
+        return eventMap.getClass(eventId(msg));
+    }
+
+    @Override
+    public int eventId(GalileoMessage msg)
+    throws IOException {
+        ByteBuf buf = msg.buffer();
+        if (buf.readableBytes() < 4) {
+            throw new IOException("Message is too short to contain an event");
+        }
+        return buf.getInt(buf.readerIndex());
+    }
+
+    /**
+     * @return the {@link EventMap} used to identify Events.
+     */
+    public EventMap getEventMap() {
+        return eventMap;
+    }
 }
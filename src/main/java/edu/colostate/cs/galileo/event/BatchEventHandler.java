@@ -0,0 +1,45 @@
+/*
+Copyright (c) 2013, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package edu.colostate.cs.galileo.event;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Marks a method that handles a batch of events of a single type.  Batch
+ * handlers take two parameters: a List of the events, and a List of their
+ * corresponding {@link EventContext}s.  The type of event handled by the
+ * method is given by the annotation's value, since it cannot be determined
+ * from the parameter types.
+ * <p>
+ * Batch handlers are used when an {@link EventReactor} processes several
+ * events at once; see {@link EventReactor#setMaxBatchSize(int)}.  A type of
+ * event may have both a batch handler and an {@link EventHandler}.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+public @interface BatchEventHandler {
+    Class<? extends Event> value();
+}
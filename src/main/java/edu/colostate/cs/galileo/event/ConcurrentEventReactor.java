@@ -45,15 +45,15 @@ public class ConcurrentEventReactor extends EventReactor {
 
     /**
      * Worker thread that will be used to invoke handler methods as events
-     * arrive.  Each worker simply calls the processNextEvent() method to either
-     * handle an incoming message or block until one is available.
+     * arrive.  Each worker simply calls the processNextEvents() method to
+     * either handle incoming messages or block until one is available.
      */
     private class EventThread implements Runnable {
         @Override
         public void run() {
             while (Thread.interrupted() == false) {
                 try {
-                    processNextEvent();
+                    processNextEvents();
                 } catch (Exception e) {
                     System.out.println("Unhandled event exception");
                     e.printStackTrace();
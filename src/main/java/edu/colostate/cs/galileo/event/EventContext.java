@@ -55,6 +55,24 @@ public class EventContext {
         this.message.context().sendMessage(m);
     }
 
+    /**
+     * Send a reply back to the source that created the original event,
+     * followed by a region of a file.  The file contents are transferred
+     * without being copied onto the heap, and are received as part of the
+     * serialized reply.
+     *
+     * @param e reply event; its serialized form is sent before the file
+     * contents.
+     * @param file file to send a region of.
+     * @param position starting position of the region within the file.
+     * @param count length of the region, in bytes.
+     */
+    public void sendReply(Event e, String file, long position, long count)
+    throws IOException {
+        GalileoMessage m = wrapper.wrap(e);
+        this.message.context().sendMessage(m, file, position, count);
+    }
+
     /**
      * @return NetworkDestination of the client that generated the event.
      */
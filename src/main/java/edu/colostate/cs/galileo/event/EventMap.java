@@ -87,4 +87,17 @@ public abstract class EventMap {
     public int getInt(Class<?> clazz) {
         return classToInt.get(clazz);
     }
+
+    /**
+     * Retrieves the largest event identifier that has been mapped.
+     *
+     * @return largest event identifier, or -1 if no events have been mapped.
+     */
+    public int getMaxId() {
+        int max = -1;
+        for (int id : intToClass.keySet()) {
+            max = Math.max(max, id);
+        }
+        return max;
+    }
 }
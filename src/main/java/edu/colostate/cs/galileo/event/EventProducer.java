@@ -30,6 +30,7 @@ import java.io.IOException;
 import edu.colostate.cs.galileo.net.ClientMessageRouter;
 import edu.colostate.cs.galileo.net.GalileoMessage;
 import edu.colostate.cs.galileo.net.NetworkEndpoint;
+import edu.colostate.cs.galileo.net.Transmission;
 
 /**
  * This class makes it easy to publish events from a client to a server by
@@ -52,10 +53,11 @@ public class EventProducer {
     /**
      * @param destination The server to publish the event to.
      * @param e Event to be published.
+     * @return Transmission that completes once the event has been sent.
      */
-    public void publishEvent(NetworkEndpoint endpoint, Event e)
+    public Transmission publishEvent(NetworkEndpoint endpoint, Event e)
     throws IOException {
         GalileoMessage m = reactor.wrapEvent(e);
-        router.sendMessage(endpoint, m);
+        return router.sendMessage(endpoint, m);
     }
 }
@@ -32,18 +32,27 @@ import edu.colostate.cs.galileo.serialization.SerializationException;
 
 import java.io.IOException;
 import java.lang.annotation.Annotation;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * Implements the reactor pattern for processing incoming events
  * ({@link GalileoMessage} instances).
+ * <p>
+ * Events can be processed one at a time with {@link #processNextEvent()}, or
+ * in batches with {@link #processNextEvents()}.  When a batch contains
+ * consecutive events of a type that has a {@link BatchEventHandler}, they are
+ * passed to the handler together.
  *
  * @author malensek
  */
@@ -51,15 +60,31 @@ public class EventReactor implements MessageListener {
 
     private static final int DEFAULT_QUEUE_SZ = 100000;
 
+    /** Largest event identifier that will be given a dispatch table slot. */
+    private static final int MAX_DISPATCH_ID = 65535;
+
+    private static final MethodType HANDLER_TYPE = MethodType.methodType(
+            void.class, Event.class, EventContext.class);
+
+    private static final MethodType BATCH_HANDLER_TYPE = MethodType.methodType(
+            void.class, List.class, List.class);
+
     private Class<?> handlerClass;
     private Object handlerObject;
 
     private EventWrapper eventWrapper;
 
-    private Map<Class<?>, Method> classToMethod = new HashMap<>();
+    /* Handlers are bound to the handlerObject once, when they are linked.
+     * Events with an identifier are dispatched through the dense idToHandler
+     * table; the map is used for events that do not have one. */
+    private Map<Class<?>, MethodHandle> classToHandler = new HashMap<>();
+    private MethodHandle[] idToHandler = new MethodHandle[0];
+    private Map<Class<?>, MethodHandle> classToBatchHandler = new HashMap<>();
+
+    private int maxBatchSize = 1;
 
     private BlockingQueue<GalileoMessage> messageQueue
-        = new LinkedBlockingQueue<>();
+        = new ArrayBlockingQueue<>(DEFAULT_QUEUE_SZ);
 
     /**
      * Creates an EventReactor with the default {@link BasicEventWrapper}
@@ -77,7 +102,6 @@ public class EventReactor implements MessageListener {
         this.handlerObject = handlerObject;
         this.eventWrapper = new BasicEventWrapper(eventMap);
         linkEventHandlers();
-        messageQueue = new LinkedBlockingQueue<>(DEFAULT_QUEUE_SZ);
     }
 
     /**
@@ -93,7 +117,6 @@ public class EventReactor implements MessageListener {
         this.handlerObject = handlerObject;
         this.eventWrapper = wrapper;
         linkEventHandlers();
-        messageQueue = new LinkedBlockingQueue<>(DEFAULT_QUEUE_SZ);
     }
 
     /**
@@ -102,7 +125,8 @@ public class EventReactor implements MessageListener {
      */
     protected void linkEventHandlers()
     throws EventLinkException {
-        classToMethod.clear();
+        Map<Class<?>, MethodHandle> handlers = new HashMap<>();
+        Map<Class<?>, MethodHandle> batchHandlers = new HashMap<>();
 
         for (Method m : handlerClass.getMethods()) {
             for (Annotation a : m.getAnnotations()) {
@@ -132,11 +156,76 @@ public class EventReactor implements MessageListener {
                                 + m.toString(), e);
                     }
 
-                    classToMethod.put(eventClass, m);
+                    handlers.put(eventClass, bindHandler(m, HANDLER_TYPE));
                     break;
                 }
+
+                if (a.annotationType().equals(BatchEventHandler.class)) {
+                    Class<?>[] params = m.getParameterTypes();
+                    if (params.length != 2
+                            || params[0].equals(List.class) == false
+                            || params[1].equals(List.class) == false) {
+                        throw new EventLinkException(
+                                "Cannot link batch event handler method: "
+                                + m.toString() + "; parameters must be a "
+                                + "List of events and a List of contexts.");
+                    }
+
+                    Class<?> eventClass = ((BatchEventHandler) a).value();
+                    batchHandlers.put(eventClass,
+                            bindHandler(m, BATCH_HANDLER_TYPE));
+                    break;
+                }
+            }
+        }
+
+        classToHandler = handlers;
+        classToBatchHandler = batchHandlers;
+        idToHandler = dispatchTable(handlers);
+    }
+
+    /**
+     * Binds an event handler method to the handlerObject, producing a
+     * MethodHandle of the given type.
+     */
+    private MethodHandle bindHandler(Method m, MethodType type)
+    throws EventLinkException {
+        try {
+            return MethodHandles.lookup().unreflect(m)
+                .bindTo(handlerObject)
+                .asType(type);
+        } catch (IllegalAccessException e) {
+            throw new EventLinkException("Cannot access event "
+                    + "handler method: " + m.toString(), e);
+        }
+    }
+
+    /**
+     * Builds a table of event handlers indexed by event identifier.  This is
+     * only possible when events are identified by an {@link EventMap}; for
+     * other {@link EventWrapper} implementations the table is empty.
+     */
+    private MethodHandle[] dispatchTable(
+            Map<Class<?>, MethodHandle> handlers) {
+        if (eventWrapper instanceof BasicEventWrapper == false) {
+            return new MethodHandle[0];
+        }
+
+        EventMap eventMap = ((BasicEventWrapper) eventWrapper).getEventMap();
+        int maxId = eventMap.getMaxId();
+        if (maxId < 0 || maxId > MAX_DISPATCH_ID) {
+            return new MethodHandle[0];
+        }
+
+        MethodHandle[] table = new MethodHandle[maxId + 1];
+        for (Map.Entry<Integer, Class<? extends Event>> mapping
+                : eventMap.intToClass.entrySet()) {
+            int id = mapping.getKey();
+            if (id >= 0) {
+                table[id] = handlers.get(mapping.getValue());
             }
         }
+        return table;
     }
 
     /**
@@ -177,23 +266,201 @@ public class EventReactor implements MessageListener {
             InterruptedException, SerializationException {
 
         GalileoMessage message = messageQueue.take();
+        processEvent(message);
+    }
+
+    /**
+     * Retrieves up to the maximum batch size of messages from the queue, and
+     * processes them with {@link #processEvents(List)}.  If no message is
+     * present in the queue, this method will block until one becomes
+     * available, but it does not wait for a full batch to accumulate.
+     *
+     * @throws InterruptedException if the calling thread is interrupted while
+     * waiting for a new message to arrive
+     */
+    public void processNextEvents() throws EventException, IOException,
+            InterruptedException, SerializationException {
+
+        List<GalileoMessage> messages = new ArrayList<>(maxBatchSize);
+        messages.add(messageQueue.take());
+        messageQueue.drainTo(messages, maxBatchSize - 1);
+        processEvents(messages);
+    }
 
+    /**
+     * Unwraps a message and calls the appropriate event handler method to
+     * process it.  The message is released once it has been unwrapped.
+     *
+     * @throws EventException when the incoming event is unknown, or errors
+     * occur while trying to call the appropriate handler method
+     */
+    protected void processEvent(GalileoMessage message)
+    throws EventException, IOException, SerializationException {
+        Event event;
+        int eventId;
         try {
-            Event event = eventWrapper.unwrap(message);
-            Method method = classToMethod.get(event.getClass());
-            EventContext context = new EventContext(message, eventWrapper);
-            method.invoke(handlerObject, event, context);
-        } catch (InvocationTargetException e) {
-            throw new EventException("Unhandled exception in invoked "
-                    + "event handler method", e);
-        } catch (IOException | SerializationException e) {
-            throw e;
-        } catch (Exception e) {
-            /* Propagating all the possible reflection-related exceptions up to
-             * clients seemed undesirable from a usability perspective here, so
-             * we wrap this up in a catch-all exception. */
+            eventId = eventWrapper.eventId(message);
+            event = eventWrapper.unwrap(message);
+        } catch (RuntimeException e) {
             throw new EventException("Error processing event!", e);
+        } finally {
+            message.release();
         }
+
+        dispatch(eventId, event, message);
+    }
+
+    /**
+     * Calls the event handler method for an unwrapped event.  Events that only
+     * have a batch handler are passed to it in a batch of one.
+     */
+    private void dispatch(int eventId, Event event, GalileoMessage message)
+    throws EventException {
+        MethodHandle handler = null;
+        MethodHandle[] table = idToHandler;
+        if (eventId >= 0 && eventId < table.length) {
+            handler = table[eventId];
+        }
+        if (handler == null) {
+            handler = classToHandler.get(event.getClass());
+        }
+
+        EventContext context = new EventContext(message, eventWrapper);
+        if (handler == null) {
+            MethodHandle batchHandler
+                = classToBatchHandler.get(event.getClass());
+            if (batchHandler == null) {
+                throw new EventException("No event handler linked for "
+                        + "event type: " + event.getClass().getName());
+            }
+            dispatchBatch(batchHandler, Collections.singletonList(event),
+                    Collections.singletonList(context));
+            return;
+        }
+
+        try {
+            handler.invokeExact(event, context);
+        } catch (Throwable t) {
+            throw new EventException("Unhandled exception in invoked "
+                    + "event handler method", t);
+        }
+    }
+
+    private void dispatchBatch(MethodHandle handler,
+            List<Event> events, List<EventContext> contexts)
+    throws EventException {
+        try {
+            handler.invokeExact(events, contexts);
+        } catch (Throwable t) {
+            throw new EventException("Unhandled exception in invoked "
+                    + "batch event handler method", t);
+        }
+    }
+
+    /**
+     * Unwraps a list of messages and processes their events in order.  Runs
+     * of consecutive events that have a {@link BatchEventHandler} are passed
+     * to it together; all other events are handled individually.  Every
+     * message is released once it has been unwrapped.
+     * <p>
+     * A failure to unwrap or handle an event does not prevent the remaining
+     * events from being processed.  Once they have been, the first failure is
+     * thrown.
+     *
+     * @throws EventException when an incoming event is unknown, or errors
+     * occur while trying to call the appropriate handler method
+     */
+    protected void processEvents(List<GalileoMessage> messages)
+    throws EventException, IOException, SerializationException {
+        Exception failure = null;
+
+        MethodHandle batchHandler = null;
+        List<Event> batch = new ArrayList<>();
+        List<EventContext> contexts = new ArrayList<>();
+
+        for (GalileoMessage message : messages) {
+            Event event;
+            int eventId;
+            try {
+                eventId = eventWrapper.eventId(message);
+                event = eventWrapper.unwrap(message);
+            } catch (IOException | SerializationException e) {
+                failure = (failure == null) ? e : failure;
+                continue;
+            } catch (RuntimeException e) {
+                failure = (failure == null)
+                    ? new EventException("Error processing event!", e)
+                    : failure;
+                continue;
+            } finally {
+                message.release();
+            }
+
+            MethodHandle handler = classToBatchHandler.get(event.getClass());
+            if (handler != batchHandler && batch.isEmpty() == false) {
+                try {
+                    dispatchBatch(batchHandler, batch, contexts);
+                } catch (EventException e) {
+                    failure = (failure == null) ? e : failure;
+                }
+                batch = new ArrayList<>();
+                contexts = new ArrayList<>();
+            }
+            batchHandler = handler;
+
+            if (handler != null) {
+                batch.add(event);
+                contexts.add(new EventContext(message, eventWrapper));
+                continue;
+            }
+
+            try {
+                dispatch(eventId, event, message);
+            } catch (EventException e) {
+                failure = (failure == null) ? e : failure;
+            }
+        }
+
+        if (batch.isEmpty() == false) {
+            try {
+                dispatchBatch(batchHandler, batch, contexts);
+            } catch (EventException e) {
+                failure = (failure == null) ? e : failure;
+            }
+        }
+
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof SerializationException) {
+            throw (SerializationException) failure;
+        } else if (failure != null) {
+            throw (EventException) failure;
+        }
+    }
+
+    /**
+     * Sets the maximum number of events processed in a single batch by
+     * {@link #processNextEvents()}.  The default is 1, which disables
+     * batching.
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException(
+                    "Batch size must be positive");
+        }
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * @return true if a {@link BatchEventHandler} has been linked for the
+     * given type of event.
+     */
+    protected boolean hasBatchHandler(Class<?> eventClass) {
+        return classToBatchHandler.containsKey(eventClass);
     }
 
 
@@ -209,13 +476,22 @@ public class EventReactor implements MessageListener {
 
     @Override
     public void onMessage(GalileoMessage message) {
+        message.retain();
         try {
             messageQueue.put(message);
         } catch (InterruptedException e) {
+            message.release();
             Thread.currentThread().interrupt();
         }
     }
 
+    /**
+     * @return the {@link EventWrapper} used to wrap and unwrap events.
+     */
+    protected EventWrapper getEventWrapper() {
+        return eventWrapper;
+    }
+
     /**
      * Convenience function for wrapping an outgoing event with this
      * EventReactor's {@link EventWrapper} implementation.
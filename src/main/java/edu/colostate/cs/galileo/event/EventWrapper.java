@@ -52,4 +52,29 @@ public interface EventWrapper {
     public Event unwrap(GalileoMessage msg)
         throws IOException, SerializationException;
 
+    /**
+     * Determines the type of {@link Event} contained in a
+     * {@link GalileoMessage} without unwrapping it.
+     *
+     * @return the class of the Event, or null if it cannot be determined
+     * without unwrapping the message.
+     */
+    public default Class<? extends Event> eventClass(GalileoMessage msg)
+    throws IOException {
+        return null;
+    }
+
+    /**
+     * Determines the integer identifier of the {@link Event} contained in a
+     * {@link GalileoMessage} without unwrapping it.  Identifiers are used to
+     * dispatch events to their handlers without looking up their classes.
+     *
+     * @return the identifier of the Event, or -1 if the wrapper does not
+     * assign identifiers to events.
+     */
+    public default int eventId(GalileoMessage msg)
+    throws IOException {
+        return -1;
+    }
+
 }
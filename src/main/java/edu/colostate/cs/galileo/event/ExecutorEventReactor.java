@@ -0,0 +1,393 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package edu.colostate.cs.galileo.event;
+
+import edu.colostate.cs.galileo.net.GalileoMessage;
+import edu.colostate.cs.galileo.net.MessageContext;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Extends the single-threaded reactor implementation defined by
+ * {@link EventReactor} to dispatch events to thread pools based on their type.
+ * Each pool has its own bounded queue, so a backlog of one type of event (such
+ * as expensive queries) does not hold up the processing of other types.  Event
+ * types that have not been assigned to a pool are handled by a default pool.
+ * Events are dispatched from network threads, which never wait for a full
+ * pool; instead, the connection that delivered the event stops reading until
+ * the pool has caught up.
+ * <p>
+ * As with {@link ConcurrentEventReactor}, the object with event handlers must
+ * be able to deal with being accessed by multiple threads concurrently.
+ * Events are dispatched as they arrive; there is no need to call
+ * {@link #processNextEvent()}.
+ * <p>
+ * When the maximum batch size is greater than 1, events that have a
+ * {@link BatchEventHandler} are placed in a separate queue for their pool.
+ * Each pool thread drains as many of them as it can (up to the batch size)
+ * and processes them together, so batches grow with the backlog.
+ *
+ * @author malensek
+ */
+public class ExecutorEventReactor extends EventReactor {
+
+    private static final Logger logger = Logger.getLogger("galileo");
+
+    private Map<Class<?>, Pool> executors = new HashMap<>();
+    private List<Pool> pools = new ArrayList<>();
+    private Pool defaultPool;
+
+    /**
+     * A thread pool, along with the events waiting for it.  When the pool's
+     * queue is full, further events are held in an overflow queue and the
+     * connections they arrived on stop reading until the overflow has been
+     * submitted to the pool.  The overflow queue and the list of paused
+     * connections are guarded by the Pool instance lock.
+     */
+    private static class Pool {
+        private ThreadPoolExecutor executor;
+        private BlockingQueue<GalileoMessage> batchQueue;
+        private Queue<Pending> overflow = new ArrayDeque<>();
+        private List<MessageContext> paused = new ArrayList<>();
+
+        public Pool(ThreadPoolExecutor executor, int queueSize) {
+            this.executor = executor;
+            this.batchQueue = new ArrayBlockingQueue<>(queueSize);
+        }
+    }
+
+    /**
+     * An event that could not be submitted to its pool yet.
+     */
+    private static class Pending {
+        private GalileoMessage message;
+        private boolean batch;
+
+        public Pending(GalileoMessage message, boolean batch) {
+            this.message = message;
+            this.batch = batch;
+        }
+    }
+
+    /**
+     * Creates an ExecutorEventReactor with the default
+     * {@link BasicEventWrapper} EventWrapper implementation.
+     *
+     * @param handlerObject an Object instance that contains the implementations
+     * for event handlers, denoted by the {@link EventHandler} annotation.
+     * @param eventMap a EventMap implementation that provides a mapping from
+     * integer identification numbers to specific classes that represent an
+     * event.
+     * @param threads number of threads in the default pool.
+     * @param queueSize maximum number of events waiting in the default pool.
+     */
+    public ExecutorEventReactor(Object handlerObject, EventMap eventMap,
+            int threads, int queueSize)
+    throws EventLinkException {
+        super(handlerObject, eventMap);
+        defaultPool = createPool("default", threads, queueSize);
+    }
+
+    /**
+     * Creates an ExecutorEventReactor with a custom EventWrapper
+     * implementation.
+     *
+     * @param handlerObject an Object instance that contains the implementations
+     * for event handlers, denoted by the {@link EventHandler} annotation.
+     * @param wrapper A problem-specific {@link EventWrapper} implementation.
+     * @param threads number of threads in the default pool.
+     * @param queueSize maximum number of events waiting in the default pool.
+     */
+    public ExecutorEventReactor(Object handlerObject, EventWrapper wrapper,
+            int threads, int queueSize)
+    throws EventLinkException {
+        super(handlerObject, wrapper);
+        defaultPool = createPool("default", threads, queueSize);
+    }
+
+    /**
+     * Creates a thread pool dedicated to a set of event types.  Pools should
+     * be added before the reactor starts receiving messages.
+     *
+     * @param name name of the pool, used to name its threads.
+     * @param threads number of threads in the pool.
+     * @param queueSize maximum number of events waiting in the pool.  Once the
+     * queue is full, further events of these types are held back and the
+     * connections they arrived on stop reading until space is available.
+     * @param eventClasses the {@link Event} types handled by the pool.
+     */
+    public void addExecutor(String name, int threads, int queueSize,
+            Class<?>... eventClasses) {
+        for (Class<?> eventClass : eventClasses) {
+            if (Event.class.isAssignableFrom(eventClass) == false) {
+                throw new IllegalArgumentException(eventClass.getName()
+                        + " does not implement the Event interface");
+            }
+        }
+
+        Pool pool = createPool(name, threads, queueSize);
+        for (Class<?> eventClass : eventClasses) {
+            executors.put(eventClass, pool);
+        }
+    }
+
+    private Pool createPool(final String name, int threads, int queueSize) {
+        ThreadFactory factory = new ThreadFactory() {
+            private AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "galileo-events-" + name + "-"
+                        + count.incrementAndGet());
+            }
+        };
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                factory, new ThreadPoolExecutor.AbortPolicy());
+        Pool pool = new Pool(executor, queueSize);
+        pools.add(pool);
+        return pool;
+    }
+
+    /**
+     * Processes a single event in a pool thread.
+     */
+    private class EventTask implements Runnable {
+        private Pool pool;
+        private GalileoMessage message;
+
+        public EventTask(Pool pool, GalileoMessage message) {
+            this.pool = pool;
+            this.message = message;
+        }
+
+        @Override
+        public void run() {
+            try {
+                processEvent(message);
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Unhandled event exception", e);
+            } finally {
+                submitOverflow(pool);
+            }
+        }
+    }
+
+    /**
+     * Processes as many queued events as possible (up to the maximum batch
+     * size) in a pool thread.  One task is submitted for each queued event, so
+     * a task may find that its event has already been processed by an earlier
+     * task's batch, in which case it does nothing.
+     */
+    private class BatchTask implements Runnable {
+        private Pool pool;
+
+        public BatchTask(Pool pool) {
+            this.pool = pool;
+        }
+
+        @Override
+        public void run() {
+            try {
+                List<GalileoMessage> messages = new ArrayList<>();
+                pool.batchQueue.drainTo(messages, getMaxBatchSize());
+                if (messages.isEmpty()) {
+                    return;
+                }
+
+                processEvents(messages);
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Unhandled event exception", e);
+            } finally {
+                submitOverflow(pool);
+            }
+        }
+    }
+
+    @Override
+    public void onMessage(GalileoMessage message) {
+        Pool pool = defaultPool;
+        boolean batch = false;
+        try {
+            Class<?> eventClass = getEventWrapper().eventClass(message);
+            Pool typePool = executors.get(eventClass);
+            if (typePool != null) {
+                pool = typePool;
+            }
+            batch = getMaxBatchSize() > 1 && hasBatchHandler(eventClass);
+        } catch (IOException e) {
+            /* The problem will be reported when the message is unwrapped */
+        }
+
+        /* This runs on a network thread, so it must never wait for space in
+         * the pool.  Events that do not fit are held, in order, and the
+         * connection is paused instead. */
+        message.retain();
+        try {
+            synchronized (pool) {
+                if (pool.overflow.isEmpty() && submit(pool, message, batch)) {
+                    return;
+                }
+
+                pool.overflow.add(new Pending(message, batch));
+                MessageContext context = message.context();
+                if (context != null) {
+                    context.setAutoRead(false);
+                    pool.paused.add(context);
+                }
+            }
+        } catch (RejectedExecutionException e) {
+            message.release();
+            logger.log(Level.WARNING, "Could not dispatch event", e);
+        }
+    }
+
+    /**
+     * Submits an event to a pool without blocking.
+     *
+     * @return true if the event was submitted, or false if the pool is full.
+     *
+     * @throws RejectedExecutionException if the pool has been shut down.
+     */
+    private boolean submit(Pool pool, GalileoMessage message, boolean batch) {
+        try {
+            if (batch) {
+                if (pool.batchQueue.offer(message) == false) {
+                    return false;
+                }
+                try {
+                    pool.executor.execute(new BatchTask(pool));
+                } catch (RejectedExecutionException e) {
+                    /* A batched message may already have been picked up by
+                     * another task; if so, it has been submitted. */
+                    if (pool.batchQueue.remove(message)) {
+                        throw e;
+                    }
+                }
+            } else {
+                pool.executor.execute(new EventTask(pool, message));
+            }
+        } catch (RejectedExecutionException e) {
+            if (pool.executor.isShutdown()) {
+                throw e;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Submits events that were held because their pool was full, and resumes
+     * reading from the paused connections once all of them have been
+     * submitted.  Called by pool threads as they finish processing events.
+     */
+    private void submitOverflow(Pool pool) {
+        synchronized (pool) {
+            if (pool.paused.isEmpty() && pool.overflow.isEmpty()) {
+                return;
+            }
+
+            while (pool.overflow.isEmpty() == false) {
+                Pending pending = pool.overflow.peek();
+                try {
+                    if (submit(pool, pending.message, pending.batch) == false) {
+                        return;
+                    }
+                } catch (RejectedExecutionException e) {
+                    pending.message.release();
+                }
+                pool.overflow.remove();
+            }
+
+            for (MessageContext context : pool.paused) {
+                context.setAutoRead(true);
+            }
+            pool.paused.clear();
+        }
+    }
+
+    /**
+     * Stops all the thread pools.  Events that are waiting to be processed are
+     * discarded, but events that are already being processed are allowed to
+     * finish; handler threads are not interrupted, since interrupting a thread
+     * that is writing to a FileChannel closes the channel.
+     */
+    public void shutdown() {
+        for (Pool pool : pools) {
+            pool.executor.shutdown();
+
+            List<Runnable> discarded = new ArrayList<>();
+            pool.executor.getQueue().drainTo(discarded);
+            for (Runnable task : discarded) {
+                if (task instanceof EventTask) {
+                    ((EventTask) task).message.release();
+                }
+            }
+
+            List<GalileoMessage> batched = new ArrayList<>();
+            pool.batchQueue.drainTo(batched);
+            for (GalileoMessage message : batched) {
+                message.release();
+            }
+
+            synchronized (pool) {
+                for (Pending pending : pool.overflow) {
+                    pending.message.release();
+                }
+                pool.overflow.clear();
+                pool.paused.clear();
+            }
+        }
+    }
+
+    /**
+     * Blocks until all the thread pools have terminated.
+     */
+    public void awaitTermination()
+    throws InterruptedException {
+        for (Pool pool : pools) {
+            pool.executor.awaitTermination(
+                    Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+    }
+}
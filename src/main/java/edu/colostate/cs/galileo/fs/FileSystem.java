@@ -26,17 +26,29 @@ software, even if advised of the possibility of such damage.
 package edu.colostate.cs.galileo.fs;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import edu.colostate.cs.galileo.dataset.Block;
 import edu.colostate.cs.galileo.dataset.Metadata;
+import edu.colostate.cs.galileo.dataset.Pair;
 import edu.colostate.cs.galileo.serialization.SerializationException;
 import edu.colostate.cs.galileo.serialization.Serializer;
 import edu.colostate.cs.galileo.util.PerformanceTimer;
@@ -47,6 +59,14 @@ public abstract class FileSystem implements PhysicalGraph {
 
     public static final String BLOCK_EXTENSION = ".gblock";
 
+    private static final int DEFAULT_RECOVERY_THREADS
+        = Runtime.getRuntime().availableProcessors() * 2;
+    private static final int RECOVERY_QUEUE_SIZE = 10000;
+
+    /* Markers used to signal the end of the full recovery pipeline stages */
+    private static final String END_OF_BLOCKS = new String("");
+    private static final Pair<String, Metadata> END_OF_RESULTS = new Pair<>();
+
     protected File storageDirectory;
     private boolean readOnly;
 
@@ -143,57 +163,252 @@ public abstract class FileSystem implements PhysicalGraph {
      * Does a full recovery from disk; this scans every block in the system,
      * reads metadata, and performs a checksum to verify integrity.  If not
      * already obvious, this could be very slow.
+     * <p>
+     * Recovery is performed as a pipeline: a single thread walks the storage
+     * directory and queues the blocks it finds, a pool of reader threads loads
+     * the Metadata for each block, and the calling thread inserts the results
+     * via {@link #storeMetadata(Metadata, String)}.  The number of reader
+     * threads is controlled by the galileo.fs.FileSystem.recoveryThreads
+     * system property.
      */
     protected void fullRecovery() {
         logger.warning("Performing full recovery from disk");
-        List<String> blockPaths = rebuildPaths(storageDirectory);
-        recover(blockPaths);
+
+        int threads = Integer.parseInt(System.getProperty(
+                    "galileo.fs.FileSystem.recoveryThreads",
+                    DEFAULT_RECOVERY_THREADS + ""));
+
+        PerformanceTimer recoveryTimer = new PerformanceTimer();
+        recoveryTimer.start();
+        logger.info("Recovering metadata and building graph using "
+                + threads + " reader threads");
+
+        BlockingQueue<String> blockPaths
+            = new ArrayBlockingQueue<>(RECOVERY_QUEUE_SIZE);
+        BlockingQueue<Pair<String, Metadata>> results
+            = new ArrayBlockingQueue<>(RECOVERY_QUEUE_SIZE);
+        AtomicLong found = new AtomicLong();
+
+        Thread scanner = new Thread(
+                new BlockScanner(blockPaths, found, threads),
+                "FileSystem-recovery-scanner");
+        scanner.start();
+
+        ExecutorService readers = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; ++i) {
+            readers.execute(new MetadataReader(blockPaths, results));
+        }
+
+        long counter = 0;
+        int finishedReaders = 0;
+        long start = System.nanoTime();
+        try {
+            while (finishedReaders < threads) {
+                Pair<String, Metadata> result = results.take();
+                if (result == END_OF_RESULTS) {
+                    finishedReaders++;
+                    continue;
+                }
+
+                try {
+                    storeMetadata(result.b, result.a);
+                } catch (Exception e) {
+                    logger.log(Level.WARNING, "Failed to recover metadata "
+                            + "for block: " + result.a, e);
+                }
+
+                ++counter;
+                if (counter % 10000 == 0) {
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    logger.info(String.format("%d blocks recovered, "
+                                + "%d found so far (%.0f blocks/s).",
+                                counter, found.get(), counter / seconds));
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.warning("Full recovery interrupted.");
+            scanner.interrupt();
+            readers.shutdownNow();
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        readers.shutdown();
+        recoveryTimer.stop();
+        logger.info(String.format("Recovery operation complete. "
+                    + "%d blocks recovered in %.2f ms.",
+                    counter, recoveryTimer.getLastResult()));
     }
 
     /**
-     * Scans the directory structure on disk to find all the blocks stored.
-     *
-     * @param storageDir the root directory to start scanning from.
+     * Walks the storage directory and queues up the paths of all the blocks
+     * found.  Once the walk is complete, one {@link #END_OF_BLOCKS} marker is
+     * queued for each reader.
      */
-    protected List<String> rebuildPaths(File storageDir) {
-        PerformanceTimer rebuildTimer = new PerformanceTimer();
-        rebuildTimer.start();
-        logger.info("Recovering path index");
-        List<String> blockPaths = scanDirectory(storageDir);
-        rebuildTimer.stop();
-        logger.info("Index recovery took "
-                + rebuildTimer.getLastResult() + " ms.");
-        return blockPaths;
+    private class BlockScanner implements Runnable {
+        private BlockingQueue<String> blockPaths;
+        private AtomicLong found;
+        private int readers;
+
+        public BlockScanner(BlockingQueue<String> blockPaths,
+                AtomicLong found, int readers) {
+            this.blockPaths = blockPaths;
+            this.found = found;
+            this.readers = readers;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Files.walkFileTree(storageDirectory.toPath(),
+                        new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file,
+                            BasicFileAttributes attrs)
+                    throws IOException {
+                        for (String block : listBlocks(file)) {
+                            try {
+                                blockPaths.put(block);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                return FileVisitResult.TERMINATE;
+                            }
+                            found.incrementAndGet();
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(
+                            Path file, IOException e) {
+                        logger.log(Level.WARNING,
+                                "Could not scan " + file, e);
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Error scanning storage directory", e);
+            }
+
+            try {
+                for (int i = 0; i < readers; ++i) {
+                    blockPaths.put(END_OF_BLOCKS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
     /**
-     * Does a full recovery from disk on a particular Galileo partition; this
-     * scans every block in the partition, reads its metadata, and performs a
-     * checksum to verify block integrity.
+     * Loads the Metadata of queued blocks until an {@link #END_OF_BLOCKS}
+     * marker is received.
      */
-    protected void recover(List<String> blockPaths) {
-        PerformanceTimer recoveryTimer = new PerformanceTimer();
-        recoveryTimer.start();
-        logger.info("Recovering metadata and building graph");
-        long counter = 0;
-        for (String path : blockPaths) {
+    private class MetadataReader implements Runnable {
+        private BlockingQueue<String> blockPaths;
+        private BlockingQueue<Pair<String, Metadata>> results;
+
+        public MetadataReader(BlockingQueue<String> blockPaths,
+                BlockingQueue<Pair<String, Metadata>> results) {
+            this.blockPaths = blockPaths;
+            this.results = results;
+        }
+
+        @Override
+        public void run() {
             try {
-                Metadata metadata = loadMetadata(path);
-                storeMetadata(metadata, path);
-                ++counter;
-                if (counter % 10000 == 0) {
-                    logger.info(String.format("%d blocks scanned, " +
-                                "recovery %.2f%% complete.", counter,
-                                ((float) counter / blockPaths.size()) * 100));
+                while (true) {
+                    String path = blockPaths.take();
+                    if (path == END_OF_BLOCKS) {
+                        break;
+                    }
+
+                    Metadata metadata;
+                    try {
+                        metadata = loadMetadata(path);
+                    } catch (Exception e) {
+                        logger.log(Level.WARNING, "Failed to recover "
+                                + "metadata for block: " + path, e);
+                        continue;
+                    }
+                    results.put(new Pair<>(path, metadata));
                 }
-            } catch (Exception e) {
-                logger.log(Level.WARNING, "Failed to recover metadata " +
-                        "for block: " + path, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                finish();
             }
         }
-        recoveryTimer.stop();
-        logger.info("Recovery operation complete. Time: "
-                + recoveryTimer.getLastResult() + " ms.");
+
+        /**
+         * Posts the {@link #END_OF_RESULTS} marker for this reader.  This
+         * must happen however the reader exits, otherwise the recovery
+         * thread waits on the result queue forever.
+         */
+        private void finish() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    results.put(END_OF_RESULTS);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Determines the blocks stored in a particular file during a full
+     * recovery.  By default, each file with the {@link #BLOCK_EXTENSION}
+     * holds a single block.
+     *
+     * @param file file found while scanning the storage directory.
+     *
+     * @return block paths that can be passed to
+     * {@link #loadMetadata(String)}; empty if the file does not contain any
+     * blocks.
+     */
+    protected List<String> listBlocks(Path file)
+    throws IOException {
+        List<String> blocks = new ArrayList<>();
+        String fileName = file.toAbsolutePath().toString();
+        if (fileName.endsWith(FileSystem.BLOCK_EXTENSION)) {
+            blocks.add(fileName);
+        }
+        return blocks;
+    }
+
+    /**
+     * Locates the serialized form of a block on disk.  By default, blocks are
+     * stored in their own files.
+     *
+     * @param blockPath path of the block, as stored in the metadata graph.
+     *
+     * @return the file region containing the serialized block.
+     */
+    public BlockRegion locateBlock(String blockPath)
+    throws IOException {
+        File blockFile = new File(blockPath);
+        if (blockPath.endsWith(BLOCK_EXTENSION) == false
+                || blockFile.isFile() == false
+                || inStorageDirectory(blockFile) == false) {
+            throw new FileNotFoundException("Block not found: " + blockPath);
+        }
+        return new BlockRegion(blockPath, 0, blockFile.length());
+    }
+
+    /**
+     * Determines whether a file is located within the storage directory.
+     * Files outside the storage directory should never be served to clients.
+     */
+    protected boolean inStorageDirectory(File file)
+    throws IOException {
+        String root = storageDirectory.getCanonicalPath() + File.separator;
+        return file.getCanonicalPath().startsWith(root);
     }
 
     @Override
@@ -25,17 +25,38 @@ software, even if advised of the possibility of such damage.
 
 package edu.colostate.cs.galileo.fs;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.text.SimpleDateFormat;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 
 import edu.colostate.cs.galileo.dataset.Block;
 import edu.colostate.cs.galileo.dataset.Coordinates;
@@ -46,9 +67,13 @@ import edu.colostate.cs.galileo.graph.FeaturePath;
 import edu.colostate.cs.galileo.graph.MetadataGraph;
 import edu.colostate.cs.galileo.graph.Path;
 import edu.colostate.cs.galileo.query.Query;
+import edu.colostate.cs.galileo.serialization.ByteBufferOutputStream;
 import edu.colostate.cs.galileo.serialization.SerializationException;
+import edu.colostate.cs.galileo.serialization.SerializationInputStream;
+import edu.colostate.cs.galileo.serialization.SerializationOutputStream;
 import edu.colostate.cs.galileo.serialization.Serializer;
 import edu.colostate.cs.galileo.util.Geohash;
+import edu.colostate.cs.galileo.util.PerformanceTimer;
 
 /**
  * Implements a {@link FileSystem} for Geospatial data.  This file system
@@ -58,7 +83,25 @@ import edu.colostate.cs.galileo.util.Geohash;
  * Relevant system properties include
  * galileo.fs.GeospatialFileSystem.timeFormat and
  * galileo.fs.GeospatialFileSystem.geohashPrecision
- * to modify how the hierarchy is created.
+ * to modify how the hierarchy is created.  Durability of the path journal is
+ * controlled by galileo.fs.GeospatialFileSystem.journalSyncPolicy (one of the
+ * {@link PathJournal.SyncPolicy} values),
+ * galileo.fs.GeospatialFileSystem.journalSyncInterval (ms), and
+ * galileo.fs.GeospatialFileSystem.journalBatchSize (bytes).  Setting
+ * galileo.fs.GeospatialFileSystem.parallelRecovery to false disables
+ * memory-mapped, parallel journal recovery.
+ * <p>
+ * The metadata graph is periodically checkpointed to a snapshot file every
+ * galileo.fs.GeospatialFileSystem.checkpointInterval seconds (0 disables
+ * checkpointing).  Each checkpoint rotates the path journal, so recovery only
+ * needs to load the snapshot and replay the paths written since.
+ * <p>
+ * When galileo.fs.GeospatialFileSystem.segmentStorage is true, blocks are
+ * packed into append-only segment files (one per time bucket and Geohash)
+ * instead of being written to individual files; see {@link SegmentStore}.
+ * Segments with more than galileo.fs.GeospatialFileSystem.compactionThreshold
+ * of their space occupied by superseded blocks are compacted along with each
+ * checkpoint.
  */
 public class GeospatialFileSystem extends FileSystem {
 
@@ -67,13 +110,44 @@ public class GeospatialFileSystem extends FileSystem {
     private static final String DEFAULT_TIME_FORMAT = "yyyy/M/d";
     private static final int DEFAULT_GEOHASH_PRECISION = 5;
 
+    private static final long DEFAULT_CHECKPOINT_INTERVAL = 600;
+    private static final int DEFAULT_MAX_OPEN_SEGMENTS = 256;
+    private static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+
     private static final String pathStore = "metadata.paths";
+    private static final String checkpointPathStore
+        = "metadata.paths.checkpoint";
+    private static final String snapshotStore = "metadata.snapshot";
+
+    /** Size of the snapshot header: length (long) + CRC32 checksum (long) */
+    private static final int SNAPSHOT_HEADER_SIZE = 16;
 
     private MetadataGraph metadataGraph;
 
     private PathJournal pathJournal;
+    private String checkpointJournalFile;
+    private String snapshotFile;
+
+    /* Held (shared) while paths are being stored, and exclusively while the
+     * graph is being checkpointed. */
+    private ReentrantReadWriteLock checkpointLock
+        = new ReentrantReadWriteLock();
+    private ScheduledExecutorService checkpointService;
+
+    /* Ensures only one checkpoint is in progress at a time */
+    private final Object checkpointMonitor = new Object();
+
+    /* Compacted segments that are deleted once a checkpoint has rotated the
+     * journal past their relocation.  Guarded by checkpointMonitor. */
+    private List<String> retiredSegments = new ArrayList<>();
 
-    private SimpleDateFormat timeFormatter;
+    /* Non-null when blocks are packed into segment files */
+    private SegmentStore segments;
+    private double compactionThreshold;
+
+    /* SimpleDateFormat is not thread-safe, and blocks may be stored by
+     * several ingest threads at once. */
+    private ThreadLocal<SimpleDateFormat> timeFormatter;
     private String timeFormat;
     private int geohashPrecision;
 
@@ -89,50 +163,497 @@ public class GeospatialFileSystem extends FileSystem {
                 "galileo.fs.GeospatialFileSystem.geohashPrecision",
                 DEFAULT_GEOHASH_PRECISION + ""));
 
-        timeFormatter = new SimpleDateFormat();
-        timeFormatter.applyPattern(timeFormat);
+        timeFormatter = ThreadLocal.withInitial(
+                () -> new SimpleDateFormat(timeFormat));
+
+        PathJournal.SyncPolicy syncPolicy = PathJournal.SyncPolicy.valueOf(
+                System.getProperty(
+                    "galileo.fs.GeospatialFileSystem.journalSyncPolicy",
+                    PathJournal.DEFAULT_SYNC_POLICY.name()));
+
+        long syncInterval = Long.parseLong(System.getProperty(
+                "galileo.fs.GeospatialFileSystem.journalSyncInterval",
+                PathJournal.DEFAULT_SYNC_INTERVAL + ""));
+
+        int batchSize = Integer.parseInt(System.getProperty(
+                "galileo.fs.GeospatialFileSystem.journalBatchSize",
+                PathJournal.DEFAULT_BATCH_SIZE + ""));
+
+        pathJournal = new PathJournal(storageDirectory + "/" + pathStore,
+                syncPolicy, syncInterval, batchSize);
+        pathJournal.setParallelRecovery(Boolean.parseBoolean(
+                System.getProperty(
+                    "galileo.fs.GeospatialFileSystem.parallelRecovery",
+                    "true")));
+
+        if (Boolean.parseBoolean(System.getProperty(
+                        "galileo.fs.GeospatialFileSystem.segmentStorage",
+                        "false"))) {
+            segments = new SegmentStore(Integer.parseInt(System.getProperty(
+                            "galileo.fs.GeospatialFileSystem.maxOpenSegments",
+                            DEFAULT_MAX_OPEN_SEGMENTS + "")));
+        }
+        compactionThreshold = Double.parseDouble(System.getProperty(
+                    "galileo.fs.GeospatialFileSystem.compactionThreshold",
+                    DEFAULT_COMPACTION_THRESHOLD + ""));
 
-        pathJournal = new PathJournal(storageDirectory + "/" + pathStore);
+        checkpointJournalFile = storageDirectory + "/" + checkpointPathStore;
+        snapshotFile = storageDirectory + "/" + snapshotStore;
 
         createMetadataGraph();
+        if (segments != null) {
+            recoverCompactions();
+        }
+
+        long checkpointInterval = Long.parseLong(System.getProperty(
+                "galileo.fs.GeospatialFileSystem.checkpointInterval",
+                DEFAULT_CHECKPOINT_INTERVAL + ""));
+        if (checkpointInterval > 0) {
+            scheduleCheckpoints(checkpointInterval);
+        }
     }
 
     /**
      * Initializes the Metadata Graph, either from a successful recovery from
-     * the PathJournal, or by scanning all the {@link Block}s on disk.
+     * the latest snapshot and PathJournal, or by scanning all the
+     * {@link Block}s on disk.
      */
     private void createMetadataGraph()
     throws IOException {
-        metadataGraph = new MetadataGraph();
+        boolean recoveryOk = true;
+
+        /* Start from the latest snapshot, if there is one. */
+        boolean snapshot = new File(snapshotFile).exists();
+        if (snapshot) {
+            try {
+                metadataGraph = loadSnapshot();
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Failed to load graph snapshot", e);
+                recoveryOk = false;
+            }
+        }
+
+        if (metadataGraph == null) {
+            metadataGraph = new MetadataGraph();
+        }
+
+        /* A journal that was rotated out by a checkpoint that never
+         * completed must be replayed before the current journal. */
+        if (recoveryOk && new File(checkpointJournalFile).exists()) {
+            PathJournal checkpointJournal
+                = new PathJournal(checkpointJournalFile);
+            recoveryOk = replayJournal(checkpointJournal);
+        }
 
         /* Recover the path index from the PathJournal */
+        if (recoveryOk && (snapshot == false || pathJournal.exists())) {
+            recoveryOk = replayJournal(pathJournal);
+        }
+
+        if (recoveryOk == false) {
+            logger.log(Level.SEVERE, "Failed to recover path journal!");
+            metadataGraph = new MetadataGraph();
+            pathJournal.erase();
+            new PathJournal(checkpointJournalFile).erase();
+            new File(snapshotFile).delete();
+            pathJournal.start();
+            fullRecovery();
+        } else {
+            pathJournal.start();
+        }
+    }
+
+    /**
+     * Recovers the paths stored in a journal and adds them to the graph.
+     *
+     * @return true if the journal was recovered cleanly.
+     */
+    private boolean replayJournal(PathJournal journal)
+    throws IOException {
         List<FeaturePath<String>> graphPaths = new ArrayList<>();
-        boolean recoveryOk = pathJournal.recover(graphPaths);
-        pathJournal.start();
+        if (journal.recover(graphPaths) == false) {
+            return false;
+        }
 
-        if (recoveryOk == true) {
-            for (FeaturePath<String> path : graphPaths) {
+        try {
+            metadataGraph.addPaths(graphPaths);
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to add path", e);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Loads the metadata graph snapshot from disk, verifying its checksum.
+     */
+    private MetadataGraph loadSnapshot()
+    throws Exception {
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(
+                        new FileInputStream(snapshotFile)))) {
+            long length = in.readLong();
+            long check = in.readLong();
+
+            CheckedInputStream checkedIn = new CheckedInputStream(in, crc);
+            SerializationInputStream sIn = new SerializationInputStream(
+                    new BufferedInputStream(checkedIn));
+            MetadataGraph graph = MetadataGraph.readSnapshot(sIn);
+
+            if (crc.getValue() != check) {
+                throw new FileSystemException("Graph snapshot checksum "
+                        + "mismatch.");
+            }
+
+            logger.log(Level.INFO, "Loaded metadata graph snapshot "
+                    + "({0} bytes)", length);
+            return graph;
+        }
+    }
+
+    private void scheduleCheckpoints(long interval) {
+        checkpointService = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "GeospatialFileSystem-ckpt");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+
+        checkpointService.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
                 try {
-                    metadataGraph.addPath(path);
+                    int compacted = 0;
+                    if (segments != null) {
+                        compacted = compactSegments(compactionThreshold);
+                    }
+
+                    if (compacted == 0) {
+                        checkpoint();
+                    }
                 } catch (Exception e) {
-                    logger.log(Level.WARNING, "Failed to add path", e);
-                    recoveryOk = false;
-                    break;
+                    logger.log(Level.WARNING, "Checkpoint failed", e);
                 }
             }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Rotates the path journal and writes a snapshot of the metadata graph to
+     * disk.  Storage operations are blocked while the journal is rotated and
+     * while the graph is copied into memory under its read lock; the copy is
+     * written to disk and synced afterward, without holding either lock.
+     * Paths stored after the rotation may appear in both
+     * the snapshot and the new journal, which is harmless since adding a path
+     * to the graph twice has no effect.  Once the snapshot has been safely
+     * stored, the rotated journal is deleted, along with any compacted
+     * segments that were retired before the checkpoint began.
+     *
+     * @return true if the journal was rotated, which means that every path
+     * stored before this method was called is now covered by the snapshot
+     * rather than the current journal.
+     */
+    public boolean checkpoint()
+    throws IOException {
+        synchronized (checkpointMonitor) {
+            List<String> retired = new ArrayList<>(retiredSegments);
+
+            /* If a rotated journal left behind by a failed checkpoint
+             * prevented the rotation, the snapshot that was just written
+             * covers its contents, so it has been removed and the current
+             * journal can be rotated now. */
+            boolean rotated = writeCheckpoint() || writeCheckpoint();
+            if (rotated) {
+                for (String segment : retired) {
+                    segments.delete(segment);
+                }
+                retiredSegments.removeAll(retired);
+            }
+            return rotated;
         }
+    }
 
-        if (recoveryOk == false) {
-            logger.log(Level.SEVERE, "Failed to recover path journal!");
-            pathJournal.erase();
-            pathJournal.start();
-            fullRecovery();
+    /**
+     * Retires segments that have been compacted.  Their records have been
+     * relocated in the metadata graph, but the current snapshot and journal
+     * still refer to them, so they are only deleted once the next checkpoint
+     * rotates the journal.
+     */
+    private void retireSegments(List<String> compacted) {
+        synchronized (checkpointMonitor) {
+            retiredSegments.addAll(compacted);
+        }
+    }
+
+    private boolean writeCheckpoint()
+    throws IOException {
+        PerformanceTimer timer = new PerformanceTimer();
+        timer.start();
+
+        boolean rotated = false;
+        checkpointLock.writeLock().lock();
+        try {
+            if (new File(checkpointJournalFile).exists() == false) {
+                pathJournal.rotate(checkpointJournalFile);
+                rotated = true;
+            }
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+
+        long length = writeSnapshot();
+        new PathJournal(checkpointJournalFile).erase();
+
+        timer.stop();
+        logger.info(String.format("Checkpointed metadata graph (%d bytes) "
+                    + "in %.2f ms.", length, timer.getLastResult()));
+        return rotated;
+    }
+
+    /**
+     * Writes the metadata graph to the snapshot file.  The graph is copied
+     * into memory first, so that the graph's read lock (which blocks
+     * storage operations) is not held during disk I/O.  The snapshot is
+     * written to a temporary file, preceded by its length and checksum, and
+     * then moved into place.
+     *
+     * @return length of the snapshot, in bytes (excluding its header).
+     */
+    private long writeSnapshot()
+    throws IOException {
+        ByteBufferOutputStream snapshot = new ByteBufferOutputStream();
+        SerializationOutputStream sOut
+            = new SerializationOutputStream(snapshot);
+        metadataGraph.writeSnapshot(sOut);
+        sOut.close();
+
+        ByteBuffer data = snapshot.buffer();
+        long length = data.remaining();
+        CRC32 crc = new CRC32();
+        crc.update(data.duplicate());
+
+        ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER_SIZE);
+        header.putLong(length);
+        header.putLong(crc.getValue());
+        header.flip();
+
+        String tmpFile = snapshotFile + ".tmp";
+        try (FileOutputStream fOut = new FileOutputStream(tmpFile)) {
+            FileChannel channel = fOut.getChannel();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            channel.force(true);
+        }
+
+        Files.move(Paths.get(tmpFile), Paths.get(snapshotFile),
+                StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        return length;
+    }
+
+    /**
+     * Compacts segment files that have accumulated superseded blocks.  Block
+     * locations in the metadata graph are updated to point at the compacted
+     * segments, and the graph is checkpointed before the old segments are
+     * removed.  Live blocks are copied while storage operations continue;
+     * they are only blocked while the last few blocks are copied and the
+     * block locations are updated.
+     *
+     * @param threshold minimum fraction of a segment's space that must be
+     * occupied by superseded blocks for the segment to be compacted.
+     *
+     * @return the number of segments compacted.
+     */
+    public int compactSegments(final double threshold)
+    throws FileSystemException, IOException {
+        if (segments == null) {
+            return 0;
+        }
+
+        final List<String> candidates = new ArrayList<>();
+        Files.walkFileTree(storageDirectory.toPath(),
+                new SimpleFileVisitor<java.nio.file.Path>() {
+            @Override
+            public FileVisitResult visitFile(java.nio.file.Path file,
+                    BasicFileAttributes attrs)
+            throws IOException {
+                String fileName = file.toAbsolutePath().toString();
+                if (segments.isActive(fileName)
+                        && segments.garbageRatio(fileName) >= threshold) {
+                    candidates.add(fileName);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        if (candidates.isEmpty()) {
+            return 0;
+        }
+
+        List<String> compacted = new ArrayList<>();
+        try {
+            for (String segment : candidates) {
+                SegmentStore.Compaction compaction
+                    = segments.startCompaction(segment);
+
+                /* Blocks stored while the copy was made are picked up here;
+                 * no new blocks can be appended until the graph refers to the
+                 * new segment. */
+                checkpointLock.writeLock().lock();
+                try {
+                    Map<String, String> relocations
+                        = segments.finishCompaction(compaction);
+                    metadataGraph.replacePayloads(relocations);
+                } finally {
+                    checkpointLock.writeLock().unlock();
+                }
+                compacted.add(segment);
+            }
+        } finally {
+            retireSegments(compacted);
+        }
+
+        if (checkpoint() == false) {
+            logger.log(Level.WARNING, "Journal was not rotated; {0} "
+                    + "compacted segments will be removed by the next "
+                    + "checkpoint", compacted.size());
+        }
+
+        return compacted.size();
+    }
+
+    /**
+     * Completes compactions that were interrupted before their old segments
+     * could be deleted.  The relocations logged by each completed compaction
+     * are applied to the recovered graph (which may still refer to the old
+     * segment), and the old segments are deleted once the graph has been
+     * checkpointed.  Partial output of compactions that did not complete is
+     * removed.
+     */
+    private void recoverCompactions()
+    throws IOException {
+        final List<String> compacted = new ArrayList<>();
+        final List<String> incomplete = new ArrayList<>();
+        Files.walkFileTree(storageDirectory.toPath(),
+                new SimpleFileVisitor<java.nio.file.Path>() {
+            @Override
+            public FileVisitResult visitFile(java.nio.file.Path file,
+                    BasicFileAttributes attrs) {
+                String fileName = file.toAbsolutePath().toString();
+                String relocations = SegmentStore.SEGMENT_EXTENSION
+                    + SegmentStore.RELOCATION_EXTENSION;
+                String partial = SegmentStore.SEGMENT_EXTENSION
+                    + SegmentStore.COMPACTION_EXTENSION;
+                if (fileName.endsWith(relocations)) {
+                    compacted.add(fileName.substring(0, fileName.length()
+                                - SegmentStore.RELOCATION_EXTENSION.length()));
+                } else if (fileName.endsWith(partial) || fileName.endsWith(
+                            relocations + SegmentStore.COMPACTION_EXTENSION)) {
+                    incomplete.add(fileName);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        List<String> retired = new ArrayList<>();
+        for (String segment : compacted) {
+            Map<String, String> relocations
+                = segments.readRelocations(segment);
+            if (relocations != null) {
+                metadataGraph.replacePayloads(relocations);
+                retired.add(segment);
+            }
+        }
+        for (String file : incomplete) {
+            new File(file).delete();
+        }
+
+        if (retired.isEmpty() == false) {
+            logger.log(Level.INFO, "Recovered {0} interrupted segment "
+                    + "compactions", retired.size());
+            retireSegments(retired);
+            checkpoint();
         }
     }
 
     @Override
     public String storeBlock(Block block)
     throws FileSystemException, IOException {
+        return storeBlocks(Collections.singletonList(block)).get(0);
+    }
+
+    /**
+     * Stores several {@link Block}s at once.  Their paths are added to the
+     * path journal as a group, so they are committed in a single journal
+     * write rather than one write per Block.
+     *
+     * @return the storage paths of the Blocks, in the order they were given.
+     */
+    public List<String> storeBlocks(List<Block> blocks)
+    throws FileSystemException, IOException {
+        List<PendingBlock> pending = new ArrayList<>(blocks.size());
+        for (Block block : blocks) {
+            pending.add(writeBlock(block));
+        }
+
+        List<String> blockPaths = new ArrayList<>(blocks.size());
+        checkpointLock.readLock().lock();
+        try {
+            List<FeaturePath<String>> paths = new ArrayList<>(blocks.size());
+            for (PendingBlock block : pending) {
+                String blockPath = block.path;
+                if (segments != null) {
+                    blockPath = segments.append(
+                            block.directory, block.name, block.data)
+                        .toString();
+                }
+                blockPaths.add(blockPath);
+                paths.add(createPath(blockPath, block.metadata));
+            }
+
+            pathJournal.persistPaths(paths);
+            for (FeaturePath<String> path : paths) {
+                metadataGraph.addPath(path);
+            }
+        } catch (IOException | FileSystemException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new FileSystemException("Error storing block: "
+                    + e.getClass().getCanonicalName(), e);
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+
+        return blockPaths;
+    }
+
+    /**
+     * A serialized Block that has been written to its own file (or is ready
+     * to be appended to a segment), but not yet added to the graph.
+     */
+    private static class PendingBlock {
+        private String directory;
+        private String name;
+        private String path;
+        private byte[] data;
+        private Metadata metadata;
+    }
+
+    /**
+     * Determines where a Block will be stored and serializes it.  Unless
+     * segment storage is enabled, the Block is written to its file.
+     */
+    private PendingBlock writeBlock(Block block)
+    throws IOException {
         String name = block.getMetadata().getName();
         if (name.equals("")) {
             UUID blockUUID = UUID.nameUUIDFromBytes(block.getData());
@@ -144,31 +665,133 @@ public class GeospatialFileSystem extends FileSystem {
         String blockPath = blockDirPath + "/" + name
             + FileSystem.BLOCK_EXTENSION;
 
-        /* Ensure the storage directory is there. */
+        /* Ensure the storage directory is there.  Segments are stored one
+         * level up, named after the Geohash. */
         File blockDirectory = new File(blockDirPath);
-        if (!blockDirectory.exists()) {
-            if (!blockDirectory.mkdirs()) {
-                throw new IOException("Failed to create directory (" +
-                    blockDirPath + ") for block.");
-            }
+        if (segments != null) {
+            blockDirectory = blockDirectory.getParentFile();
+        }
+        try {
+            /* Succeeds if another thread creates the directory first */
+            Files.createDirectories(blockDirectory.toPath());
+        } catch (IOException e) {
+            throw new IOException("Failed to create directory (" +
+                blockDirectory + ") for block.", e);
         }
 
-        FileOutputStream blockOutStream = new FileOutputStream(blockPath);
         byte[] blockData = Serializer.serialize(block);
-        blockOutStream.write(blockData);
-        blockOutStream.close();
+        if (segments == null) {
+            FileOutputStream blockOutStream = new FileOutputStream(blockPath);
+            blockOutStream.write(blockData);
+            blockOutStream.close();
+        }
 
-        Metadata meta = block.getMetadata();
-        FeaturePath<String> path = createPath(blockPath, meta);
+        PendingBlock pending = new PendingBlock();
+        pending.directory = blockDirPath;
+        pending.name = name;
+        pending.path = blockPath;
+        pending.data = blockData;
+        pending.metadata = block.getMetadata();
+        return pending;
+    }
+
+    @Override
+    public Block loadBlock(String blockPath)
+    throws IOException, SerializationException {
+        SegmentLocation location = SegmentLocation.fromString(blockPath);
+        if (location == null) {
+            return super.loadBlock(blockPath);
+        }
+
+        return Serializer.deserialize(Block.class, readSegment(location));
+    }
+
+    @Override
+    public Metadata loadMetadata(String blockPath)
+    throws IOException, SerializationException {
+        SegmentLocation location = SegmentLocation.fromString(blockPath);
+        if (location == null) {
+            return super.loadMetadata(blockPath);
+        }
+
+        /* Metadata is stored as the first item in a serialized Block */
+        return Serializer.deserialize(Metadata.class, readSegment(location));
+    }
+
+    @Override
+    public BlockRegion locateBlock(String blockPath)
+    throws IOException {
+        SegmentLocation location = SegmentLocation.fromString(blockPath);
+        if (location == null) {
+            return super.locateBlock(blockPath);
+        }
+
+        File segmentFile = new File(location.getSegment());
+        if (segmentFile.isFile() == false
+                || inStorageDirectory(segmentFile) == false) {
+            throw new FileNotFoundException("Block not found: " + blockPath);
+        }
+
+        SegmentStore store = segments;
+        if (store == null) {
+            store = new SegmentStore(1);
+        }
 
         try {
-            metadataGraph.addPath(path);
-        } catch (Exception e) {
-            throw new FileSystemException("Error storing block: "
-                    + e.getClass().getCanonicalName(), e);
+            return store.blockRegion(location);
+        } catch (FileSystemException e) {
+            throw new IOException(e.getMessage(), e);
+        } finally {
+            if (store != segments) {
+                store.close();
+            }
+        }
+    }
+
+    private byte[] readSegment(SegmentLocation location)
+    throws IOException, SerializationException {
+        SegmentStore store = segments;
+        if (store == null) {
+            /* Segment storage may have been disabled after the block was
+             * written; it can still be read. */
+            store = new SegmentStore(1);
+        }
+
+        try {
+            return store.read(location);
+        } catch (FileSystemException e) {
+            throw new SerializationException(e.getMessage(), e);
+        } finally {
+            if (store != segments) {
+                store.close();
+            }
+        }
+    }
+
+    @Override
+    protected List<String> listBlocks(java.nio.file.Path file)
+    throws IOException {
+        String fileName = file.toAbsolutePath().toString();
+        if (fileName.endsWith(SegmentStore.SEGMENT_EXTENSION) == false) {
+            return super.listBlocks(file);
         }
 
-        return blockPath;
+        SegmentStore store = segments;
+        if (store == null) {
+            store = new SegmentStore(1);
+        }
+
+        /* Older generations of a segment have been compacted; their live
+         * blocks are also in the newest generation. */
+        List<String> blocks = new ArrayList<>();
+        if (store.isActive(fileName) == false) {
+            return blocks;
+        }
+
+        for (SegmentLocation location : store.scan(fileName, null).values()) {
+            blocks.add(location.toString());
+        }
+        return blocks;
     }
 
     /**
@@ -185,7 +808,7 @@ public class GeospatialFileSystem extends FileSystem {
         Metadata meta = block.getMetadata();
         Date date = meta.getTemporalProperties().getLowerBound();
 
-        directory = timeFormatter.format(date) + "/";
+        directory = timeFormatter.get().format(date) + "/";
 
         Coordinates coords = null;
         SpatialProperties spatialProps = meta.getSpatialProperties();
@@ -217,8 +840,14 @@ public class GeospatialFileSystem extends FileSystem {
     public void storeMetadata(Metadata metadata, String blockPath)
     throws FileSystemException, IOException {
         FeaturePath<String> path = createPath(blockPath, metadata);
-        pathJournal.persistPath(path);
-        storePath(path);
+
+        checkpointLock.readLock().lock();
+        try {
+            pathJournal.persistPath(path);
+            storePath(path);
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
     }
 
     private void storePath(FeaturePath<String> path)
@@ -242,6 +871,14 @@ public class GeospatialFileSystem extends FileSystem {
     @Override
     public void shutdown() {
         logger.info("FileSystem shutting down");
+        if (checkpointService != null) {
+            checkpointService.shutdownNow();
+        }
+
+        if (segments != null) {
+            segments.close();
+        }
+
         try {
             pathJournal.shutdown();
         } catch (Exception e) {
@@ -26,7 +26,6 @@ software, even if advised of the possibility of such damage.
 package edu.colostate.cs.galileo.fs;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
@@ -36,14 +35,27 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.CRC32;
@@ -53,20 +65,80 @@ import edu.colostate.cs.galileo.dataset.feature.Feature;
 import edu.colostate.cs.galileo.dataset.feature.FeatureType;
 import edu.colostate.cs.galileo.graph.FeaturePath;
 import edu.colostate.cs.galileo.graph.Vertex;
+import edu.colostate.cs.galileo.serialization.ByteBufferInputStream;
+import edu.colostate.cs.galileo.serialization.ByteBufferOutputStream;
 import edu.colostate.cs.galileo.serialization.SerializationException;
 import edu.colostate.cs.galileo.serialization.SerializationInputStream;
 import edu.colostate.cs.galileo.serialization.SerializationOutputStream;
 import edu.colostate.cs.galileo.util.PerformanceTimer;
 
+/**
+ * Maintains an append-only journal of the {@link FeaturePath}s inserted into
+ * the metadata graph, along with an index of the Features they contain.
+ * <p>
+ * Records are written using group commit: concurrent calls to
+ * {@link #persistPath(FeaturePath)} append CRC-framed records to a shared
+ * in-memory batch, and the batch is written out (and optionally synced to
+ * disk) in a single operation.  The {@link SyncPolicy} determines when
+ * batches are committed and how durable they are.
+ */
 public class PathJournal {
 
     private static final Logger logger = Logger.getLogger("galileo");
 
+    /**
+     * Durability levels supported by the journal.
+     */
+    public enum SyncPolicy {
+        /** Each record is synced to disk before persistPath returns. */
+        EVERY_RECORD,
+
+        /** Batches are synced to disk at a fixed interval. */
+        INTERVAL,
+
+        /** Batches are handed to the OS at a fixed interval, but not
+         * explicitly synced to disk. */
+        OS_BUFFERED;
+    }
+
+    public static final SyncPolicy DEFAULT_SYNC_POLICY = SyncPolicy.INTERVAL;
+    public static final long DEFAULT_SYNC_INTERVAL = 1000;
+    public static final int DEFAULT_BATCH_SIZE = 1024 * 1024;
+
+    /** Size of a record header: CRC32 checksum (long) + length (int) */
+    private static final int RECORD_HEADER_SIZE = 12;
+
+    /** Largest region of the journal mapped into memory at once */
+    private static final long RECOVERY_WINDOW_SIZE = 1L << 30;
+
+    /** Number of records each parallel recovery task is responsible for */
+    private static final int RECOVERY_TASK_SIZE = 4096;
+
     private String pathFile;
     private String indexFile;
 
-    private DataOutputStream pathStore;
-    private DataOutputStream indexStore;
+    private FileChannel pathChannel;
+    private FileChannel indexChannel;
+
+    private SyncPolicy syncPolicy;
+    private long syncInterval;
+    private int batchSize;
+
+    private boolean parallelRecovery = false;
+
+    /* Pending (uncommitted) journal and index records.  Guarded by the
+     * journal instance lock. */
+    private ByteArrayOutputStream pathBatch = new ByteArrayOutputStream();
+    private DataOutputStream pathBatchOut = new DataOutputStream(pathBatch);
+    private ByteArrayOutputStream indexBatch = new ByteArrayOutputStream();
+    private DataOutputStream indexBatchOut = new DataOutputStream(indexBatch);
+    private long appended = 0;
+
+    /* Serializes batch commits; 'committed' is guarded by this lock. */
+    private final Object commitLock = new Object();
+    private long committed = 0;
+
+    private ScheduledExecutorService syncService;
 
     private Map<String, Integer> featureNames = new HashMap<>();
     private Map<Integer, Pair<String, FeatureType>> featureIndex
@@ -76,8 +148,37 @@ public class PathJournal {
     private boolean running = false;
 
     public PathJournal(String pathFile) {
+        this(pathFile, DEFAULT_SYNC_POLICY, DEFAULT_SYNC_INTERVAL,
+                DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Creates a PathJournal with a specific durability configuration.
+     *
+     * @param pathFile location of the journal on disk.
+     * @param syncPolicy determines when journal records are made durable.
+     * @param syncInterval interval, in ms, between batch commits when the
+     * {@link SyncPolicy#INTERVAL} or {@link SyncPolicy#OS_BUFFERED} policies
+     * are in use.
+     * @param batchSize size (in bytes) at which a pending batch is committed
+     * immediately, regardless of the sync interval.
+     */
+    public PathJournal(String pathFile, SyncPolicy syncPolicy,
+            long syncInterval, int batchSize) {
         this.pathFile = pathFile;
         this.indexFile = pathFile + ".index";
+        this.syncPolicy = syncPolicy;
+        this.syncInterval = syncInterval;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Enables or disables parallel recovery.  When enabled, the path journal
+     * is memory-mapped and its records are verified and deserialized on a
+     * fork-join pool rather than read sequentially.
+     */
+    public void setParallelRecovery(boolean parallelRecovery) {
+        this.parallelRecovery = parallelRecovery;
     }
 
     /**
@@ -114,18 +215,26 @@ public class PathJournal {
         }
         logger.log(Level.INFO, "Features read: {0}", featureNames.size());
 
+        int initialSize = paths.size();
         try {
-            recoverPaths(paths);
+            if (parallelRecovery) {
+                recoverMappedPaths(paths);
+            } else {
+                recoverPaths(paths);
+            }
         } catch (EOFException e) {
             logger.info("Reached end of path journal.");
         } catch (NullPointerException | SerializationException e) {
             logger.log(Level.WARNING, "Error deserializing path!", e);
             clean = false;
         }
-        logger.log(Level.INFO, "Recovered {0} paths.", paths.size());
+        int recovered = paths.size() - initialSize;
+        logger.log(Level.INFO, "Recovered {0} paths.", recovered);
         timer.stop();
-        logger.log(Level.INFO, "Finished PathJournal recovery in "
-                + timer.getLastResult() + " ms.");
+        double ms = timer.getLastResult();
+        logger.log(Level.INFO, String.format("Finished PathJournal recovery "
+                    + "in %.2f ms (%.0f records/s).", ms,
+                    ms > 0 ? recovered / (ms / 1000.0) : 0.0));
         return clean;
     }
 
@@ -209,23 +318,198 @@ public class PathJournal {
         pathIn.close();
     }
 
+    /**
+     * Recovers Paths stored in the Path Journal by memory-mapping the journal
+     * file.  Record boundaries are located by scanning the record headers,
+     * and then the records are checksummed and deserialized in parallel.  The
+     * journal is mapped in windows of at most {@link #RECOVERY_WINDOW_SIZE}
+     * bytes; each window ends on a record boundary.
+     */
+    private void recoverMappedPaths(List<FeaturePath<String>> paths)
+    throws IOException, SerializationException {
+        try (FileChannel channel = FileChannel.open(
+                    Paths.get(pathFile), StandardOpenOption.READ)) {
+
+            long fileSize = channel.size();
+            long windowStart = 0;
+            while (windowStart < fileSize) {
+                long remaining = fileSize - windowStart;
+                int windowSize = (int) Math.min(
+                        remaining, RECOVERY_WINDOW_SIZE);
+
+                MappedByteBuffer window = channel.map(
+                        FileChannel.MapMode.READ_ONLY,
+                        windowStart, windowSize);
+
+                /* Locate the record boundaries in this window */
+                int[] offsets = new int[1024];
+                int records = 0;
+                int pos = 0;
+                while (pos + RECORD_HEADER_SIZE <= windowSize) {
+                    int length = window.getInt(pos + 8);
+                    if (length < 0) {
+                        throw new SerializationException("Invalid record "
+                                + "length in path journal at offset "
+                                + (windowStart + pos));
+                    }
+
+                    long end = (long) pos + RECORD_HEADER_SIZE + length;
+                    if (end > windowSize) {
+                        break;
+                    }
+
+                    if (records == offsets.length) {
+                        offsets = Arrays.copyOf(
+                                offsets, records * 2);
+                    }
+                    offsets[records++] = pos;
+                    pos = (int) end;
+                }
+
+                List<FeaturePath<String>> results = new ArrayList<>(
+                        Collections.nCopies(records, null));
+                RecoveryTask task = new RecoveryTask(
+                        window, offsets, results, 0, records);
+                try {
+                    ForkJoinPool.commonPool().invoke(task);
+                } catch (RecoveryException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof SerializationException) {
+                        throw (SerializationException) cause;
+                    }
+                    throw (IOException) cause;
+                }
+
+                for (FeaturePath<String> fp : results) {
+                    if (fp != null) {
+                        paths.add(fp);
+                    }
+                }
+
+                if (windowSize == remaining || pos == 0) {
+                    /* Either this was the last window, or the next record
+                     * does not fit in a window at all */
+                    if (pos < windowSize) {
+                        logger.info("Reached end of path index");
+                    }
+                    break;
+                }
+                windowStart += pos;
+            }
+        }
+    }
+
+    /**
+     * Verifies and deserializes a range of journal records from a mapped
+     * region of the journal.  Records with checksum mismatches are ignored
+     * (left null in the result list).
+     */
+    private class RecoveryTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private ByteBuffer window;
+        private int[] offsets;
+        private List<FeaturePath<String>> results;
+        private int start;
+        private int end;
+
+        public RecoveryTask(ByteBuffer window, int[] offsets,
+                List<FeaturePath<String>> results, int start, int end) {
+            this.window = window;
+            this.offsets = offsets;
+            this.results = results;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > RECOVERY_TASK_SIZE) {
+                int mid = (start + end) >>> 1;
+                invokeAll(
+                        new RecoveryTask(window, offsets, results, start, mid),
+                        new RecoveryTask(window, offsets, results, mid, end));
+                return;
+            }
+
+            CRC32 crc = new CRC32();
+            for (int i = start; i < end; ++i) {
+                int offset = offsets[i];
+                long check = window.getLong(offset);
+                int length = window.getInt(offset + 8);
+
+                ByteBuffer record = window.duplicate();
+                record.position(offset + RECORD_HEADER_SIZE);
+                record.limit(offset + RECORD_HEADER_SIZE + length);
+
+                crc.reset();
+                crc.update(record.duplicate());
+                if (crc.getValue() != check) {
+                    logger.warning("Detected checksum mismatch; "
+                            + "ignoring path.");
+                    continue;
+                }
+
+                try {
+                    results.set(i, deserializePath(
+                            new ByteBufferInputStream(record)));
+                } catch (IOException | SerializationException e) {
+                    throw new RecoveryException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Carries checked exceptions out of parallel recovery tasks.
+     */
+    private static class RecoveryException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public RecoveryException(Throwable cause) {
+            super(cause);
+        }
+    }
+
     /**
      * Prepares the journal files and allows new entries to be written.
      */
     public void start()
     throws IOException {
-        OutputStream out = Files.newOutputStream(Paths.get(pathFile),
+        pathChannel = FileChannel.open(Paths.get(pathFile),
                 StandardOpenOption.CREATE,
                 StandardOpenOption.WRITE,
                 StandardOpenOption.APPEND);
-        pathStore = new DataOutputStream(new BufferedOutputStream(out));
 
-        OutputStream indexOut = Files.newOutputStream(Paths.get(indexFile),
+        indexChannel = FileChannel.open(Paths.get(indexFile),
                 StandardOpenOption.CREATE,
                 StandardOpenOption.WRITE,
-                StandardOpenOption.APPEND,
-                StandardOpenOption.DSYNC);
-        indexStore = new DataOutputStream(new BufferedOutputStream(indexOut));
+                StandardOpenOption.APPEND);
+
+        if (syncPolicy != SyncPolicy.EVERY_RECORD) {
+            syncService = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "PathJournal-sync");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+
+            syncService.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        commit(pendingRecords());
+                    } catch (IOException e) {
+                        logger.log(Level.SEVERE,
+                                "Could not commit path journal batch!", e);
+                    }
+                }
+            }, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+        }
 
         running = true;
     }
@@ -236,11 +520,12 @@ public class PathJournal {
      *
      * @param feature Feature to check for in the index.
      */
-    private void checkIndex(Feature feature) {
+    private synchronized int checkIndex(Feature feature) {
         String featureName = feature.getName();
 
-        if (featureNames.get(featureName) != null) {
-            return;
+        Integer existingId = featureNames.get(featureName);
+        if (existingId != null) {
+            return existingId;
         } else {
             int featureId = newFeature(feature);
             try {
@@ -249,6 +534,7 @@ public class PathJournal {
                 logger.log(Level.SEVERE,
                         "Could not write to path journal index!", e);
             }
+            return featureId;
         }
     }
 
@@ -280,12 +566,14 @@ public class PathJournal {
     }
 
     /**
-     * Appends a new {@link Feature} to the on-disk Feature index.
+     * Appends a new {@link Feature} to the pending Feature index batch.  Index
+     * batches are always committed before the path records that reference
+     * them.
      *
      * @param featureId identifier of the Feature being written
      * @param feature 
      */
-    private void writeIndex(int featureId, Feature feature)
+    private synchronized void writeIndex(int featureId, Feature feature)
     throws IOException {
         ByteArrayOutputStream bOut = new ByteArrayOutputStream();
         SerializationOutputStream sOut = new SerializationOutputStream(bOut);
@@ -299,33 +587,121 @@ public class PathJournal {
         crc.update(entry);
         long check = crc.getValue();
 
-        indexStore.writeLong(check);
-        indexStore.writeInt(entry.length);
-        indexStore.write(entry);
-        indexStore.flush();
+        indexBatchOut.writeLong(check);
+        indexBatchOut.writeInt(entry.length);
+        indexBatchOut.write(entry);
     }
 
     /**
-     * Adds a graph {@link FeaturePath} to the journal.
+     * Adds a graph {@link FeaturePath} to the journal.  Depending on the
+     * {@link SyncPolicy} in use, the record may still be pending when this
+     * method returns.
      *
      * @param path The FeaturePath to add to the journal.
      */
     public void persistPath(FeaturePath<String> path)
+    throws FileSystemException, IOException {
+        persistPaths(Collections.singletonList(path));
+    }
+
+    /**
+     * Adds several graph {@link FeaturePath}s to the journal.  The records are
+     * appended to the pending batch together, so with the
+     * {@link SyncPolicy#EVERY_RECORD} policy they are committed (and synced)
+     * in a single operation rather than one at a time.
+     *
+     * @param paths The FeaturePaths to add to the journal.
+     */
+    public void persistPaths(List<FeaturePath<String>> paths)
     throws FileSystemException, IOException {
         if (running == false) {
             throw new FileSystemException("Path Journal has not been started!");
         }
 
-        byte[] pathBytes = serializePath(path);
-
+        byte[][] pathBytes = new byte[paths.size()][];
+        long[] checks = new long[paths.size()];
         CRC32 crc = new CRC32();
-        crc.update(pathBytes);
-        long check = crc.getValue();
+        for (int i = 0; i < pathBytes.length; ++i) {
+            pathBytes[i] = serializePath(paths.get(i));
+            crc.reset();
+            crc.update(pathBytes[i]);
+            checks[i] = crc.getValue();
+        }
+
+        long record;
+        boolean full;
+        synchronized (this) {
+            for (int i = 0; i < pathBytes.length; ++i) {
+                pathBatchOut.writeLong(checks[i]);
+                pathBatchOut.writeInt(pathBytes[i].length);
+                pathBatchOut.write(pathBytes[i]);
+            }
+            appended += pathBytes.length;
+            record = appended;
+            full = pathBatch.size() >= batchSize;
+        }
+
+        if (syncPolicy == SyncPolicy.EVERY_RECORD || full) {
+            commit(record);
+        }
+    }
+
+    /**
+     * @return the sequence number of the most recently appended record.
+     */
+    private synchronized long pendingRecords() {
+        return appended;
+    }
+
+    /**
+     * Commits all pending records up to (and including) the specified record
+     * sequence number.  If another thread has already committed the record,
+     * this method returns immediately; otherwise, every record that is
+     * pending at the time of the commit is written out as a single batch.
+     *
+     * @param record sequence number of the record that must be committed.
+     */
+    private void commit(long record)
+    throws IOException {
+        synchronized (commitLock) {
+            if (committed >= record) {
+                return;
+            }
+
+            byte[] indexBytes;
+            byte[] pathBytes;
+            long last;
+            synchronized (this) {
+                indexBytes = indexBatch.toByteArray();
+                indexBatch.reset();
+                pathBytes = pathBatch.toByteArray();
+                pathBatch.reset();
+                last = appended;
+            }
+
+            boolean sync = (syncPolicy != SyncPolicy.OS_BUFFERED);
+            if (indexBytes.length > 0) {
+                writeFully(indexChannel, indexBytes);
+                if (sync) {
+                    indexChannel.force(false);
+                }
+            }
+
+            writeFully(pathChannel, pathBytes);
+            if (sync) {
+                pathChannel.force(false);
+            }
+
+            committed = last;
+        }
+    }
 
-        pathStore.writeLong(check);
-        pathStore.writeInt(pathBytes.length);
-        pathStore.write(pathBytes);
-        pathStore.flush();
+    private static void writeFully(FileChannel channel, byte[] bytes)
+    throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
     }
 
     /**
@@ -334,13 +710,12 @@ public class PathJournal {
      */
     private byte[] serializePath(FeaturePath<String> path)
     throws IOException {
-        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+        ByteBufferOutputStream bOut = new ByteBufferOutputStream();
         SerializationOutputStream sOut = new SerializationOutputStream(bOut);
         sOut.writeInt(path.size());
         for (Vertex<Feature, String> v : path.getVertices()) {
             Feature f = v.getLabel();
-            checkIndex(f);
-            int featureId = featureNames.get(f.getName());
+            int featureId = checkIndex(f);
             sOut.writeInt(featureId);
             sOut.writeSerializable(f.getDataContainer());
         }
@@ -357,8 +732,17 @@ public class PathJournal {
      */
     private FeaturePath<String> deserializePath(byte[] pathBytes)
     throws IOException, SerializationException {
-        SerializationInputStream sIn = new SerializationInputStream(
-                new ByteArrayInputStream(pathBytes));
+        return deserializePath(
+                new ByteBufferInputStream(ByteBuffer.wrap(pathBytes)));
+    }
+
+    /**
+     * Deserializes a {@link FeaturePath} from an InputStream containing a
+     * single journal record.
+     */
+    private FeaturePath<String> deserializePath(InputStream pathIn)
+    throws IOException, SerializationException {
+        SerializationInputStream sIn = new SerializationInputStream(pathIn);
 
         int vertices = sIn.readInt();
         FeaturePath<String> fp = new FeaturePath<>();
@@ -380,6 +764,41 @@ public class PathJournal {
         return fp;
     }
 
+    /**
+     * Determines whether the journal and its Feature index exist on disk.
+     */
+    public boolean exists() {
+        return new File(pathFile).exists() && new File(indexFile).exists();
+    }
+
+    /**
+     * Moves the current journal (and its Feature index) aside and starts a
+     * new, empty journal in its place.  All pending records are committed
+     * before the journal is rotated.  Callers must ensure no paths are
+     * persisted while the rotation is in progress.
+     *
+     * @param rotatedFile location the current journal will be moved to.  Its
+     * index is moved to rotatedFile + ".index", so the rotated journal can be
+     * recovered with a PathJournal instance created with rotatedFile.
+     */
+    public void rotate(String rotatedFile)
+    throws IOException {
+        shutdown();
+
+        Files.move(Paths.get(pathFile), Paths.get(rotatedFile),
+                StandardCopyOption.ATOMIC_MOVE);
+        Files.move(Paths.get(indexFile), Paths.get(rotatedFile + ".index"),
+                StandardCopyOption.ATOMIC_MOVE);
+
+        synchronized (this) {
+            featureNames.clear();
+            featureIndex.clear();
+            nextId = 1;
+        }
+
+        start();
+    }
+
     /**
      * Removes the Path Journal and its Feature index files.  This method shuts
      * the PathJournal down before deleting the files.
@@ -401,8 +820,26 @@ public class PathJournal {
             return;
         }
 
-        indexStore.close();
-        pathStore.close();
+        running = false;
+        if (syncService != null) {
+            syncService.shutdown();
+            try {
+                syncService.awaitTermination(syncInterval,
+                        TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /* Make sure the final batch reaches the disk */
+        commit(pendingRecords());
+        if (syncPolicy == SyncPolicy.OS_BUFFERED) {
+            indexChannel.force(false);
+            pathChannel.force(false);
+        }
+
+        indexChannel.close();
+        pathChannel.close();
     }
 }
 
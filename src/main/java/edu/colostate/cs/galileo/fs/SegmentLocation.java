@@ -0,0 +1,102 @@
+/*
+Copyright (c) 2013, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package edu.colostate.cs.galileo.fs;
+
+/**
+ * Describes where a {@link edu.colostate.cs.galileo.dataset.Block} is stored
+ * within a segment file: the segment path, the offset of the block's record,
+ * and the record length.  Locations are stored in the metadata graph in their
+ * String form, "segment#offset#length".
+ *
+ * @author malensek
+ */
+public class SegmentLocation {
+
+    private static final char SEPARATOR = '#';
+
+    private String segment;
+    private long offset;
+    private int length;
+
+    public SegmentLocation(String segment, long offset, int length) {
+        this.segment = segment;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public String getSegment() {
+        return segment;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Parses a SegmentLocation from its String representation.
+     *
+     * @param location String form of the location, as produced by
+     * {@link #toString()}.
+     *
+     * @return the parsed SegmentLocation, or null if the String does not
+     * describe a location in a segment file (for instance, a plain block
+     * path).
+     */
+    public static SegmentLocation fromString(String location) {
+        int lengthSep = location.lastIndexOf(SEPARATOR);
+        if (lengthSep <= 0) {
+            return null;
+        }
+
+        int offsetSep = location.lastIndexOf(SEPARATOR, lengthSep - 1);
+        if (offsetSep <= 0) {
+            return null;
+        }
+
+        String segment = location.substring(0, offsetSep);
+        if (segment.endsWith(SegmentStore.SEGMENT_EXTENSION) == false) {
+            return null;
+        }
+
+        try {
+            long offset = Long.parseLong(
+                    location.substring(offsetSep + 1, lengthSep));
+            int length = Integer.parseInt(location.substring(lengthSep + 1));
+            return new SegmentLocation(segment, offset, length);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return segment + SEPARATOR + offset + SEPARATOR + length;
+    }
+}
@@ -0,0 +1,791 @@
+/*
+Copyright (c) 2013, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package edu.colostate.cs.galileo.fs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Packs blocks into large, append-only segment files rather than storing each
+ * block in its own file.  Segments are identified by a base path (for
+ * instance, the time bucket and Geohash of the blocks stored within) and a
+ * generation number, which is incremented each time the segment is
+ * compacted: base.generation.gseg.
+ * <p>
+ * Each record in a segment consists of the length of the record body (int),
+ * the CRC32 checksum of the body (long), and the body itself: the block name
+ * (as a UTF String) followed by the serialized block.  Storing a block with
+ * the same name as an existing block in the segment supersedes the older
+ * record; the space used by superseded records is reclaimed by
+ * {@link #compact(String)}.  Compaction writes the next generation to a
+ * temporary file and logs the resulting record relocations (base.generation
+ * .gseg.reloc) before the new generation is moved into place, so a compaction
+ * interrupted before the old generation is deleted can be completed later.
+ *
+ * @author malensek
+ */
+public class SegmentStore {
+
+    private static final Logger logger = Logger.getLogger("galileo");
+
+    public static final String SEGMENT_EXTENSION = ".gseg";
+
+    /** Suffix of the relocation log written when a segment is compacted */
+    public static final String RELOCATION_EXTENSION = ".reloc";
+
+    /** Suffix of files that are still being written by a compaction */
+    public static final String COMPACTION_EXTENSION = ".tmp";
+
+    /** Size of a record header: body length (int) + CRC32 checksum (long) */
+    private static final int RECORD_HEADER_SIZE = 12;
+
+    /** Maps segment base paths to their active (current generation) file */
+    private Map<String, String> activeSegments = new HashMap<>();
+
+    /** Open segments, evicted in LRU order */
+    private Map<String, Segment> openSegments;
+
+    public SegmentStore(final int maxOpenSegments) {
+        openSegments = new LinkedHashMap<String, Segment>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, Segment> eldest) {
+                if (size() > maxOpenSegments) {
+                    eldest.getValue().close();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Tracks an open segment file.  All access to the underlying channel is
+     * synchronized on the Segment instance.  Once a segment has been closed
+     * (for instance, after being evicted from the open segment cache) it must
+     * be retrieved again with {@link SegmentStore#getSegment(String)}.
+     */
+    private static class Segment {
+        private String file;
+        private FileChannel channel;
+        private boolean closed = false;
+
+        public Segment(String file) {
+            this.file = file;
+        }
+
+        /**
+         * Retrieves the channel for this segment, opening it if necessary.
+         *
+         * @param create whether the segment file should be created if it does
+         * not exist.  Only appends create segments, so that a read racing
+         * with {@link SegmentStore#delete(String)} fails rather than
+         * recreating an empty segment.
+         */
+        public FileChannel channel(boolean create)
+        throws IOException {
+            if (channel == null) {
+                if (create) {
+                    channel = FileChannel.open(Paths.get(file),
+                            StandardOpenOption.CREATE,
+                            StandardOpenOption.READ,
+                            StandardOpenOption.WRITE);
+                } else {
+                    channel = FileChannel.open(Paths.get(file),
+                            StandardOpenOption.READ,
+                            StandardOpenOption.WRITE);
+                }
+            }
+            return channel;
+        }
+
+        public boolean isClosed() {
+            return closed;
+        }
+
+        public synchronized void close() {
+            closed = true;
+            if (channel == null) {
+                return;
+            }
+
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.warning("Error closing segment " + file + ": " + e);
+            }
+            channel = null;
+        }
+    }
+
+    private synchronized Segment getSegment(String file) {
+        Segment segment = openSegments.get(file);
+        if (segment == null) {
+            segment = new Segment(file);
+            openSegments.put(file, segment);
+        }
+        return segment;
+    }
+
+    /**
+     * Determines the active segment file for a particular segment base path,
+     * scanning the segment directory for existing generations if necessary.
+     */
+    private synchronized String activeSegment(String base) {
+        String file = activeSegments.get(base);
+        if (file != null) {
+            return file;
+        }
+
+        File baseFile = new File(base);
+        String prefix = baseFile.getName() + ".";
+        long generation = 0;
+        File[] existing = baseFile.getAbsoluteFile().getParentFile()
+            .listFiles();
+        if (existing != null) {
+            for (File f : existing) {
+                String name = f.getName();
+                if (name.startsWith(prefix)
+                        && name.endsWith(SEGMENT_EXTENSION)) {
+                    try {
+                        long gen = Long.parseLong(name.substring(
+                                    prefix.length(),
+                                    name.length()
+                                    - SEGMENT_EXTENSION.length()));
+                        generation = Math.max(generation, gen);
+                    } catch (NumberFormatException e) {
+                        continue;
+                    }
+                }
+            }
+        }
+
+        file = segmentFile(base, generation);
+        activeSegments.put(base, file);
+        return file;
+    }
+
+    private static String segmentFile(String base, long generation) {
+        return base + "." + generation + SEGMENT_EXTENSION;
+    }
+
+    /**
+     * Appends a block to the active segment for the given base path.
+     *
+     * @param base segment base path; the directory containing it must exist.
+     * @param name name of the block being stored.
+     * @param data serialized block.
+     *
+     * @return location of the new record.
+     */
+    public SegmentLocation append(String base, String name, byte[] data)
+    throws IOException {
+        ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream(
+                data.length + name.length() + 2);
+        DataOutputStream body = new DataOutputStream(bodyBytes);
+        body.writeUTF(name);
+        body.write(data);
+        body.close();
+
+        return appendRecord(activeSegment(base), bodyBytes.toByteArray());
+    }
+
+    private SegmentLocation appendRecord(String file, byte[] body)
+    throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+
+        ByteBuffer record = ByteBuffer.allocate(
+                RECORD_HEADER_SIZE + body.length);
+        record.putInt(body.length);
+        record.putLong(crc.getValue());
+        record.put(body);
+        record.flip();
+
+        while (true) {
+            Segment segment = getSegment(file);
+            synchronized (segment) {
+                if (segment.isClosed()) {
+                    continue;
+                }
+
+                FileChannel channel = segment.channel(true);
+                long offset = channel.size();
+                long position = offset;
+                while (record.hasRemaining()) {
+                    position += channel.write(record, position);
+                }
+                return new SegmentLocation(file, offset, record.capacity());
+            }
+        }
+    }
+
+    /**
+     * Reads a block from a segment file with a single positional read.
+     *
+     * @param location location of the block's record.
+     *
+     * @return the serialized block.
+     */
+    public byte[] read(SegmentLocation location)
+    throws FileSystemException, IOException {
+        ByteBuffer record = ByteBuffer.allocate(location.getLength());
+
+        while (true) {
+            Segment segment = getSegment(location.getSegment());
+            synchronized (segment) {
+                if (segment.isClosed()) {
+                    continue;
+                }
+
+                FileChannel channel = segment.channel(false);
+                long position = location.getOffset();
+                while (record.hasRemaining()) {
+                    int read = channel.read(record, position);
+                    if (read < 0) {
+                        throw new EOFException("Segment record at "
+                                + location + " is truncated.");
+                    }
+                    position += read;
+                }
+                break;
+            }
+        }
+        record.flip();
+
+        int bodyLength = record.getInt();
+        long check = record.getLong();
+        if (bodyLength != location.getLength() - RECORD_HEADER_SIZE) {
+            throw new FileSystemException("Invalid segment record at "
+                    + location);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER_SIZE, bodyLength);
+        if (crc.getValue() != check) {
+            throw new FileSystemException("Checksum mismatch in segment "
+                    + "record at " + location);
+        }
+
+        /* Skip the block name */
+        int nameLength = record.getShort() & 0xFFFF;
+        int dataStart = RECORD_HEADER_SIZE + 2 + nameLength;
+        byte[] data = new byte[location.getLength() - dataStart];
+        System.arraycopy(record.array(), dataStart, data, 0, data.length);
+        return data;
+    }
+
+    /**
+     * Determines the region of a segment file occupied by the serialized block
+     * in a particular record.  Only the record header is read; the block
+     * itself is not verified against the record checksum.
+     *
+     * @param location location of the block's record.
+     */
+    public BlockRegion blockRegion(SegmentLocation location)
+    throws FileSystemException, IOException {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE + 2);
+        while (true) {
+            Segment segment = getSegment(location.getSegment());
+            synchronized (segment) {
+                if (segment.isClosed()) {
+                    continue;
+                }
+
+                FileChannel channel = segment.channel(false);
+                long position = location.getOffset();
+                while (header.hasRemaining()) {
+                    int read = channel.read(header, position);
+                    if (read < 0) {
+                        throw new EOFException("Segment record at "
+                                + location + " is truncated.");
+                    }
+                    position += read;
+                }
+                break;
+            }
+        }
+        header.flip();
+
+        int bodyLength = header.getInt();
+        header.getLong();
+        int nameLength = header.getShort() & 0xFFFF;
+        if (bodyLength != location.getLength() - RECORD_HEADER_SIZE) {
+            throw new FileSystemException("Invalid segment record at "
+                    + location);
+        }
+
+        int dataStart = RECORD_HEADER_SIZE + 2 + nameLength;
+        return new BlockRegion(location.getSegment(),
+                location.getOffset() + dataStart,
+                location.getLength() - dataStart);
+    }
+
+    /**
+     * Scans a segment file and determines which of its records are current.
+     * When a segment contains more than one record for a block name, only the
+     * last one is considered live.
+     *
+     * @param file segment file to scan.
+     * @param superseded if not null, populated with the locations of records
+     * that have been superseded by a later record.
+     *
+     * @return live record locations, keyed by block name.
+     */
+    public Map<String, SegmentLocation> scan(String file,
+            List<SegmentLocation> superseded)
+    throws IOException {
+        return scan(file, 0, Long.MAX_VALUE, superseded);
+    }
+
+    /**
+     * Scans the records in a region of a segment file.
+     *
+     * @param start offset of the first record to scan.
+     * @param end offset the scan stops at; records starting at or beyond it
+     * are not scanned.
+     */
+    private Map<String, SegmentLocation> scan(String file, long start,
+            long end, List<SegmentLocation> superseded)
+    throws IOException {
+        Map<String, SegmentLocation> live = new LinkedHashMap<>();
+
+        try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)))) {
+            if (skipFully(in, start) == false) {
+                return live;
+            }
+
+            long offset = start;
+            while (offset < end) {
+                int bodyLength;
+                String name;
+                try {
+                    bodyLength = in.readInt();
+                    in.readLong();
+                    name = in.readUTF();
+                } catch (EOFException e) {
+                    break;
+                }
+
+                long remaining = bodyLength - (2 + utfLength(name));
+                if (skipFully(in, remaining) == false) {
+                    logger.warning("Truncated record in segment " + file);
+                    break;
+                }
+
+                SegmentLocation location = new SegmentLocation(
+                        file, offset, RECORD_HEADER_SIZE + bodyLength);
+                SegmentLocation previous = live.put(name, location);
+                if (previous != null && superseded != null) {
+                    superseded.add(previous);
+                }
+                offset += location.getLength();
+            }
+        }
+
+        return live;
+    }
+
+    /**
+     * Skips over bytes in a stream.  BufferedInputStream.skip() stops at the
+     * end of its buffer, so a single call may skip fewer bytes than requested
+     * even when more are available.
+     *
+     * @return true if all the bytes were skipped, or false if the end of the
+     * stream was reached first.
+     */
+    private static boolean skipFully(InputStream in, long n)
+    throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    return false;
+                }
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+        return true;
+    }
+
+    private static int utfLength(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                length += 1;
+            } else if (c > 0x07FF) {
+                length += 3;
+            } else {
+                length += 2;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Determines the fraction of a segment file occupied by superseded
+     * records.
+     */
+    public double garbageRatio(String file)
+    throws IOException {
+        List<SegmentLocation> superseded = new ArrayList<>();
+        scan(file, superseded);
+
+        long size = new File(file).length();
+        if (size == 0) {
+            return 0.0;
+        }
+
+        long garbage = 0;
+        for (SegmentLocation location : superseded) {
+            garbage += location.getLength();
+        }
+        return (double) garbage / size;
+    }
+
+    /**
+     * Determines whether a segment file is the active (newest) generation of
+     * its segment.  Only active segments receive new blocks, so only active
+     * segments accumulate superseded records.
+     */
+    public boolean isActive(String file) {
+        String base = segmentBase(file);
+        return base != null && file.equals(activeSegment(base));
+    }
+
+    /**
+     * Retrieves the base path of a segment file, or null if the file name
+     * does not follow the segment naming scheme.
+     */
+    private static String segmentBase(String file) {
+        if (file.endsWith(SEGMENT_EXTENSION) == false) {
+            return null;
+        }
+
+        String base = file.substring(0,
+                file.length() - SEGMENT_EXTENSION.length());
+        int genSep = base.lastIndexOf('.');
+        if (genSep < 0) {
+            return null;
+        }
+        return base.substring(0, genSep);
+    }
+
+    /**
+     * Tracks a compaction started by {@link #startCompaction(String)}.
+     */
+    public static class Compaction {
+        private String file;
+        private String newFile;
+        private String tmpFile;
+        private long end;
+        private Map<String, SegmentLocation> copied = new HashMap<>();
+        private Map<String, String> relocations = new HashMap<>();
+
+        private Compaction(String file, String newFile) {
+            this.file = file;
+            this.newFile = newFile;
+            this.tmpFile = newFile + COMPACTION_EXTENSION;
+        }
+
+        /**
+         * @return the segment file being compacted.
+         */
+        public String getFile() {
+            return file;
+        }
+    }
+
+    /**
+     * Compacts an active segment file in a single step.  Callers must ensure
+     * no blocks are appended to the segment during compaction.
+     *
+     * @see #startCompaction(String)
+     * @see #finishCompaction(Compaction)
+     */
+    public Map<String, String> compact(String file)
+    throws FileSystemException, IOException {
+        return finishCompaction(startCompaction(file));
+    }
+
+    /**
+     * Begins compacting an active segment file by copying its live records to
+     * a temporary file that will become the next generation of the segment.
+     * Blocks may still be appended to the segment while the copy is made;
+     * they are picked up by {@link #finishCompaction(Compaction)}.
+     *
+     * @param file segment file to compact.
+     */
+    public Compaction startCompaction(String file)
+    throws FileSystemException, IOException {
+        if (isActive(file) == false) {
+            throw new FileSystemException("Only the active generation of a "
+                    + "segment can be compacted: " + file);
+        }
+
+        String base = segmentBase(file);
+        String generation = file.substring(base.length() + 1,
+                file.length() - SEGMENT_EXTENSION.length());
+        Compaction compaction = new Compaction(file,
+                segmentFile(base, Long.parseLong(generation) + 1));
+        new File(compaction.tmpFile).delete();
+
+        /* Records are appended whole while the segment is locked, so its
+         * current size is a record boundary. */
+        compaction.end = size(file);
+        copyRecords(compaction, 0, compaction.end);
+        return compaction;
+    }
+
+    /**
+     * Completes a compaction: records appended since it started are copied,
+     * the new generation is made durable and becomes the active segment, and
+     * the relocations are logged so that an interrupted compaction can be
+     * recovered with {@link #readRelocations(String)}.  New blocks are
+     * appended to the new generation from this point on.  The old segment is
+     * left in place so that existing references to it remain valid until the
+     * caller has updated them and calls {@link #delete(String)}.  Callers
+     * must ensure no blocks are appended to the segment while this method
+     * runs.
+     *
+     * @return a mapping from the String form of each old record location to
+     * the String form of its new location.  Superseded records map to null.
+     */
+    public Map<String, String> finishCompaction(Compaction compaction)
+    throws IOException {
+        long end = size(compaction.file);
+        copyRecords(compaction, compaction.end, end);
+        compaction.end = end;
+
+        closeSegment(compaction.tmpFile);
+        try (FileChannel channel = FileChannel.open(
+                    Paths.get(compaction.tmpFile),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+
+        writeRelocations(compaction.file, compaction.relocations);
+        Files.move(Paths.get(compaction.tmpFile),
+                Paths.get(compaction.newFile),
+                StandardCopyOption.ATOMIC_MOVE);
+
+        synchronized (this) {
+            activeSegments.put(segmentBase(compaction.file),
+                    compaction.newFile);
+        }
+
+        logger.info(String.format("Compacted segment %s: %d live records, "
+                    + "%d relocations", compaction.file,
+                    compaction.copied.size(), compaction.relocations.size()));
+        return compaction.relocations;
+    }
+
+    /**
+     * Copies the live records in a region of the segment being compacted to
+     * the compacted segment.  Records that supersede records copied earlier
+     * are copied again, and the earlier records are treated as superseded.
+     */
+    private void copyRecords(Compaction compaction, long start, long end)
+    throws IOException {
+        List<SegmentLocation> superseded = new ArrayList<>();
+        Map<String, SegmentLocation> live
+            = scan(compaction.file, start, end, superseded);
+        for (SegmentLocation location : superseded) {
+            compaction.relocations.put(location.toString(), null);
+        }
+
+        for (Map.Entry<String, SegmentLocation> entry : live.entrySet()) {
+            SegmentLocation location = entry.getValue();
+            byte[] data;
+            try {
+                data = read(location);
+            } catch (FileSystemException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+            ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+            DataOutputStream body = new DataOutputStream(bodyBytes);
+            body.writeUTF(entry.getKey());
+            body.write(data);
+            body.close();
+
+            SegmentLocation tmpLocation
+                = appendRecord(compaction.tmpFile, bodyBytes.toByteArray());
+            SegmentLocation newLocation = new SegmentLocation(
+                    compaction.newFile, tmpLocation.getOffset(),
+                    tmpLocation.getLength());
+
+            SegmentLocation previous
+                = compaction.copied.put(entry.getKey(), location);
+            if (previous != null) {
+                compaction.relocations.put(previous.toString(), null);
+            }
+            compaction.relocations.put(
+                    location.toString(), newLocation.toString());
+        }
+    }
+
+    /**
+     * Determines the size of a segment file.
+     */
+    private long size(String file)
+    throws IOException {
+        while (true) {
+            Segment segment = getSegment(file);
+            synchronized (segment) {
+                if (segment.isClosed()) {
+                    continue;
+                }
+                return segment.channel(false).size();
+            }
+        }
+    }
+
+    /**
+     * Durably records the relocations produced by compacting a segment.  The
+     * log is removed along with the segment by {@link #delete(String)}.
+     */
+    private void writeRelocations(String file, Map<String, String> relocations)
+    throws IOException {
+        String logFile = file + RELOCATION_EXTENSION;
+        String tmpFile = logFile + COMPACTION_EXTENSION;
+        try (FileOutputStream fOut = new FileOutputStream(tmpFile)) {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(fOut));
+            out.writeInt(relocations.size());
+            for (Map.Entry<String, String> entry : relocations.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeBoolean(entry.getValue() != null);
+                if (entry.getValue() != null) {
+                    out.writeUTF(entry.getValue());
+                }
+            }
+            out.flush();
+            fOut.getFD().sync();
+        }
+        Files.move(Paths.get(tmpFile), Paths.get(logFile),
+                StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Reads the relocations logged when a segment was compacted.  This allows
+     * a compaction that completed, but whose old segment was not deleted (for
+     * instance, because of a crash), to be applied again.  If the compaction
+     * did not complete, its partial output and relocation log are removed and
+     * the old segment remains active.
+     *
+     * @param file the segment that was compacted.
+     *
+     * @return the relocations, as returned by
+     * {@link #finishCompaction(Compaction)}, or null if the compaction did
+     * not complete.
+     */
+    public Map<String, String> readRelocations(String file)
+    throws IOException {
+        String logFile = file + RELOCATION_EXTENSION;
+        String base = segmentBase(file);
+        String generation = file.substring(base.length() + 1,
+                file.length() - SEGMENT_EXTENSION.length());
+        String newFile = segmentFile(base, Long.parseLong(generation) + 1);
+        if (new File(newFile).exists() == false) {
+            new File(newFile + COMPACTION_EXTENSION).delete();
+            new File(logFile).delete();
+            return null;
+        }
+
+        Map<String, String> relocations = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(logFile)))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; ++i) {
+                String from = in.readUTF();
+                String to = null;
+                if (in.readBoolean()) {
+                    to = in.readUTF();
+                }
+                relocations.put(from, to);
+            }
+        }
+        return relocations;
+    }
+
+    /**
+     * Closes and removes a segment file, along with its relocation log if it
+     * has been compacted.
+     */
+    public void delete(String file) {
+        closeSegment(file);
+        new File(file).delete();
+        new File(file + RELOCATION_EXTENSION).delete();
+    }
+
+    private void closeSegment(String file) {
+        Segment segment;
+        synchronized (this) {
+            segment = openSegments.remove(file);
+        }
+        if (segment != null) {
+            segment.close();
+        }
+    }
+
+    /**
+     * Closes all open segment files.
+     */
+    public synchronized void close() {
+        for (Segment segment : openSegments.values()) {
+            segment.close();
+        }
+        openSegments.clear();
+    }
+}
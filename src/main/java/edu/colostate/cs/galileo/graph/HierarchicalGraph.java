@@ -25,6 +25,7 @@ software, even if advised of the possibility of such damage.
 
 package edu.colostate.cs.galileo.graph;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -215,8 +216,7 @@ public class HierarchicalGraph<T> {
                 case LESS: {
                     NavigableMap<Feature, Vertex<Feature, T>> neighbors
                         = vertex.getNeighborsLessThan(value, false);
-                    removeWildcard(neighbors);
-                    evalSet.addAll(neighbors.values());
+                    evalSet.addAll(removeWildcard(neighbors).values());
 
                     break;
                 }
@@ -224,8 +224,7 @@ public class HierarchicalGraph<T> {
                 case LESSEQUAL: {
                     NavigableMap<Feature, Vertex<Feature, T>> neighbors
                         = vertex.getNeighborsLessThan(value, true);
-                    removeWildcard(neighbors);
-                    evalSet.addAll(neighbors.values());
+                    evalSet.addAll(removeWildcard(neighbors).values());
 
                     break;
                 }
@@ -277,19 +276,23 @@ public class HierarchicalGraph<T> {
      * stays linked together. The side effect of this is that 'less than'
      * comparisons may return wildcards, which are removed with this method.
      *
-     * @param map The map to remove the first NULL element from. If the map has
-     * no elements or the first element is not a NULL FeatureType, then no
-     * modifications are made to the map.
+     * @param map The map to remove the first NULL element from. This is
+     * generally a view of a vertex's edges, so it is not modified; a view
+     * that excludes the NULL element is returned instead.  If the map has no
+     * elements or the first element is not a NULL FeatureType, then the map
+     * itself is returned.
      */
-    private void removeWildcard(NavigableMap<Feature, Vertex<Feature, T>> map) {
-        if (map.size() <= 0) {
-            return;
+    private NavigableMap<Feature, Vertex<Feature, T>> removeWildcard(
+            NavigableMap<Feature, Vertex<Feature, T>> map) {
+        if (map.isEmpty()) {
+            return map;
         }
 
         Feature first = map.firstKey();
         if (first.getType() == FeatureType.NULL) {
-            map.remove(first);
+            return map.tailMap(first, false);
         }
+        return map;
     }
 
     /**
@@ -317,6 +320,27 @@ public class HierarchicalGraph<T> {
         root.addPath(path.iterator());
     }
 
+    /**
+     * Adds a collection of {@link Path}s to the Hierarchical Graph.  The
+     * Feature hierarchy is extended with every Feature in the collection
+     * before the paths are inserted, so the resulting hierarchy does not
+     * depend on the order of the paths.
+     */
+    public void addPaths(Collection<? extends Path<Feature, T>> paths)
+    throws FeatureTypeMismatchException, GraphException {
+        for (Path<Feature, T> path : paths) {
+            for (Feature feature : path.getLabels()) {
+                if (feature.getType() != FeatureType.NULL) {
+                    getOrder(feature);
+                }
+            }
+        }
+
+        for (Path<Feature, T> path : paths) {
+            addPath(path);
+        }
+    }
+
     /**
      * This method ensures that the Features in the path being added have the
      * same FeatureTypes as the current hierarchy.  This ensures that different
@@ -474,6 +498,40 @@ public class HierarchicalGraph<T> {
         return order;
     }
 
+    /**
+     * Replaces vertex values throughout the graph.  Values that map to null
+     * are removed.
+     *
+     * @param replacements mapping from existing values to their replacements.
+     */
+    public void replaceValues(Map<T, T> replacements) {
+        replaceValues(root, replacements);
+    }
+
+    private void replaceValues(Vertex<Feature, T> vertex,
+            Map<T, T> replacements) {
+        Set<T> values = vertex.getValues();
+        if (values.isEmpty() == false) {
+            List<T> replaced = new ArrayList<>();
+            Iterator<T> it = values.iterator();
+            while (it.hasNext()) {
+                T value = it.next();
+                if (replacements.containsKey(value)) {
+                    it.remove();
+                    T replacement = replacements.get(value);
+                    if (replacement != null) {
+                        replaced.add(replacement);
+                    }
+                }
+            }
+            values.addAll(replaced);
+        }
+
+        for (Vertex<Feature, T> child : vertex.getAllNeighbors()) {
+            replaceValues(child, replacements);
+        }
+    }
+
     /**
      * Retrieves the ordering of Feature names in this graph hierarchy.
      */
@@ -28,6 +28,9 @@ package edu.colostate.cs.galileo.graph;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import edu.colostate.cs.galileo.dataset.Pair;
 import edu.colostate.cs.galileo.dataset.feature.Feature;
@@ -39,10 +42,17 @@ import edu.colostate.cs.galileo.serialization.SerializationException;
 import edu.colostate.cs.galileo.serialization.SerializationInputStream;
 import edu.colostate.cs.galileo.serialization.SerializationOutputStream;
 
+/**
+ * Indexes block metadata in a {@link HierarchicalGraph}.  MetadataGraph
+ * instances are safe for use by multiple threads: queries may be evaluated
+ * concurrently, while modifications to the graph are exclusive.
+ */
 public class MetadataGraph implements ByteSerializable {
 
     HierarchicalGraph<String> graph;
 
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
     public MetadataGraph() {
         graph = new HierarchicalGraph<>();
     }
@@ -53,7 +63,41 @@ public class MetadataGraph implements ByteSerializable {
 
     public void addPath(Path<Feature, String> path)
     throws FeatureTypeMismatchException, GraphException {
-        graph.addPath(path);
+        lock.writeLock().lock();
+        try {
+            graph.addPath(path);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds a collection of paths to the graph in bulk.
+     */
+    public void addPaths(Collection<? extends Path<Feature, String>> paths)
+    throws FeatureTypeMismatchException, GraphException {
+        lock.writeLock().lock();
+        try {
+            graph.addPaths(paths);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces path payloads throughout the graph.  Payloads that map to null
+     * are removed.
+     *
+     * @param replacements mapping from existing payloads to their
+     * replacements.
+     */
+    public void replacePayloads(Map<String, String> replacements) {
+        lock.writeLock().lock();
+        try {
+            graph.replaceValues(replacements);
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     /**
@@ -66,20 +110,37 @@ public class MetadataGraph implements ByteSerializable {
      */
     public void reorient(FeatureHierarchy hierarchy)
     throws FeatureTypeMismatchException, GraphException {
-        List<Path<Feature, String>> paths = graph.getAllPaths();
-        graph = new HierarchicalGraph<>(hierarchy);
-        for(Path<Feature, String> path : paths) {
-            addPath(path);
+        lock.writeLock().lock();
+        try {
+            List<Path<Feature, String>> paths = graph.getAllPaths();
+            HierarchicalGraph<String> reoriented
+                = new HierarchicalGraph<>(hierarchy);
+            for(Path<Feature, String> path : paths) {
+                reoriented.addPath(path);
+            }
+            graph = reoriented;
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
     public List<Path<Feature, String>> evaluateQuery(Query query) {
-        return graph.evaluateQuery(query);
+        lock.readLock().lock();
+        try {
+            return graph.evaluateQuery(query);
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     public List<Path<Feature, String>> evaluateQuery(Query query,
             PayloadFilter<String> filter) {
-        return graph.evaluateQuery(query, filter);
+        lock.readLock().lock();
+        try {
+            return graph.evaluateQuery(query, filter);
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     public static MetadataGraph fromPaths(List<Path<Feature, String>> paths) {
@@ -96,20 +157,127 @@ public class MetadataGraph implements ByteSerializable {
     }
 
     public List<Path<Feature, String>> getAllPaths() {
-        return graph.getAllPaths();
+        lock.readLock().lock();
+        try {
+            return graph.getAllPaths();
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     public long numVertices() {
-        return graph.getRoot().numDescendants();
+        lock.readLock().lock();
+        try {
+            return graph.getRoot().numDescendants();
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     public long numEdges() {
-        return graph.getRoot().numDescendantEdges();
+        lock.readLock().lock();
+        try {
+            return graph.getRoot().numDescendantEdges();
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     @Override
     public String toString() {
-        return graph.toString();
+        lock.readLock().lock();
+        try {
+            return graph.toString();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes a snapshot of this graph to a stream.  Rather than flattening the
+     * graph into its constituent paths (as {@link #serialize} does), the
+     * snapshot format records the vertex tree directly, so shared path
+     * prefixes are only written once.  The graph's read lock is held while
+     * the snapshot is written, which blocks modifications; callers should
+     * write the snapshot to memory rather than directly to disk.
+     *
+     * @param out stream to write the snapshot to.
+     */
+    public void writeSnapshot(SerializationOutputStream out)
+    throws IOException {
+        lock.readLock().lock();
+        try {
+            FeatureHierarchy hierarchy = graph.getFeatureHierarchy();
+            out.writeInt(hierarchy.size());
+            for (Pair<String, FeatureType> level : hierarchy) {
+                out.writeString(level.a);
+                out.writeInt(level.b.toInt());
+            }
+
+            writeVertex(graph.getRoot(), out);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void writeVertex(Vertex<Feature, String> vertex,
+            SerializationOutputStream out)
+    throws IOException {
+        Collection<Vertex<Feature, String>> neighbors
+            = vertex.getAllNeighbors();
+        out.writeInt(neighbors.size());
+        for (Vertex<Feature, String> neighbor : neighbors) {
+            out.writeSerializable(neighbor.getLabel());
+
+            Set<String> values = neighbor.getValues();
+            out.writeInt(values.size());
+            for (String value : values) {
+                out.writeString(value);
+            }
+
+            writeVertex(neighbor, out);
+        }
+    }
+
+    /**
+     * Reconstructs a MetadataGraph from a snapshot created by
+     * {@link #writeSnapshot(SerializationOutputStream)}.
+     *
+     * @param in stream to read the snapshot from.
+     *
+     * @return the MetadataGraph stored in the snapshot.
+     */
+    public static MetadataGraph readSnapshot(SerializationInputStream in)
+    throws GraphException, IOException, SerializationException {
+        FeatureHierarchy hierarchy = new FeatureHierarchy();
+        int numLevels = in.readInt();
+        for (int level = 0; level < numLevels; ++level) {
+            String name = in.readString();
+            FeatureType type = FeatureType.fromInt(in.readInt());
+            hierarchy.addFeature(name, type);
+        }
+
+        MetadataGraph m = new MetadataGraph(hierarchy);
+        readVertex(m.graph.getRoot(), in);
+        return m;
+    }
+
+    private static void readVertex(Vertex<Feature, String> vertex,
+            SerializationInputStream in)
+    throws IOException, SerializationException {
+        int numNeighbors = in.readInt();
+        for (int i = 0; i < numNeighbors; ++i) {
+            Feature label = new Feature(in);
+            Vertex<Feature, String> neighbor = new Vertex<>(label);
+
+            int numValues = in.readInt();
+            for (int j = 0; j < numValues; ++j) {
+                neighbor.addValue(in.readString());
+            }
+
+            vertex.connect(neighbor);
+            readVertex(neighbor, in);
+        }
     }
 
     @Deserialize
@@ -153,14 +321,22 @@ public class MetadataGraph implements ByteSerializable {
     @Override
     public void serialize(SerializationOutputStream out)
     throws IOException {
-        FeatureHierarchy hierarchy = graph.getFeatureHierarchy();
+        FeatureHierarchy hierarchy;
+        List<Path<Feature, String>> paths;
+        lock.readLock().lock();
+        try {
+            hierarchy = graph.getFeatureHierarchy();
+            paths = graph.getAllPaths();
+        } finally {
+            lock.readLock().unlock();
+        }
+
         out.writeInt(hierarchy.size());
         for (Pair<String, FeatureType> level : hierarchy) {
             out.writeString(level.a);
             out.writeInt(level.b.toInt());
         }
 
-        List<Path<Feature, String>> paths = graph.getAllPaths();
         out.writeInt(paths.size());
         for (Path<Feature, String> path : paths) {
             List<Vertex<Feature, String>> vertices = path.getVertices();
@@ -0,0 +1,799 @@
+/*
+Copyright (c) 2013, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package edu.colostate.cs.galileo.graph2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import edu.colostate.cs.galileo.dataset.Pair;
+import edu.colostate.cs.galileo.dataset.analysis.Quantizer;
+import edu.colostate.cs.galileo.dataset.feature.Feature;
+import edu.colostate.cs.galileo.dataset.feature.FeatureType;
+import edu.colostate.cs.galileo.graph.FeatureHierarchy;
+import edu.colostate.cs.galileo.graph.GraphException;
+import edu.colostate.cs.galileo.query2.Query;
+import edu.colostate.cs.galileo.query2.QueryException;
+import edu.colostate.cs.galileo.serialization.SerializationException;
+import edu.colostate.cs.galileo.serialization.SerializationInputStream;
+import edu.colostate.cs.galileo.serialization.SerializationOutputStream;
+import edu.colostate.cs.galileo.stat.RunningStatisticsND;
+import edu.colostate.cs.galileo.stat.StatisticsArena;
+
+/**
+ * A memory-efficient alternative to {@link Sketch}.  Rather than representing
+ * each vertex as an object with its own {@link Feature} label and a TreeMap of
+ * edges, vertices are identified by integers and their edges are stored in
+ * primitive arrays.  Feature names and types are stored once per level of the
+ * hierarchy, and the children of each vertex are kept in a pair of parallel
+ * arrays sorted by key: the encoded value of each child's label, and the
+ * child's vertex ID.  Keys are tick indices for levels that have a
+ * {@link Quantizer}, the values themselves for int and float levels, and
+ * dictionary IDs for all other types.  This reduces the cost of a vertex to a
+ * few tens of bytes (excluding its {@link DataContainer}, if any), and allows
+ * range lookups on ordered levels to be carried out with binary searches.
+ * <p>
+ * As with Sketch, paths that are missing features are linked together with
+ * wildcard vertices, and the DataContainer for each path is placed at its
+ * last vertex.  Note that Integer.MIN_VALUE is reserved for wildcards, and
+ * cannot be stored in int levels that do not have a Quantizer.
+ */
+public class CompactSketch {
+
+    /** ID of the root vertex. */
+    public static final int ROOT = 0;
+
+    /** Key of wildcard vertices.  Sorts before every other key. */
+    private static final int WILDCARD = Integer.MIN_VALUE;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final Logger logger
+        = Logger.getLogger("edu.colostate.cs.galileo");
+
+    private GraphMetrics metrics = new GraphMetrics();
+    public GeoTrie geoTrie = new GeoTrie();
+
+    /** Levels of the hierarchy, in hierarchical order. */
+    private List<Level> levels = new ArrayList<>();
+    private Map<String, Level> levelNames = new HashMap<>();
+    private Map<String, Quantizer> quantizers;
+
+    /** Off-heap storage for leaf statistics, if enabled */
+    private StatisticsArena arena;
+
+    /* Vertex storage, indexed by vertex ID.  Vertices without children have
+     * null child arrays. */
+    private int[][] childKeys = new int[INITIAL_CAPACITY][];
+    private int[][] childIds = new int[INITIAL_CAPACITY][];
+    private int[] childCounts = new int[INITIAL_CAPACITY];
+    private DataContainer[] data = new DataContainer[INITIAL_CAPACITY];
+    private int numVertices = 1;
+
+    /**
+     * Describes a level in the Feature hierarchy, and handles converting its
+     * Feature values to and from keys.
+     */
+    private static class Level {
+
+        public String name;
+        public FeatureType type;
+        public int order;
+
+        /** Tick marks, for quantized levels */
+        public Feature[] ticks;
+
+        /** Dictionary of values, for levels that are not stored directly */
+        public Map<Feature, Integer> ids;
+        public List<Feature> values;
+
+        public Level(String name, FeatureType type, int order,
+                Quantizer quantizer) {
+            this.name = name;
+            this.order = order;
+            setType(type, quantizer);
+        }
+
+        /**
+         * Sets the type of this level.  Levels first seen through wildcards
+         * in a merged graph have a NULL type until a value arrives.
+         */
+        public void setType(FeatureType type, Quantizer quantizer) {
+            this.type = type;
+            if (type == FeatureType.NULL) {
+                return;
+            }
+
+            if (quantizer != null) {
+                List<Feature> tickList = quantizer.getTicks();
+                ticks = tickList.toArray(new Feature[tickList.size()]);
+            } else if (type != FeatureType.INT && type != FeatureType.FLOAT) {
+                ids = new HashMap<>();
+                values = new ArrayList<>();
+            }
+        }
+
+        /**
+         * Determines whether the keys of this level are ordered the same way
+         * as the values they represent.
+         */
+        public boolean ordered() {
+            return ids == null;
+        }
+
+        /**
+         * Converts a Feature value to a key, adding it to the dictionary if
+         * necessary.
+         */
+        public int encode(Feature feature)
+        throws GraphException {
+            if (ticks != null) {
+                int index = Arrays.binarySearch(ticks, feature);
+                if (index < 0) {
+                    /* Use the tick below the value; values below the first
+                     * tick are placed in the first bucket. */
+                    index = Math.max(0, -(index + 1) - 1);
+                }
+                return index;
+            }
+
+            switch (type) {
+                case INT:
+                    int value = feature.getInt();
+                    if (value == WILDCARD) {
+                        throw new GraphException("Value " + value
+                                + " is reserved and cannot be stored");
+                    }
+                    return value;
+
+                case FLOAT:
+                    return floatKey(feature.getFloat());
+
+                default:
+                    Integer id = ids.get(feature);
+                    if (id == null) {
+                        id = values.size();
+                        values.add(feature);
+                        ids.put(feature, id);
+                    }
+                    return id;
+            }
+        }
+
+        /**
+         * Retrieves the key for an existing value without modifying the
+         * dictionary.
+         *
+         * @return the key, or WILDCARD if the value is not present.
+         */
+        public int lookup(Feature feature) {
+            Integer id = ids.get(new Feature(name, feature));
+            if (id == null) {
+                return WILDCARD;
+            }
+            return id;
+        }
+
+        /**
+         * Compares the value represented by a key with a Feature.
+         */
+        public int compare(int key, Feature feature) {
+            if (ticks != null) {
+                return ticks[key].compareTo(feature);
+            }
+
+            switch (type) {
+                case INT:
+                    return Integer.compare(key, feature.getInt());
+                case FLOAT:
+                    return Float.compare(floatValue(key), feature.getFloat());
+                default:
+                    return values.get(key).compareTo(feature);
+            }
+        }
+
+        /**
+         * Converts a key back to a Feature.
+         */
+        public Feature decode(int key) {
+            if (key == WILDCARD) {
+                return new Feature(name);
+            }
+
+            if (ticks != null) {
+                return new Feature(name, ticks[key]);
+            }
+
+            switch (type) {
+                case INT:
+                    return new Feature(name, key);
+                case FLOAT:
+                    return new Feature(name, floatValue(key));
+                default:
+                    return values.get(key);
+            }
+        }
+
+        /**
+         * Maps a float to an int that sorts in the same order as
+         * Float.compare() would.
+         */
+        private static int floatKey(float value) {
+            int bits = Float.floatToIntBits(value);
+            return bits ^ ((bits >> 31) & 0x7fffffff);
+        }
+
+        private static float floatValue(int key) {
+            return Float.intBitsToFloat(key ^ ((key >> 31) & 0x7fffffff));
+        }
+    }
+
+    public CompactSketch() {
+        this(new FeatureHierarchy());
+    }
+
+    /**
+     * Creates a CompactSketch with a set Feature hierarchy.  Features are
+     * entered into the hierarchy in the order they are received.
+     *
+     * @param hierarchy Graph hierarchy represented as a
+     * {@link FeatureHierarchy}.
+     */
+    public CompactSketch(FeatureHierarchy hierarchy) {
+        this(hierarchy, Collections.<String, Quantizer>emptyMap());
+    }
+
+    /**
+     * Creates a CompactSketch with a set Feature hierarchy, where the values
+     * of some features are stored as indices into the tick marks of a
+     * {@link Quantizer}.  Values added to these levels are quantized.
+     *
+     * @param hierarchy Graph hierarchy represented as a
+     * {@link FeatureHierarchy}.
+     * @param quantizers mapping from feature names to their Quantizers.
+     */
+    public CompactSketch(FeatureHierarchy hierarchy,
+            Map<String, Quantizer> quantizers) {
+        this(hierarchy, quantizers, null);
+    }
+
+    /**
+     * Creates a CompactSketch with a set Feature hierarchy and Quantizers
+     * that stores the statistics of its leaves off-heap.
+     *
+     * @param hierarchy Graph hierarchy represented as a
+     * {@link FeatureHierarchy}.
+     * @param quantizers mapping from feature names to their Quantizers.
+     * @param arena {@link StatisticsArena} to store leaf statistics in, or
+     * null to keep them on the heap.
+     */
+    public CompactSketch(FeatureHierarchy hierarchy,
+            Map<String, Quantizer> quantizers, StatisticsArena arena) {
+        this.quantizers = quantizers;
+        this.arena = arena;
+        for (Pair<String, FeatureType> feature : hierarchy) {
+            addLevel(feature.a, feature.b);
+        }
+    }
+
+    private Level addLevel(String name, FeatureType type) {
+        logger.info("New feature: " + name + ", type: " + type);
+        Level level = new Level(
+                name, type, levels.size(), quantizers.get(name));
+        levels.add(level);
+        levelNames.put(name, level);
+        return level;
+    }
+
+    /**
+     * Adds a new {@link Path} to the Sketch.  The path's vertices are only
+     * used for their labels; they are not retained.
+     */
+    public void addPath(Path path)
+    throws FeatureTypeMismatchException, GraphException {
+        if (path.size() == 0) {
+            throw new GraphException("Attempted to add empty path!");
+        }
+
+        /* Place each Feature at its level in the hierarchy; missing features
+         * remain null (wildcards). */
+        Feature[] features = new Feature[levels.size() + path.size()];
+        for (Vertex vertex : path) {
+            Feature feature = vertex.getLabel();
+            if (feature.getType() == FeatureType.NULL) {
+                continue;
+            }
+
+            Level level = levelNames.get(feature.getName());
+            if (level == null) {
+                level = addLevel(feature.getName(), feature.getType());
+            } else if (level.type == FeatureType.NULL) {
+                level.setType(feature.getType(), quantizers.get(level.name));
+            } else if (level.type != feature.getType()) {
+                throw new FeatureTypeMismatchException(
+                        "Feature insertion at graph level " + level.order
+                        + " is not possible due to a FeatureType mismatch. "
+                        + "Expected: " + level.type + ", "
+                        + "found: " + feature.getType() + "; "
+                        + "Feature: <" + feature + ">");
+            }
+            features[level.order] = feature;
+        }
+
+        /* Trailing wildcards are unnecessary to traverse */
+        int length = levels.size();
+        while (length > 0 && features[length - 1] == null) {
+            length--;
+        }
+        if (length == 0) {
+            throw new GraphException("Attempted to add path with no features");
+        }
+
+        double[] values = new double[length - 1];
+        for (int i = 0; i < length - 1; ++i) {
+            if (features[i] != null) {
+                values[i] = features[i].getDouble();
+            }
+        }
+        DataContainer container
+            = new DataContainer(new RunningStatisticsND(values));
+
+        /* Encode the path before modifying the graph, so invalid values do
+         * not leave a partial path behind. */
+        int[] keys = new int[length];
+        for (int i = 0; i < length; ++i) {
+            if (features[i] == null) {
+                keys[i] = WILDCARD;
+            } else {
+                keys[i] = levels.get(i).encode(features[i]);
+            }
+        }
+
+        long vertices = metrics.getVertexCount();
+        long leaves = metrics.getLeafCount();
+
+        int vertex = ROOT;
+        for (int i = 0; i < length - 1; ++i) {
+            vertex = connect(vertex, keys[i], null, false);
+        }
+        connect(vertex, keys[length - 1], container, false);
+
+        long newVertices = metrics.getVertexCount() - vertices;
+        long newLeaves = metrics.getLeafCount() - leaves;
+        if (newVertices != 0 || newLeaves != 0) {
+            geoTrie.addHash(features[length - 1].getString(),
+                    new CountContainer(newVertices, newLeaves));
+        }
+    }
+
+    /**
+     * Connects a vertex to the child with the given key, creating the child
+     * if it does not exist yet.
+     *
+     * @param container DataContainer to place at the child, or null.
+     * @param overwriteData If set to true, the child's DataContainer is
+     *     replaced instead of merged.
+     * @return ID of the child vertex.
+     */
+    private int connect(int vertex, int key, DataContainer container,
+            boolean overwriteData) {
+        int position = search(vertex, key);
+        if (position >= 0) {
+            int child = childIds[vertex][position];
+            if (overwriteData == false && container == null) {
+                /* Passing through an existing vertex */
+                return child;
+            }
+            if (data[child] != null && overwriteData == false) {
+                data[child].merge(container);
+            } else {
+                if (data[child] instanceof SlabDataContainer) {
+                    ((SlabDataContainer) data[child]).release();
+                }
+                data[child] = moveOffHeap(container);
+            }
+            return child;
+        }
+
+        int child = newVertex();
+        data[child] = moveOffHeap(container);
+        insert(vertex, -(position + 1), key, child);
+
+        metrics.addVertex();
+        if (container != null) {
+            metrics.addLeaf();
+        }
+        return child;
+    }
+
+    /**
+     * Copies a DataContainer into the {@link StatisticsArena}, if off-heap
+     * statistics are enabled.
+     */
+    private DataContainer moveOffHeap(DataContainer container) {
+        if (arena == null || container == null
+                || container.getClass() != DataContainer.class) {
+            return container;
+        }
+        return new SlabDataContainer(arena, container.statistics);
+    }
+
+    /**
+     * Locates a child key with a binary search.
+     *
+     * @return position of the key, or (-(insertion point) - 1) if the key is
+     * not present.
+     */
+    private int search(int vertex, int key) {
+        int count = childCounts[vertex];
+        if (count == 0) {
+            return -1;
+        }
+        return Arrays.binarySearch(childKeys[vertex], 0, count, key);
+    }
+
+    private int newVertex() {
+        if (numVertices == childCounts.length) {
+            int capacity = childCounts.length + (childCounts.length >> 1);
+            childKeys = Arrays.copyOf(childKeys, capacity);
+            childIds = Arrays.copyOf(childIds, capacity);
+            childCounts = Arrays.copyOf(childCounts, capacity);
+            data = Arrays.copyOf(data, capacity);
+        }
+        return numVertices++;
+    }
+
+    private void insert(int vertex, int position, int key, int child) {
+        int count = childCounts[vertex];
+        int[] keys = childKeys[vertex];
+        int[] ids = childIds[vertex];
+        if (keys == null) {
+            keys = new int[1];
+            ids = new int[1];
+        } else if (count == keys.length) {
+            int capacity = count + (count >> 1) + 1;
+            keys = Arrays.copyOf(keys, capacity);
+            ids = Arrays.copyOf(ids, capacity);
+        }
+
+        System.arraycopy(keys, position, keys, position + 1, count - position);
+        System.arraycopy(ids, position, ids, position + 1, count - position);
+        keys[position] = key;
+        ids[position] = child;
+
+        childKeys[vertex] = keys;
+        childIds[vertex] = ids;
+        childCounts[vertex] = count + 1;
+    }
+
+    /**
+     * Retrieves the number of levels in the hierarchy.
+     */
+    public int numLevels() {
+        return levels.size();
+    }
+
+    /**
+     * Retrieves the name of the Feature stored at a level of the hierarchy.
+     * The children of the root vertex are at level 0.
+     */
+    public String getLevelName(int depth) {
+        return levels.get(depth).name;
+    }
+
+    /**
+     * Determines whether the children at a level of the hierarchy are sorted
+     * by value, allowing range lookups with binary searches.
+     */
+    public boolean isOrdered(int depth) {
+        return levels.get(depth).ordered();
+    }
+
+    /**
+     * Retrieves the number of vertices in the graph, including the root.
+     * Vertex IDs range from 0 (the root) to this value, exclusive.
+     */
+    public int numVertices() {
+        return numVertices;
+    }
+
+    public int numChildren(int vertex) {
+        return childCounts[vertex];
+    }
+
+    /**
+     * Retrieves the vertex ID of a child.
+     *
+     * @param vertex parent vertex ID.
+     * @param position position of the child, from 0 to numChildren(vertex).
+     */
+    public int getChild(int vertex, int position) {
+        return childIds[vertex][position];
+    }
+
+    /**
+     * Retrieves the position of the first child of a vertex that is not a
+     * wildcard.  Wildcards always sort first.
+     */
+    public int firstValue(int vertex) {
+        if (childCounts[vertex] > 0 && childKeys[vertex][0] == WILDCARD) {
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Retrieves the label of a child.
+     *
+     * @param depth level of the hierarchy the children are at.
+     */
+    public Feature getLabel(int vertex, int depth, int position) {
+        return levels.get(depth).decode(childKeys[vertex][position]);
+    }
+
+    /**
+     * Compares the label of a child with a Feature.
+     *
+     * @param depth level of the hierarchy the children are at.
+     */
+    public int compare(int vertex, int depth, int position, Feature feature) {
+        return levels.get(depth).compare(
+                childKeys[vertex][position], feature);
+    }
+
+    /**
+     * Locates the child whose label is equal to a Feature.
+     *
+     * @param depth level of the hierarchy the children are at.
+     * @return position of the child, or -1 if there is no such child.
+     */
+    public int find(int vertex, int depth, Feature feature) {
+        if (feature.getType() == FeatureType.NULL) {
+            return (firstValue(vertex) == 1) ? 0 : -1;
+        }
+
+        Level level = levels.get(depth);
+        if (level.ordered() == false) {
+            int key = level.lookup(feature);
+            if (key == WILDCARD) {
+                return -1;
+            }
+            return Math.max(-1, search(vertex, key));
+        }
+
+        int position = lowerBound(vertex, depth, feature);
+        if (position < childCounts[vertex]
+                && level.compare(childKeys[vertex][position], feature) == 0) {
+            return position;
+        }
+        return -1;
+    }
+
+    /**
+     * Locates the first child with a label greater than or equal to a Feature
+     * using a binary search.  Only valid for ordered levels; wildcards are
+     * never included.
+     *
+     * @param depth level of the hierarchy the children are at.
+     */
+    public int lowerBound(int vertex, int depth, Feature feature) {
+        return bound(vertex, depth, feature, false);
+    }
+
+    /**
+     * Locates the first child with a label greater than a Feature using a
+     * binary search.  Only valid for ordered levels; wildcards are never
+     * included.
+     *
+     * @param depth level of the hierarchy the children are at.
+     */
+    public int upperBound(int vertex, int depth, Feature feature) {
+        return bound(vertex, depth, feature, true);
+    }
+
+    private int bound(int vertex, int depth, Feature feature, boolean upper) {
+        Level level = levels.get(depth);
+        int[] keys = childKeys[vertex];
+        int low = firstValue(vertex);
+        int high = childCounts[vertex];
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int compare = level.compare(keys[mid], feature);
+            if (compare < 0 || (upper && compare == 0)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    public DataContainer getData(int vertex) {
+        return data[vertex];
+    }
+
+    /**
+     * Retrieves the ordering of Feature names in this graph hierarchy.
+     */
+    public FeatureHierarchy getFeatureHierarchy() {
+        FeatureHierarchy hierarchy = new FeatureHierarchy();
+        for (Level level : levels) {
+            try {
+                hierarchy.addFeature(level.name, level.type);
+            } catch (GraphException e) {
+                /* If a GraphException is thrown here, something is seriously
+                 * wrong. */
+                logger.severe("NULL FeatureType found in graph hierarchy!");
+            }
+        }
+        return hierarchy;
+    }
+
+    public GraphMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Estimates the amount of memory used to store the structure of the
+     * graph, in bytes.  DataContainers are not included.
+     */
+    public long estimateMemoryUsage() {
+        /* Array headers are assumed to be 16 bytes, references 4 bytes */
+        long bytes = 4 * (16 + 4L * childCounts.length);
+        for (int i = 0; i < numVertices; ++i) {
+            if (childKeys[i] != null) {
+                bytes += 2 * (16 + 4L * childKeys[i].length);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Merges a serialized graph (as produced by {@link #serialize} or
+     * {@link Sketch}-based queries) into this Sketch.  DataContainers in the
+     * incoming graph replace existing ones.
+     */
+    public void merge(SerializationInputStream in)
+    throws IOException, SerializationException {
+        /* Since the incoming graph includes a root vertex, we need to skip
+         * over it to avoid having two roots! */
+        new Feature(in);
+        if (in.readBoolean()) {
+            new DataContainer(in);
+        }
+        int numNeighbors = in.readInt();
+        for (int i = 0; i < numNeighbors; ++i) {
+            merge(ROOT, 0, in);
+        }
+    }
+
+    private void merge(int vertex, int depth, SerializationInputStream in)
+    throws IOException, SerializationException {
+        Feature label = new Feature(in);
+        boolean hasData = in.readBoolean();
+        DataContainer container = null;
+        if (hasData) {
+            container = new DataContainer(in);
+        }
+
+        if (depth == levels.size()) {
+            addLevel(label.getName(), label.getType());
+        }
+
+        Level level = levels.get(depth);
+        if (level.name.equals(label.getName()) == false) {
+            throw new SerializationException("Feature <" + label + "> "
+                    + "does not belong at graph level " + depth);
+        }
+
+        int key;
+        if (label.getType() == FeatureType.NULL) {
+            key = WILDCARD;
+        } else {
+            if (level.type == FeatureType.NULL) {
+                level.setType(label.getType(), quantizers.get(level.name));
+            } else if (level.type != label.getType()) {
+                throw new SerializationException("Feature <" + label + "> "
+                        + "does not match the type of graph level " + depth
+                        + " (" + level.type + ")");
+            }
+
+            try {
+                key = level.encode(label);
+            } catch (GraphException e) {
+                throw new SerializationException(
+                        "Could not merge feature <" + label + ">", e);
+            }
+        }
+
+        int connection = connect(vertex, key, container, true);
+
+        int numNeighbors = in.readInt();
+        for (int i = 0; i < numNeighbors; ++i) {
+            merge(connection, depth + 1, in);
+        }
+    }
+
+    /**
+     * Serializes the graph in the format read by {@link #merge} and
+     * {@link Sketch#merge}.
+     */
+    public void serialize(SerializationOutputStream out)
+    throws IOException {
+        serialize(out, new BitSet());
+    }
+
+    /**
+     * Serializes the graph in the format read by {@link #merge} and
+     * {@link Sketch#merge}, leaving out a set of vertices (and their
+     * descendants).
+     *
+     * @param excluded IDs of the vertices to leave out.
+     */
+    public void serialize(SerializationOutputStream out, BitSet excluded)
+    throws IOException {
+        serialize(ROOT, new Feature(), -1, excluded, out);
+    }
+
+    private void serialize(int vertex, Feature label, int depth,
+            BitSet excluded, SerializationOutputStream out)
+    throws IOException {
+        label.serialize(out);
+        out.writeBoolean(data[vertex] != null);
+        if (data[vertex] != null) {
+            data[vertex].serialize(out);
+        }
+
+        int count = childCounts[vertex];
+        int validNeighbors = 0;
+        for (int i = 0; i < count; ++i) {
+            if (excluded.get(childIds[vertex][i]) == false) {
+                validNeighbors++;
+            }
+        }
+        out.writeInt(validNeighbors);
+
+        for (int i = 0; i < count; ++i) {
+            int child = childIds[vertex][i];
+            if (excluded.get(child) == false) {
+                serialize(child, getLabel(vertex, depth + 1, i), depth + 1,
+                        excluded, out);
+            }
+        }
+    }
+
+    public void query(Query query)
+    throws QueryException {
+        query.setGraphMetrics(this.metrics);
+        query.execute(this);
+    }
+}
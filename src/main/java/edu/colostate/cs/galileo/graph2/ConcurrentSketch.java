@@ -0,0 +1,360 @@
+package edu.colostate.cs.galileo.graph2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import edu.colostate.cs.galileo.dataset.Pair;
+import edu.colostate.cs.galileo.dataset.analysis.Quantizer;
+import edu.colostate.cs.galileo.dataset.feature.Feature;
+import edu.colostate.cs.galileo.dataset.feature.FeatureType;
+import edu.colostate.cs.galileo.graph.FeatureHierarchy;
+import edu.colostate.cs.galileo.graph.GraphException;
+import edu.colostate.cs.galileo.query2.FramedResultWriter;
+import edu.colostate.cs.galileo.query2.PartitionQuery;
+import edu.colostate.cs.galileo.query2.Query;
+import edu.colostate.cs.galileo.query2.QueryException;
+import edu.colostate.cs.galileo.query2.RelationalQuery;
+import edu.colostate.cs.galileo.serialization.SerializationException;
+import edu.colostate.cs.galileo.serialization.SerializationInputStream;
+import edu.colostate.cs.galileo.serialization.SerializationOutputStream;
+import edu.colostate.cs.galileo.stat.StatisticsArena;
+
+/**
+ * A thread-safe {@link Sketch}.  The graph is split into stripes by the
+ * label of each path's first vertex (the top level of the hierarchy); each
+ * stripe is an independent Sketch containing a disjoint set of top-level
+ * subtrees, guarded by its own read/write lock.  Writers only lock the stripe
+ * their path belongs to, so paths in different subtrees are inserted in
+ * parallel.  Queries lock every stripe for reading before they begin, so they
+ * see a consistent view of the entire graph while writers wait.
+ * <p>
+ * Since all the stripes must agree on the order of the hierarchy, it is fixed
+ * when the ConcurrentSketch is created: paths containing features that are
+ * not part of the hierarchy are rejected.
+ */
+public class ConcurrentSketch {
+
+    /** Default number of stripes per available processor. */
+    public static final int STRIPES_PER_CORE = 4;
+
+    private Sketch[] stripes;
+    private ReentrantReadWriteLock[] locks;
+
+    private FeatureHierarchy hierarchy;
+    private String topLevel;
+    private Map<String, FeatureType> features = new HashMap<>();
+
+    public ConcurrentSketch(FeatureHierarchy hierarchy) {
+        this(hierarchy,
+                Runtime.getRuntime().availableProcessors() * STRIPES_PER_CORE,
+                null);
+    }
+
+    /**
+     * Creates a ConcurrentSketch with a set Feature hierarchy.
+     *
+     * @param hierarchy Graph hierarchy represented as a
+     * {@link FeatureHierarchy}.
+     * @param numStripes number of independently-locked stripes.
+     * @param arena {@link StatisticsArena} to store leaf statistics in, or
+     * null to keep them on the heap.
+     */
+    public ConcurrentSketch(FeatureHierarchy hierarchy, int numStripes,
+            StatisticsArena arena) {
+        if (hierarchy.size() == 0) {
+            throw new IllegalArgumentException(
+                    "Feature hierarchy cannot be empty");
+        }
+        if (numStripes <= 0) {
+            throw new IllegalArgumentException(
+                    "Number of stripes must be positive");
+        }
+
+        this.hierarchy = hierarchy;
+        for (Pair<String, FeatureType> feature : hierarchy) {
+            if (topLevel == null) {
+                topLevel = feature.a;
+            }
+            features.put(feature.a, feature.b);
+        }
+
+        stripes = new Sketch[numStripes];
+        locks = new ReentrantReadWriteLock[numStripes];
+        for (int i = 0; i < numStripes; ++i) {
+            stripes[i] = new Sketch(hierarchy, arena);
+            locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * Determines which stripe a top-level label belongs to.
+     */
+    private int stripe(Feature topLabel) {
+        return (topLabel.hashCode() & Integer.MAX_VALUE) % stripes.length;
+    }
+
+    /**
+     * Adds a new {@link Path} to the Sketch.
+     *
+     * @see Sketch#addPath(Path)
+     */
+    public void addPath(Path path)
+    throws FeatureTypeMismatchException, GraphException {
+        Feature topLabel = new Feature(topLevel);
+        for (Feature label : path.getLabels()) {
+            if (features.containsKey(label.getName()) == false) {
+                throw new GraphException("Feature '" + label.getName()
+                        + "' is not part of the Sketch hierarchy");
+            }
+
+            if (label.getName().equals(topLevel)) {
+                topLabel = label;
+            }
+        }
+
+        int stripe = stripe(topLabel);
+        Lock lock = locks[stripe].writeLock();
+        lock.lock();
+        try {
+            stripes[stripe].addPath(path);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Prepares this Sketch for bulk ingest with {@link #addRecord}.
+     *
+     * @see Sketch#prepareRecords(List, Map)
+     */
+    public void prepareRecords(List<String> featureNames,
+            Map<String, Quantizer> quantizers)
+    throws GraphException {
+        lockAll(true);
+        try {
+            for (Sketch stripe : stripes) {
+                stripe.prepareRecords(featureNames, quantizers);
+            }
+        } finally {
+            unlockAll(true);
+        }
+    }
+
+    /**
+     * Adds a record to the Sketch.
+     *
+     * @see Sketch#addRecord(double[], String)
+     */
+    public void addRecord(double[] values, String location) {
+        int stripe = stripe(stripes[0].recordLabel(0, values));
+        Lock lock = locks[stripe].writeLock();
+        lock.lock();
+        try {
+            stripes[stripe].addRecord(values, location);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Merges a serialized graph into this Sketch.  Each top-level subtree is
+     * merged into its stripe separately.
+     *
+     * @see Sketch#merge(SerializationInputStream)
+     */
+    public void merge(SerializationInputStream in)
+    throws IOException, SerializationException {
+        /* Skip over the incoming root vertex */
+        new Feature(in);
+        if (in.readBoolean()) {
+            new DataContainer(in);
+        }
+
+        int numNeighbors = in.readInt();
+        for (int i = 0; i < numNeighbors; ++i) {
+            Feature label = new Feature(in);
+            int stripe = stripe(label);
+            Lock lock = locks[stripe].writeLock();
+            lock.lock();
+            try {
+                stripes[stripe].mergeSubtree(label, in);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Executes a query against each stripe in turn.  This is suitable for
+     * queries that accumulate their results across executions, such as
+     * MetaQuery; use {@link #query(RelationalQuery, SerializationOutputStream)}
+     * for relational queries.
+     */
+    public void query(Query query)
+    throws QueryException {
+        lockAll(false);
+        try {
+            for (Sketch stripe : stripes) {
+                if (stripe.getRoot().numNeighbors() > 0) {
+                    stripe.query(query);
+                }
+            }
+        } finally {
+            unlockAll(false);
+        }
+    }
+
+    /**
+     * Executes a relational query and serializes its results as a single
+     * graph, in the format read by {@link Sketch#merge}.  PartitionQuery
+     * removes the matching vertices, so it locks the stripes for writing.
+     */
+    public void query(RelationalQuery query, SerializationOutputStream out)
+    throws IOException, QueryException {
+        boolean write = query instanceof PartitionQuery;
+        lockAll(write);
+        try {
+            /* The results of each stripe are serialized separately, since the
+             * number of matching top-level subtrees must be written first.
+             * The stripes' root vertices are then stripped off and their
+             * children combined under a single root. */
+            ByteArrayOutputStream results = new ByteArrayOutputStream();
+            int matches = 0;
+            for (Sketch stripe : stripes) {
+                if (stripe.getRoot().numNeighbors() == 0) {
+                    continue;
+                }
+                stripe.query(query);
+
+                ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+                SerializationOutputStream stripeOut
+                    = new SerializationOutputStream(byteOut);
+                query.serializeResults(stripe.getRoot(), stripeOut);
+                stripeOut.flush();
+                if (byteOut.size() == 0) {
+                    /* The entire stripe was pruned */
+                    continue;
+                }
+
+                byte[] bytes = byteOut.toByteArray();
+                SerializationInputStream in = new SerializationInputStream(
+                        new ByteArrayInputStream(bytes));
+                try {
+                    new Feature(in);
+                    if (in.readBoolean()) {
+                        new DataContainer(in);
+                    }
+                    matches += in.readInt();
+                } catch (SerializationException e) {
+                    throw new QueryException(
+                            "Could not read stripe results: " + e);
+                }
+                int remaining = in.available();
+                results.write(bytes, bytes.length - remaining, remaining);
+            }
+
+            new Feature().serialize(out);
+            out.writeBoolean(false);
+            out.writeInt(matches);
+            results.writeTo(out);
+        } finally {
+            unlockAll(write);
+        }
+    }
+
+    /**
+     * Executes a relational query and streams its results as a sequence of
+     * frames.  Each stripe's results begin a new frame.
+     */
+    public void query(RelationalQuery query, FramedResultWriter writer)
+    throws IOException, QueryException {
+        boolean write = query instanceof PartitionQuery;
+        lockAll(write);
+        try {
+            for (Sketch stripe : stripes) {
+                if (stripe.getRoot().numNeighbors() == 0) {
+                    continue;
+                }
+                stripe.query(query);
+                query.serializeResults(stripe.getRoot(), writer);
+            }
+            writer.finish();
+        } finally {
+            unlockAll(write);
+        }
+    }
+
+    private void lockAll(boolean write) {
+        /* Stripes are always locked in the same order, and writers only ever
+         * hold one stripe's lock, so this cannot deadlock. */
+        for (ReentrantReadWriteLock lock : locks) {
+            if (write) {
+                lock.writeLock().lock();
+            } else {
+                lock.readLock().lock();
+            }
+        }
+    }
+
+    private void unlockAll(boolean write) {
+        for (int i = locks.length - 1; i >= 0; --i) {
+            if (write) {
+                locks[i].writeLock().unlock();
+            } else {
+                locks[i].readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Retrieves the number of vertices and leaves in the graph.
+     *
+     * @return a snapshot of the combined metrics of every stripe.
+     */
+    public GraphMetrics getMetrics() {
+        GraphMetrics metrics = new GraphMetrics();
+        lockAll(false);
+        try {
+            for (Sketch stripe : stripes) {
+                metrics.addVertices(stripe.getMetrics().getVertexCount());
+                metrics.addLeaves(stripe.getMetrics().getLeafCount());
+            }
+        } finally {
+            unlockAll(false);
+        }
+        return metrics;
+    }
+
+    /**
+     * Retrieves the number of vertices and leaves stored under a geohash
+     * prefix.
+     *
+     * @see GeoTrie#query(String)
+     */
+    public CountContainer queryGeoTrie(String geohash) {
+        CountContainer counts = new CountContainer();
+        lockAll(false);
+        try {
+            for (Sketch stripe : stripes) {
+                counts.merge(stripe.geoTrie.query(geohash));
+            }
+        } finally {
+            unlockAll(false);
+        }
+        return counts;
+    }
+
+    public FeatureHierarchy getFeatureHierarchy() {
+        return hierarchy;
+    }
+
+    public int numStripes() {
+        return stripes.length;
+    }
+}
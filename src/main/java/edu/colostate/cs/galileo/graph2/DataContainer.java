@@ -20,7 +20,30 @@ public class DataContainer implements ByteSerializable {
     }
 
     public void merge(DataContainer container) {
-        statistics.merge(container.statistics);
+        container.mergeInto(statistics);
+    }
+
+    /**
+     * Merges the statistics held by this container into another set of
+     * statistics.
+     */
+    protected void mergeInto(RunningStatisticsND target) {
+        target.merge(statistics);
+    }
+
+    /**
+     * Retrieves the statistics held by this container.  Containers that do
+     * not store their statistics on the heap return a copy.
+     */
+    public RunningStatisticsND getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Adds a new set of samples to the statistics held by this container.
+     */
+    public void put(double... samples) {
+        statistics.put(samples);
     }
 
     public void clear() {
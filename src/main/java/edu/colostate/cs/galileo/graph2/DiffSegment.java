@@ -0,0 +1,168 @@
+package edu.colostate.cs.galileo.graph2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import edu.colostate.cs.galileo.dataset.feature.Feature;
+import edu.colostate.cs.galileo.serialization.ByteSerializable;
+import edu.colostate.cs.galileo.serialization.SerializationException;
+import edu.colostate.cs.galileo.serialization.SerializationInputStream;
+import edu.colostate.cs.galileo.serialization.SerializationOutputStream;
+
+/**
+ * A numbered entry in a sketch diff log.  Each segment holds the changes made
+ * to a Sketch since the previous segment was produced, as a compressed graph
+ * in the format read by {@link Sketch#merge}, along with a checksum of the
+ * compressed graph.
+ *
+ * @see SketchDiffLog
+ */
+public class DiffSegment implements ByteSerializable {
+
+    private long sequence;
+    private long checksum;
+    private byte[] payload;
+
+    /**
+     * Creates a segment from the contents of a diff Sketch.
+     *
+     * @param sequence the position of this segment in the log; segments are
+     * numbered consecutively, starting at 1.
+     */
+    public DiffSegment(long sequence, Sketch diff)
+    throws IOException {
+        ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+        SerializationOutputStream out = new SerializationOutputStream(
+                new GZIPOutputStream(byteOut));
+        write(diff.getRoot(), out);
+        out.close();
+
+        this.sequence = sequence;
+        this.payload = byteOut.toByteArray();
+        this.checksum = checksum(payload);
+    }
+
+    private static void write(Vertex vertex, SerializationOutputStream out)
+    throws IOException {
+        vertex.getLabel().serialize(out);
+        out.writeBoolean(vertex.hasData());
+        if (vertex.hasData() == true) {
+            vertex.getData().serialize(out);
+        }
+
+        out.writeInt(vertex.numNeighbors());
+        for (Vertex v : vertex.getAllNeighbors()) {
+            write(v, out);
+        }
+    }
+
+    private static long checksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return crc.getValue();
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Determines whether the segment's payload matches its checksum.
+     */
+    public boolean verify() {
+        return checksum(payload) == checksum;
+    }
+
+    /**
+     * Verifies and decompresses the segment's graph.  The decompressed graph
+     * is walked once before it is returned, so a segment that decodes
+     * successfully can be merged without failing partway through.
+     *
+     * @return the serialized graph, ready to be passed to
+     * {@link Sketch#merge}.
+     *
+     * @throws SerializationException if the segment is damaged: its checksum
+     * does not match, or its payload is not a complete graph.
+     */
+    public byte[] decode()
+    throws IOException, SerializationException {
+        if (verify() == false) {
+            throw new SerializationException("Checksum mismatch in diff "
+                    + "segment " + sequence);
+        }
+
+        byte[] graph;
+        try {
+            ByteArrayOutputStream byteOut
+                = new ByteArrayOutputStream(payload.length * 4);
+            GZIPInputStream in = new GZIPInputStream(
+                    new ByteArrayInputStream(payload));
+            byte[] buf = new byte[8192];
+            int read;
+            while ((read = in.read(buf)) != -1) {
+                byteOut.write(buf, 0, read);
+            }
+            in.close();
+            graph = byteOut.toByteArray();
+
+            SerializationInputStream graphIn = new SerializationInputStream(
+                    new ByteArrayInputStream(graph));
+            new Feature(graphIn);
+            checkVertex(graphIn);
+            if (graphIn.read() != -1) {
+                throw new SerializationException("Trailing bytes after "
+                        + "graph");
+            }
+        } catch (IOException | RuntimeException | SerializationException e) {
+            /* The payload passed its checksum, so it was damaged before it
+             * was sealed; asking for it again will not help either way. */
+            throw new SerializationException("Malformed graph in diff "
+                    + "segment " + sequence, e);
+        }
+
+        return graph;
+    }
+
+    /**
+     * Reads past a vertex (after its label) and all of its descendants,
+     * following the layout produced by {@link #write}.
+     */
+    private static void checkVertex(SerializationInputStream in)
+    throws IOException, SerializationException {
+        if (in.readBoolean() == true) {
+            new DataContainer(in);
+        }
+
+        int numNeighbors = in.readInt();
+        if (numNeighbors < 0) {
+            throw new SerializationException("Negative neighbor count");
+        }
+        for (int i = 0; i < numNeighbors; ++i) {
+            new Feature(in);
+            checkVertex(in);
+        }
+    }
+
+    @Deserialize
+    public DiffSegment(SerializationInputStream in)
+    throws IOException {
+        sequence = in.readLong();
+        checksum = in.readLong();
+        /* readFully, so a truncated segment fails here rather than in the
+         * checksum */
+        payload = new byte[in.readInt()];
+        in.readFully(payload);
+    }
+
+    @Override
+    public void serialize(SerializationOutputStream out)
+    throws IOException {
+        out.writeLong(sequence);
+        out.writeLong(checksum);
+        out.writeField(payload);
+    }
+}
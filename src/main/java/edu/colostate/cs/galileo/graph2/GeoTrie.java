@@ -26,8 +26,11 @@ software, even if advised of the possibility of such damage.
 package edu.colostate.cs.galileo.graph2;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 import edu.colostate.cs.galileo.dataset.feature.Feature;
 
@@ -75,6 +78,34 @@ public class GeoTrie {
         }
     }
 
+    /**
+     * Retrieves the counts stored under every geohash prefix of a given
+     * length.
+     *
+     * @return map of each prefix present in the trie to the total counts of
+     * the geohashes that begin with it.
+     */
+    public Map<String, CountContainer> queryPrefixes(int length) {
+        Map<String, CountContainer> prefixes = new TreeMap<>();
+        queryPrefixes(root, "", length, prefixes);
+        return prefixes;
+    }
+
+    private void queryPrefixes(Vertex vertex, String prefix, int length,
+            Map<String, CountContainer> prefixes) {
+        if (prefix.length() == length) {
+            CountContainer cc = new CountContainer();
+            query(vertex, Collections.<Vertex>emptyIterator(), cc);
+            prefixes.put(prefix, cc);
+            return;
+        }
+
+        for (Vertex v : vertex.getAllNeighbors()) {
+            queryPrefixes(v, prefix + v.getLabel().getString(), length,
+                    prefixes);
+        }
+    }
+
     private Vertex findVertex(String geohash) {
         return findVertex(this.root, hashToPath(geohash).iterator());
     }
@@ -4,6 +4,7 @@ public class GraphMetrics implements Cloneable {
 
     private long vertices;
     private long leaves;
+    private int vertexIds = 1;
 
     public GraphMetrics() {
 
@@ -78,6 +79,22 @@ public class GraphMetrics implements Cloneable {
         this.leaves -= leaves;
     }
 
+    /**
+     * Allocates an ID for a vertex that is being added to the graph.  IDs are
+     * never reused, so they remain dense enough to index bit sets even after
+     * vertices are removed.  The root vertex of a graph always has ID 0.
+     */
+    public int newVertexId() {
+        return this.vertexIds++;
+    }
+
+    /**
+     * @return an upper bound (exclusive) on the vertex IDs allocated so far.
+     */
+    public int getVertexIdLimit() {
+        return this.vertexIds;
+    }
+
     public long getVertexCount() {
         return this.vertices;
     }
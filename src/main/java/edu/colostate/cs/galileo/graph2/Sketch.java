@@ -1,12 +1,14 @@
 package edu.colostate.cs.galileo.graph2;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.NavigableMap;
 import java.util.logging.Logger;
 import java.util.Map;
@@ -14,15 +16,18 @@ import java.util.Queue;
 import java.util.Set;
 
 import edu.colostate.cs.galileo.dataset.Pair;
+import edu.colostate.cs.galileo.dataset.analysis.Quantizer;
 import edu.colostate.cs.galileo.dataset.feature.Feature;
 import edu.colostate.cs.galileo.dataset.feature.FeatureType;
 import edu.colostate.cs.galileo.graph.FeatureHierarchy;
 import edu.colostate.cs.galileo.graph.GraphException;
+import edu.colostate.cs.galileo.query2.ParallelQueryExecutor;
 import edu.colostate.cs.galileo.query2.Query;
 import edu.colostate.cs.galileo.query2.QueryException;
 import edu.colostate.cs.galileo.serialization.SerializationException;
 import edu.colostate.cs.galileo.serialization.SerializationInputStream;
 import edu.colostate.cs.galileo.stat.RunningStatisticsND;
+import edu.colostate.cs.galileo.stat.StatisticsArena;
 
 public class Sketch {
 
@@ -45,6 +50,16 @@ public class Sketch {
      */
     private Queue<String> features = new LinkedList<>();
 
+    /** Off-heap storage for leaf statistics, if enabled */
+    private StatisticsArena arena;
+
+    /** Level layout used by {@link #addRecord}, if prepared */
+    private RecordLayout recordLayout;
+
+    /** Vertex and leaf counts when the GeoTrie was last updated by a merge */
+    private long mergedVertices;
+    private long mergedLeaves;
+
     /**
      * Tracks information about each level in the graph hierarchy.
      */
@@ -60,6 +75,130 @@ public class Sketch {
 
     }
 
+    /**
+     * Pre-resolves the labels and statistics inputs for each level of the
+     * hierarchy, so that records can be added without consulting the
+     * hierarchy or allocating Features.
+     */
+    private class RecordLayout {
+
+        /** Position of each level's value in incoming records, or -1 */
+        public int[] positions;
+
+        /** Quantizer tick marks for each level */
+        public double[][] ticks;
+
+        /** Canonical vertex labels for each tick mark */
+        public Feature[][] labels;
+
+        /** Canonical wildcard labels for each level */
+        public Feature[] wildcards;
+
+        public String locationName;
+        public Map<String, Feature> locations = new HashMap<>();
+
+        /** Reused buffer for the samples of each record */
+        public double[] samples;
+
+        public RecordLayout(List<String> featureNames,
+                Map<String, Quantizer> quantizers)
+        throws GraphException {
+            int numLevels = features.size() - 1;
+            if (numLevels < 0) {
+                throw new GraphException("Sketch hierarchy is empty");
+            }
+
+            String[] names = features.toArray(new String[features.size()]);
+            locationName = names[numLevels];
+            if (levels.get(locationName).type != FeatureType.STRING) {
+                throw new GraphException("The last level of the hierarchy "
+                        + "must be a location string; found: "
+                        + locationName);
+            }
+
+            positions = new int[numLevels];
+            ticks = new double[numLevels][];
+            labels = new Feature[numLevels][];
+            wildcards = new Feature[numLevels];
+            samples = new double[numLevels];
+
+            for (String name : featureNames) {
+                HierarchyLevel level = levels.get(name);
+                if (level == null || level.order == numLevels) {
+                    throw new GraphException("Feature '" + name + "' is not "
+                            + "a non-location level of the Sketch hierarchy");
+                }
+            }
+
+            for (int i = 0; i < numLevels; ++i) {
+                String name = names[i];
+                positions[i] = featureNames.indexOf(name);
+                wildcards[i] = new Feature(name);
+                if (positions[i] == -1) {
+                    continue;
+                }
+
+                Quantizer quantizer = quantizers.get(name);
+                if (quantizer == null) {
+                    throw new GraphException(
+                            "No Quantizer for feature '" + name + "'");
+                }
+
+                List<Feature> tickList = quantizer.getTicks();
+                ticks[i] = new double[tickList.size()];
+                labels[i] = new Feature[tickList.size()];
+                for (int j = 0; j < tickList.size(); ++j) {
+                    ticks[i][j] = tickList.get(j).getDouble();
+                    labels[i][j] = new Feature(name, tickList.get(j));
+                }
+            }
+        }
+
+        /**
+         * Retrieves the label for a level of a record, storing the quantized
+         * value in the samples buffer.  NaN values are treated as missing.
+         */
+        public Feature label(int level, double[] values) {
+            int tick = tick(level, values);
+            if (tick == -1) {
+                samples[level] = 0.0;
+                return wildcards[level];
+            }
+
+            samples[level] = ticks[level][tick];
+            return labels[level][tick];
+        }
+
+        /**
+         * Quantizes the value of a level of a record.  The bucket is the
+         * tick at or below the value, or the first tick for values below the
+         * range.
+         *
+         * @return index of the tick, or -1 if the value is missing.
+         */
+        public int tick(int level, double[] values) {
+            int position = positions[level];
+            if (position == -1 || Double.isNaN(values[position])) {
+                return -1;
+            }
+
+            int tick = Arrays.binarySearch(ticks[level], values[position]);
+            if (tick < 0) {
+                tick = Math.max(0, -(tick + 1) - 1);
+            }
+            return tick;
+        }
+
+        public Feature location(String location) {
+            Feature label = locations.get(location);
+            if (label == null) {
+                label = new Feature(locationName, location);
+                locations.put(location, label);
+            }
+            return label;
+        }
+    }
+
     public Sketch() {
 
     }
@@ -77,6 +216,19 @@ public class Sketch {
         }
     }
 
+    /**
+     * Creates a HierarchicalGraph with a set Feature hierarchy that stores the
+     * statistics of its leaves off-heap.
+     *
+     * @param hierarchy Graph hierarchy represented as a
+     * {@link FeatureHierarchy}.
+     * @param arena {@link StatisticsArena} to store leaf statistics in.
+     */
+    public Sketch(FeatureHierarchy hierarchy, StatisticsArena arena) {
+        this(hierarchy);
+        this.arena = arena;
+    }
+
     /**
      * When a path does not contain a particular Feature, we use a null feature
      * (FeatureType.NULL) to act as a "wildcard" in the graph so that the path
@@ -122,18 +274,112 @@ public class Sketch {
         /* Place the path payload (traversal result) at the end of this path. */
         path.get(path.size() - 1).setData(container);
 
-        GraphMetrics oldMetrics = null;
-        try {
-            oldMetrics = (GraphMetrics) this.metrics.clone();
-        } catch (Exception e) { }
-        root.addPath(path.iterator(), this.metrics);
+        long vertices = this.metrics.getVertexCount();
+        long leaves = this.metrics.getLeafCount();
+        Vertex leaf = root.addPath(path.iterator(), this.metrics);
+        moveOffHeap(leaf, null);
+
+        updateGeoTrie(path.get(path.size() - 1).getLabel().getString(),
+                vertices, leaves);
+    }
+
+    /**
+     * Prepares this Sketch for bulk ingest with {@link #addRecord}.  The
+     * hierarchy must already contain every feature, with the location string
+     * at the last level; each of the other levels is quantized with its
+     * Quantizer.
+     *
+     * @param featureNames names of the values in each record passed to
+     * addRecord, in order.  Levels that are not named are always wildcards.
+     * @param quantizers Quantizers for each of the named features.
+     */
+    public void prepareRecords(List<String> featureNames,
+            Map<String, Quantizer> quantizers)
+    throws GraphException {
+        this.recordLayout = new RecordLayout(featureNames, quantizers);
+    }
+
+    /**
+     * Adds a record to the Sketch.  This is equivalent to building a
+     * {@link Path} of quantized Features and passing it to {@link #addPath},
+     * but existing vertices and leaves are updated in place: once the
+     * vertices a record passes through exist, adding it allocates nothing.
+     * {@link #prepareRecords} must be called first.
+     *
+     * @param values feature values, in the order given to prepareRecords.
+     * NaN values are treated as missing.
+     * @param location location (geohash) of the record.
+     */
+    public void addRecord(double[] values, String location) {
+        RecordLayout layout = this.recordLayout;
+        if (layout == null) {
+            throw new IllegalStateException(
+                    "prepareRecords() has not been called");
+        }
+
+        long vertices = this.metrics.getVertexCount();
+        long leaves = this.metrics.getLeafCount();
+
+        Vertex vertex = root;
+        for (int i = 0; i < layout.samples.length; ++i) {
+            Feature label = layout.label(i, values);
+            Vertex next = vertex.getNeighbor(label);
+            if (next == null) {
+                next = vertex.connect(new Vertex(label), false, this.metrics);
+            }
+            vertex = next;
+        }
 
-        if (oldMetrics.equals(this.metrics) == false) {
-            long a = this.metrics.getVertexCount() - oldMetrics.getVertexCount();
-            long b = this.metrics.getLeafCount() - oldMetrics.getLeafCount();
-            geoTrie.addHash(
-                    path.get(path.size() - 1).getLabel().getString(),
-                    new CountContainer(a, b));
+        Feature label = layout.location(location);
+        Vertex leaf = vertex.getNeighbor(label);
+        if (leaf != null && leaf.hasData()) {
+            leaf.getData().put(layout.samples);
+            return;
+        }
+
+        DataContainer container = new DataContainer(
+                new RunningStatisticsND(layout.samples));
+        if (leaf == null) {
+            leaf = vertex.connect(
+                    new Vertex(label, container), false, this.metrics);
+        } else {
+            leaf.setData(container);
+        }
+        moveOffHeap(leaf, null);
+
+        updateGeoTrie(location, vertices, leaves);
+    }
+
+    /**
+     * Retrieves the label a record would be given at a level of the
+     * hierarchy, without modifying the Sketch.  {@link #prepareRecords} must
+     * be called first.
+     */
+    Feature recordLabel(int level, double[] values) {
+        RecordLayout layout = this.recordLayout;
+        if (layout == null) {
+            throw new IllegalStateException(
+                    "prepareRecords() has not been called");
+        }
+
+        int tick = layout.tick(level, values);
+        if (tick == -1) {
+            return layout.wildcards[level];
+        }
+        return layout.labels[level][tick];
+    }
+
+    /**
+     * Records the vertices and leaves added by an insertion in the GeoTrie.
+     *
+     * @param vertices vertex count before the insertion.
+     * @param leaves leaf count before the insertion.
+     */
+    private void updateGeoTrie(String location, long vertices, long leaves) {
+        long a = this.metrics.getVertexCount() - vertices;
+        long b = this.metrics.getLeafCount() - leaves;
+        if (a != 0 || b != 0) {
+            geoTrie.addHash(location, new CountContainer(a, b));
         }
     }
 
@@ -279,6 +525,28 @@ public class Sketch {
         return order;
     }
 
+    /**
+     * When off-heap statistics are enabled, moves the DataContainer of a
+     * vertex that was just added or updated into the {@link StatisticsArena}.
+     *
+     * @param previous the DataContainer the vertex held before it was
+     * updated.  If it was replaced, its off-heap record is released.
+     */
+    private void moveOffHeap(Vertex vertex, DataContainer previous) {
+        if (arena == null) {
+            return;
+        }
+
+        DataContainer data = vertex.getData();
+        if (previous instanceof SlabDataContainer && previous != data) {
+            ((SlabDataContainer) previous).release();
+        }
+
+        if (data != null && data.getClass() == DataContainer.class) {
+            vertex.setData(new SlabDataContainer(arena, data.statistics));
+        }
+    }
+
     /**
      * Retrieves the ordering of Feature names in this graph hierarchy.
      */
@@ -305,32 +573,80 @@ public class Sketch {
     }
 
     public void merge(SerializationInputStream in)
+    throws IOException, SerializationException {
+        merge(in, true);
+    }
+
+    /**
+     * Merges a serialized graph into this Sketch.
+     *
+     * @param overwriteData If set to true, the data of leaves that already
+     *     exist in this Sketch is replaced by the incoming data; otherwise the
+     *     incoming statistics are added to it.
+     */
+    public void merge(SerializationInputStream in, boolean overwriteData)
     throws IOException, SerializationException {
         /* Since the incoming Sketch includes a root Vertex, we need to skip
          * over it to avoid having two roots! */
         new Feature(in);
         in.readBoolean();
         int numNeighbors = in.readInt();
+        this.mergedVertices = this.metrics.getVertexCount();
+        this.mergedLeaves = this.metrics.getLeafCount();
         for (int i = 0; i < numNeighbors; ++i) {
-            merge(this.root, in);
+            merge(this.root, new Feature(in), in, overwriteData);
         }
     }
 
-    private void merge(Vertex vertex, SerializationInputStream in)
+    /**
+     * Merges a serialized subtree into the children of the root vertex.  The
+     * label of the subtree's first vertex has already been read from the
+     * stream.
+     */
+    void mergeSubtree(Feature label, SerializationInputStream in)
+    throws IOException, SerializationException {
+        this.mergedVertices = this.metrics.getVertexCount();
+        this.mergedLeaves = this.metrics.getLeafCount();
+        merge(this.root, label, in, true);
+    }
+
+    private void merge(Vertex vertex, Feature label,
+            SerializationInputStream in, boolean overwriteData)
     throws IOException, SerializationException {
-        Feature label = new Feature(in);
         boolean hasData = in.readBoolean();
         DataContainer data = null;
         if (hasData) {
             data = new DataContainer(in);
         }
 
-        Vertex connection = vertex.connect(
-                new Vertex(label, data), true, this.metrics);
+        Vertex existing = vertex.getNeighbor(label);
+        Vertex connection;
+        if (existing != null && data == null) {
+            /* A vertex without data only describes the structure of the
+             * graph (such as the ancestors repeated at the start of each
+             * result frame), so it must not clear the existing data. */
+            connection = existing;
+        } else {
+            DataContainer previous = null;
+            if (existing != null) {
+                previous = existing.getData();
+            }
+
+            connection = vertex.connect(
+                    new Vertex(label, data), overwriteData, this.metrics);
+            moveOffHeap(connection, previous);
+        }
 
         int numNeighbors = in.readInt();
+        if (numNeighbors == 0 && label.getType() == FeatureType.STRING) {
+            /* The end of a path: as in addPath, the vertices added along the
+             * way are attributed to its location */
+            updateGeoTrie(label.getString(), mergedVertices, mergedLeaves);
+            this.mergedVertices = this.metrics.getVertexCount();
+            this.mergedLeaves = this.metrics.getLeafCount();
+        }
         for (int i = 0; i < numNeighbors; ++i) {
-            merge(connection, in);
+            merge(connection, new Feature(in), in, overwriteData);
         }
     }
 
@@ -340,6 +656,16 @@ public class Sketch {
         query.execute(this.root);
     }
 
+    /**
+     * Executes a query in parallel.  The Sketch must not be modified while
+     * the query is running.
+     */
+    public void query(Query query, ParallelQueryExecutor executor)
+    throws QueryException {
+        query.setGraphMetrics(this.metrics);
+        executor.execute(query, this.root);
+    }
+
     @Override
     public String toString() {
         return root.toString();
@@ -0,0 +1,171 @@
+package edu.colostate.cs.galileo.graph2;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import edu.colostate.cs.galileo.serialization.SerializationException;
+import edu.colostate.cs.galileo.serialization.SerializationInputStream;
+
+/**
+ * Applies {@link DiffSegment}s to a Sketch in sequence order.  The log keeps
+ * a watermark: the sequence number of the last segment applied.  Segments at
+ * or below the watermark have already been applied and are ignored, and
+ * segments that arrive ahead of a gap are held until the missing segments
+ * arrive.  A replica can therefore catch up by requesting only the segments
+ * after its watermark.
+ * <p>
+ * Segments are independent of each other until they are merged, so a run of
+ * consecutive segments is verified and decompressed in parallel, and merged
+ * into the Sketch in order as each one becomes available.  Their statistics
+ * are added to the Sketch's existing leaves.
+ */
+public class SketchDiffLog {
+
+    private Sketch sketch;
+    private long watermark;
+    private TreeMap<Long, DiffSegment> pending = new TreeMap<>();
+
+    private ExecutorService decoder;
+
+    public SketchDiffLog(Sketch sketch) {
+        this(sketch, 0, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a diff log for a Sketch that already contains some segments.
+     *
+     * @param watermark sequence number of the last segment that was applied
+     * to the Sketch.
+     * @param decoder ExecutorService used to decode segments.
+     */
+    public SketchDiffLog(Sketch sketch, long watermark,
+            ExecutorService decoder) {
+        this.sketch = sketch;
+        this.watermark = watermark;
+        this.decoder = decoder;
+    }
+
+    public int apply(DiffSegment segment)
+    throws IOException, SerializationException {
+        return apply(Collections.singletonList(segment));
+    }
+
+    /**
+     * Adds segments to the log, applying every segment that directly follows
+     * the watermark.  Each segment is verified and decoded in full before it
+     * is merged, so a damaged segment never reaches the Sketch.  A segment
+     * that fails verification is discarded and the watermark stops before
+     * it, so it can be requested again.  If applying stops for any other
+     * reason (such as an interrupt), the segment and everything after it
+     * stay in the log and are applied by the next call.
+     *
+     * @return the number of segments applied.
+     */
+    public synchronized int apply(Collection<DiffSegment> segments)
+    throws IOException, SerializationException {
+        for (DiffSegment segment : segments) {
+            if (segment.getSequence() > watermark) {
+                pending.putIfAbsent(segment.getSequence(), segment);
+            }
+        }
+
+        List<DiffSegment> ready = new ArrayList<>();
+        long next = watermark + 1;
+        while (pending.containsKey(next)) {
+            ready.add(pending.remove(next));
+            next++;
+        }
+
+        List<Future<byte[]>> decoded = new ArrayList<>(ready.size());
+        for (final DiffSegment segment : ready) {
+            decoded.add(decoder.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call()
+                throws IOException, SerializationException {
+                    return segment.decode();
+                }
+            }));
+        }
+
+        int applied = 0;
+        boolean damaged = false;
+        try {
+            for (Future<byte[]> future : decoded) {
+                byte[] graph;
+                try {
+                    graph = await(future);
+                } catch (SerializationException e) {
+                    damaged = true;
+                    throw e;
+                }
+                sketch.merge(new SerializationInputStream(
+                            new ByteArrayInputStream(graph)), false);
+                watermark = ready.get(applied).getSequence();
+                applied++;
+            }
+        } finally {
+            /* Anything after a failed segment goes back to waiting, along
+             * with the failed segment itself unless it was damaged */
+            int first = damaged ? applied + 1 : applied;
+            for (int i = first; i < ready.size(); ++i) {
+                decoded.get(i).cancel(false);
+                pending.put(ready.get(i).getSequence(), ready.get(i));
+            }
+        }
+
+        return applied;
+    }
+
+    private static byte[] await(Future<byte[]> future)
+    throws IOException, SerializationException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                    "Interrupted while decoding diff segments");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            while (cause instanceof RuntimeException
+                    && cause.getCause() != null) {
+                /* ForkJoinPool wraps checked exceptions (possibly more than
+                 * once, when rethrowing them in another thread) */
+                cause = cause.getCause();
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof SerializationException) {
+                throw (SerializationException) cause;
+            }
+            /* Not a problem with the segment itself (DiffSegment.decode
+             * reports those as SerializationExceptions), so keep it */
+            throw new IOException("Could not decode diff segment", cause);
+        }
+    }
+
+    /**
+     * @return the sequence number of the last segment applied.
+     */
+    public synchronized long getWatermark() {
+        return watermark;
+    }
+
+    /**
+     * @return the number of segments waiting for earlier segments to arrive.
+     */
+    public synchronized int numPending() {
+        return pending.size();
+    }
+}
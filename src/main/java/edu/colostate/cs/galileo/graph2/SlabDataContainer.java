@@ -0,0 +1,77 @@
+package edu.colostate.cs.galileo.graph2;
+
+import java.io.IOException;
+
+import edu.colostate.cs.galileo.serialization.SerializationOutputStream;
+import edu.colostate.cs.galileo.stat.RunningStatisticsND;
+import edu.colostate.cs.galileo.stat.StatisticsArena;
+import edu.colostate.cs.galileo.stat.StatisticsSlab;
+
+/**
+ * A {@link DataContainer} whose statistics are stored off-heap in a
+ * {@link StatisticsSlab}.  The inherited statistics field is always null; use
+ * {@link #getStatistics()} to obtain a heap-based copy.
+ */
+public class SlabDataContainer extends DataContainer {
+
+    private StatisticsSlab slab;
+    private int slot;
+
+    /**
+     * Copies a set of statistics into a new record in the arena.
+     */
+    public SlabDataContainer(
+            StatisticsArena arena, RunningStatisticsND statistics) {
+        super((RunningStatisticsND) null);
+        this.slab = arena.slab(statistics.dimensions());
+        this.slot = slab.allocate();
+        slab.set(slot, statistics);
+    }
+
+    @Override
+    public void merge(DataContainer container) {
+        if (container instanceof SlabDataContainer) {
+            slab.merge(slot, container.getStatistics());
+        } else {
+            slab.merge(slot, container.statistics);
+        }
+    }
+
+    @Override
+    protected void mergeInto(RunningStatisticsND target) {
+        target.merge(slab, slot);
+    }
+
+    @Override
+    public RunningStatisticsND getStatistics() {
+        return new RunningStatisticsND(slab, slot);
+    }
+
+    @Override
+    public void put(double... samples) {
+        slab.put(slot, samples);
+    }
+
+    public long count() {
+        return slab.count(slot);
+    }
+
+    @Override
+    public void clear() {
+        slab.clear(slot);
+    }
+
+    /**
+     * Returns this container's record to its slab.  The container must not
+     * be used afterward.
+     */
+    public void release() {
+        slab.free(slot);
+    }
+
+    @Override
+    public void serialize(SerializationOutputStream out)
+    throws IOException {
+        slab.serialize(slot, out);
+    }
+}
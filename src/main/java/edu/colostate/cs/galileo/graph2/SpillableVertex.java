@@ -0,0 +1,131 @@
+package edu.colostate.cs.galileo.graph2;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.NavigableMap;
+import java.util.Set;
+
+import edu.colostate.cs.galileo.dataset.feature.Feature;
+
+/**
+ * A top-level vertex of a {@link TieredSketch}, whose children can be written
+ * out to disk.  While the children are on disk the vertex acts as a stub:
+ * any attempt to reach them loads them back in first, so traversals (and
+ * queries) are unaware of the tiering.
+ */
+class SpillableVertex extends Vertex {
+
+    private TieredSketch tier;
+
+    /** File holding the children, if they have been spilled */
+    File spillFile;
+
+    /**
+     * Takes the place of an existing vertex; its label, data, ID, and
+     * children are transferred to the new SpillableVertex.
+     */
+    SpillableVertex(Vertex vertex, TieredSketch tier) {
+        super(vertex.label, vertex.data);
+        this.id = vertex.id;
+        this.edges = vertex.edges;
+        this.tier = tier;
+    }
+
+    boolean isResident() {
+        return spillFile == null;
+    }
+
+    private void access() {
+        tier.access(this);
+    }
+
+    @Override
+    public boolean connectedTo(Feature label) {
+        access();
+        return super.connectedTo(label);
+    }
+
+    @Override
+    public boolean connectedTo(Vertex v) {
+        access();
+        return super.connectedTo(v);
+    }
+
+    @Override
+    public Vertex getNeighbor(Feature label) {
+        access();
+        return super.getNeighbor(label);
+    }
+
+    @Override
+    public Vertex getFirstNeighbor() {
+        access();
+        return super.getFirstNeighbor();
+    }
+
+    @Override
+    public NavigableMap<Feature, Vertex> getNeighborsLessThan(
+            Feature label, boolean inclusive) {
+        access();
+        return super.getNeighborsLessThan(label, inclusive);
+    }
+
+    @Override
+    public NavigableMap<Feature, Vertex> getNeighborsGreaterThan(
+            Feature label, boolean inclusive) {
+        access();
+        return super.getNeighborsGreaterThan(label, inclusive);
+    }
+
+    @Override
+    public NavigableMap<Feature, Vertex> getNeighborsInRange(
+            Feature from, boolean fromInclusive,
+            Feature to, boolean toInclusive) {
+        access();
+        return super.getNeighborsInRange(
+                from, fromInclusive, to, toInclusive);
+    }
+
+    @Override
+    public Set<Feature> getNeighborLabels() {
+        access();
+        return super.getNeighborLabels();
+    }
+
+    @Override
+    public Collection<Vertex> getAllNeighbors() {
+        access();
+        return super.getAllNeighbors();
+    }
+
+    @Override
+    public int numNeighbors() {
+        access();
+        return super.numNeighbors();
+    }
+
+    @Override
+    protected Vertex connect(
+            Vertex v, boolean overwriteData, GraphMetrics metrics) {
+        access();
+        return super.connect(v, overwriteData, metrics);
+    }
+
+    @Override
+    public Vertex disconnect(Feature label) {
+        access();
+        return super.disconnect(label);
+    }
+
+    @Override
+    public Vertex disconnect(Vertex vertex) {
+        access();
+        return super.disconnect(vertex);
+    }
+
+    @Override
+    public void disconnectAll() {
+        access();
+        super.disconnectAll();
+    }
+}
@@ -0,0 +1,404 @@
+package edu.colostate.cs.galileo.graph2;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import edu.colostate.cs.galileo.dataset.Pair;
+import edu.colostate.cs.galileo.dataset.analysis.Quantizer;
+import edu.colostate.cs.galileo.dataset.feature.Feature;
+import edu.colostate.cs.galileo.dataset.feature.FeatureType;
+import edu.colostate.cs.galileo.graph.FeatureHierarchy;
+import edu.colostate.cs.galileo.graph.GraphException;
+import edu.colostate.cs.galileo.query2.FramedResultWriter;
+import edu.colostate.cs.galileo.query2.ParallelQueryExecutor;
+import edu.colostate.cs.galileo.query2.Query;
+import edu.colostate.cs.galileo.query2.QueryException;
+import edu.colostate.cs.galileo.query2.RelationalQuery;
+import edu.colostate.cs.galileo.serialization.SerializationException;
+import edu.colostate.cs.galileo.serialization.SerializationInputStream;
+import edu.colostate.cs.galileo.serialization.SerializationOutputStream;
+
+/**
+ * A {@link Sketch} that keeps only its most recently used subtrees in memory.
+ * Each subtree below the root (one per label at the top level of the
+ * hierarchy) is tracked in least-recently-used order; once more than a set
+ * number of subtrees are resident, the least recently used are written to
+ * files and replaced by stub vertices.  Inserting into a stub or reaching it
+ * during a query maps its file and loads the subtree back in, so the tiering
+ * is transparent to queries.
+ * <p>
+ * Subtrees are not written out while a query is running, since the query may
+ * be holding references into them; the resident limit is enforced again once
+ * the query completes.  As with {@link ConcurrentSketch}, the hierarchy is
+ * fixed when the TieredSketch is created.  Like a Sketch, a TieredSketch must
+ * not be modified while it is being queried.
+ */
+public class TieredSketch {
+
+    private static final String SPILL_PREFIX = "subtree-";
+
+    private Sketch sketch;
+    private File directory;
+    private int maxResident;
+
+    private String topLevel;
+    private Map<String, FeatureType> features = new HashMap<>();
+
+    /* Resident subtrees, in access order */
+    private LinkedHashMap<SpillableVertex, Boolean> resident
+        = new LinkedHashMap<>(16, 0.75f, true);
+    private int numSpilled = 0;
+    private long spillFiles = 0;
+
+    private int activeQueries = 0;
+
+    /**
+     * Creates a TieredSketch.
+     *
+     * @param hierarchy Graph hierarchy represented as a
+     * {@link FeatureHierarchy}.
+     * @param directory directory that spilled subtrees are written to.  Spill
+     * files left there by a previous TieredSketch are deleted, so the
+     * directory must not be shared with another TieredSketch.
+     * @param maxResident maximum number of top-level subtrees kept in memory.
+     */
+    public TieredSketch(FeatureHierarchy hierarchy, File directory,
+            int maxResident)
+    throws IOException {
+        if (hierarchy.size() == 0) {
+            throw new IllegalArgumentException(
+                    "Feature hierarchy cannot be empty");
+        }
+        if (maxResident <= 0) {
+            throw new IllegalArgumentException(
+                    "At least one subtree must be resident");
+        }
+        if (directory.isDirectory() == false && directory.mkdirs() == false) {
+            throw new IOException("Could not create spill directory: "
+                    + directory);
+        }
+        removeSpillFiles(directory);
+
+        this.sketch = new Sketch(hierarchy);
+        this.directory = directory;
+        this.maxResident = maxResident;
+
+        for (Pair<String, FeatureType> feature : hierarchy) {
+            if (topLevel == null) {
+                topLevel = feature.a;
+            }
+            features.put(feature.a, feature.b);
+        }
+    }
+
+    /**
+     * Adds a new {@link Path} to the Sketch.
+     *
+     * @see Sketch#addPath(Path)
+     */
+    public void addPath(Path path)
+    throws FeatureTypeMismatchException, GraphException {
+        Feature topLabel = new Feature(topLevel);
+        for (Feature label : path.getLabels()) {
+            if (features.containsKey(label.getName()) == false) {
+                throw new GraphException("Feature '" + label.getName()
+                        + "' is not part of the Sketch hierarchy");
+            }
+
+            if (label.getName().equals(topLevel)) {
+                topLabel = label;
+            }
+        }
+
+        sketch.addPath(path);
+        adopt(topLabel);
+    }
+
+    /**
+     * @see Sketch#prepareRecords(List, Map)
+     */
+    public void prepareRecords(List<String> featureNames,
+            Map<String, Quantizer> quantizers)
+    throws GraphException {
+        sketch.prepareRecords(featureNames, quantizers);
+    }
+
+    /**
+     * @see Sketch#addRecord(double[], String)
+     */
+    public void addRecord(double[] values, String location) {
+        sketch.addRecord(values, location);
+        adopt(sketch.recordLabel(0, values));
+    }
+
+    /**
+     * @see Sketch#merge(SerializationInputStream, boolean)
+     */
+    public void merge(SerializationInputStream in, boolean overwriteData)
+    throws IOException, SerializationException {
+        sketch.merge(in, overwriteData);
+        for (Vertex vertex : sketch.getRoot().getAllNeighbors()) {
+            adopt(vertex.getLabel());
+        }
+    }
+
+    public void query(Query query)
+    throws QueryException {
+        beginQuery();
+        try {
+            sketch.query(query);
+        } finally {
+            endQuery();
+        }
+    }
+
+    public void query(Query query, ParallelQueryExecutor executor)
+    throws QueryException {
+        beginQuery();
+        try {
+            sketch.query(query, executor);
+        } finally {
+            endQuery();
+        }
+    }
+
+    /**
+     * Executes a relational query and serializes its results.  Subtrees are
+     * kept resident until the results have been written.
+     */
+    public void query(RelationalQuery query, SerializationOutputStream out)
+    throws IOException, QueryException {
+        beginQuery();
+        try {
+            sketch.query(query);
+            query.serializeResults(sketch.getRoot(), out);
+        } finally {
+            endQuery();
+        }
+    }
+
+    /**
+     * Executes a relational query and streams its results.
+     *
+     * @see #query(RelationalQuery, SerializationOutputStream)
+     */
+    public void query(RelationalQuery query, FramedResultWriter writer)
+    throws IOException, QueryException {
+        beginQuery();
+        try {
+            sketch.query(query);
+            query.serializeResults(sketch.getRoot(), writer);
+            writer.finish();
+        } finally {
+            endQuery();
+        }
+    }
+
+    private synchronized void beginQuery() {
+        activeQueries++;
+    }
+
+    private synchronized void endQuery() {
+        activeQueries--;
+        evict();
+    }
+
+    /**
+     * Replaces a new top-level vertex with a SpillableVertex, and marks the
+     * subtree as the most recently used.
+     */
+    private void adopt(Feature label) {
+        Vertex root = sketch.getRoot();
+        Vertex vertex = root.getNeighbor(label);
+        if (vertex == null || vertex instanceof SpillableVertex) {
+            return;
+        }
+
+        SpillableVertex spillable = new SpillableVertex(vertex, this);
+        root.edges.put(label, spillable);
+        access(spillable);
+    }
+
+    /**
+     * Called whenever the children of a top-level vertex are reached.  They
+     * are loaded back in if necessary.
+     */
+    synchronized void access(SpillableVertex vertex) {
+        if (resident.get(vertex) != null) {
+            return;
+        }
+
+        if (vertex.isResident() == false) {
+            try {
+                load(vertex);
+            } catch (IOException | SerializationException e) {
+                throw new UncheckedIOException(new IOException(
+                            "Could not load spilled subtree "
+                            + vertex.getLabel(), e));
+            }
+        }
+        resident.put(vertex, true);
+        evict();
+    }
+
+    /**
+     * Writes out the least recently used subtrees until the resident limit
+     * is met.
+     */
+    private void evict() {
+        if (activeQueries > 0) {
+            return;
+        }
+
+        Iterator<SpillableVertex> it = resident.keySet().iterator();
+        while (resident.size() > maxResident && it.hasNext()) {
+            SpillableVertex vertex = it.next();
+            it.remove();
+            if (sketch.getRoot().getNeighbor(vertex.getLabel()) != vertex) {
+                /* Removed from the graph (by a PartitionQuery) */
+                continue;
+            }
+
+            try {
+                spill(vertex);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Deletes the spill files in a directory.  Spilled subtrees only live as
+     * long as the TieredSketch that wrote them; files left behind by one that
+     * was not shut down cleanly would otherwise accumulate, and be
+     * overwritten one at a time as new subtrees are spilled.
+     */
+    private static void removeSpillFiles(File directory)
+    throws IOException {
+        File[] stale = directory.listFiles(
+                (dir, name) -> name.startsWith(SPILL_PREFIX));
+        if (stale == null) {
+            throw new IOException("Could not list spill directory: "
+                    + directory);
+        }
+
+        for (File file : stale) {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    private void spill(SpillableVertex vertex)
+    throws IOException {
+        File file = new File(directory, SPILL_PREFIX + (spillFiles++));
+        try (SerializationOutputStream out = new SerializationOutputStream(
+                    new BufferedOutputStream(
+                        Files.newOutputStream(file.toPath())))) {
+            out.setStringDictionary(true);
+            writeChildren(vertex.edges, out);
+        }
+
+        vertex.edges = new TreeMap<>();
+        vertex.spillFile = file;
+        numSpilled++;
+    }
+
+    private void load(SpillableVertex vertex)
+    throws IOException, SerializationException {
+        File file = vertex.spillFile;
+        try (FileChannel channel = FileChannel.open(
+                    file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            SerializationInputStream in = new SerializationInputStream(buffer);
+            in.setStringDictionary(true);
+            vertex.edges = readChildren(in);
+        }
+
+        vertex.spillFile = null;
+        numSpilled--;
+        Files.delete(file.toPath());
+    }
+
+    /*
+     * Spilled subtrees are stored in the same layout as Sketch.merge reads,
+     * except that each vertex's ID is kept as well: a query that started
+     * before a subtree was spilled may still refer to it by ID.
+     */
+
+    private static void writeChildren(Map<Feature, Vertex> edges,
+            SerializationOutputStream out)
+    throws IOException {
+        out.writeInt(edges.size());
+        for (Vertex vertex : edges.values()) {
+            vertex.getLabel().serialize(out);
+            out.writeInt(vertex.id);
+            out.writeBoolean(vertex.hasData());
+            if (vertex.hasData() == true) {
+                vertex.getData().serialize(out);
+            }
+            writeChildren(vertex.edges, out);
+        }
+    }
+
+    private static TreeMap<Feature, Vertex> readChildren(
+            SerializationInputStream in)
+    throws IOException, SerializationException {
+        TreeMap<Feature, Vertex> edges = new TreeMap<>();
+        int numChildren = in.readInt();
+        for (int i = 0; i < numChildren; ++i) {
+            Feature label = new Feature(in);
+            int id = in.readInt();
+            DataContainer data = null;
+            if (in.readBoolean()) {
+                data = new DataContainer(in);
+            }
+
+            Vertex vertex = new Vertex(label, data);
+            vertex.id = id;
+            vertex.edges = readChildren(in);
+            edges.put(label, vertex);
+        }
+        return edges;
+    }
+
+    public GraphMetrics getMetrics() {
+        return sketch.getMetrics();
+    }
+
+    /**
+     * @see GeoTrie#query(String)
+     */
+    public CountContainer queryGeoTrie(String geohash) {
+        return sketch.geoTrie.query(geohash);
+    }
+
+    public FeatureHierarchy getFeatureHierarchy() {
+        return sketch.getFeatureHierarchy();
+    }
+
+    /**
+     * @return the number of top-level subtrees currently in memory.
+     */
+    public synchronized int numResident() {
+        return resident.size();
+    }
+
+    /**
+     * @return the number of top-level subtrees currently on disk.
+     */
+    public synchronized int numSpilled() {
+        return numSpilled;
+    }
+}
@@ -52,6 +52,9 @@ public class Vertex implements ByteSerializable {
     protected DataContainer data;
     protected TreeMap<Feature, Vertex> edges = new TreeMap<>();
 
+    /** Dense ID, assigned when the vertex is connected to a graph */
+    protected int id;
+
     public Vertex() {
         label = new Feature();
     }
@@ -235,6 +238,7 @@ public class Vertex implements ByteSerializable {
         if (neighbor == null) {
             edges.put(label, v);
             if (metrics != null) {
+                v.id = metrics.newVertexId();
                 metrics.addVertex();
                 if (v.hasData()) {
                     metrics.addLeaf();
@@ -285,13 +289,24 @@ public class Vertex implements ByteSerializable {
      * @param path Collection of vertices to connect
      * @param metrics A {@link GraphMetrics} instance to populate as the path is
      *     added.
+     * @return the vertex the path ends at.
      */
-    public void addPath(Iterator<Vertex> path, GraphMetrics metrics) {
+    public Vertex addPath(Iterator<Vertex> path, GraphMetrics metrics) {
         if (path.hasNext()) {
             Vertex vertex = path.next();
             Vertex connection = connect(vertex, false, metrics);
-            connection.addPath(path, metrics);
+            return connection.addPath(path, metrics);
         }
+        return this;
+    }
+
+    /**
+     * Retrieves the ID of this vertex.  IDs are allocated by the
+     * {@link GraphMetrics} of the graph the vertex was connected to; vertices
+     * connected without metrics all have ID 0.
+     */
+    public int getId() {
+        return this.id;
     }
 
     /**
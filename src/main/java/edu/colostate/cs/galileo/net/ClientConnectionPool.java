@@ -26,8 +26,8 @@ software, even if advised of the possibility of such damage.
 package edu.colostate.cs.galileo.net;
 
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Extends the standard {@link ClientMessageRouter} by aging out connections
@@ -38,7 +38,7 @@ import java.util.Map;
  */
 public class ClientConnectionPool extends ClientMessageRouter {
 
-    protected Map<NetworkEndpoint, Long> connectionAge = new HashMap<>();
+    protected Map<NetworkEndpoint, Long> connectionAge = new ConcurrentHashMap<>();
 
     public ClientConnectionPool()
     throws IOException {
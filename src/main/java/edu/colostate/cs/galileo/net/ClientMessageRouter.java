@@ -1,53 +1,131 @@
 package edu.colostate.cs.galileo.net;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioSocketChannel;
 
+/**
+ * Sends messages to remote endpoints.  Sending is asynchronous: messages are
+ * placed in a bounded, per-endpoint outbound queue and written to the network
+ * as the connection to the endpoint allows, so a slow or unreachable endpoint
+ * never blocks the caller.  The outcome of each send is reported through the
+ * {@link Transmission} it returns.
+ */
 public class ClientMessageRouter extends MessageRouterBase {
 
+    /** Default maximum number of messages queued for a single endpoint. */
+    public static final int DEFAULT_MAX_QUEUE_SIZE = 10000;
+
+    /** Default write buffer size (in bytes) that marks a channel writable. */
+    public static final int DEFAULT_LOW_WATER_MARK = 512 * 1024;
+
+    /** Default write buffer size (in bytes) that marks a channel unwritable. */
+    public static final int DEFAULT_HIGH_WATER_MARK = 1024 * 1024;
+
     private EventLoopGroup workerGroup;
     private Bootstrap bootstrap;
     private MessagePipeline pipeline;
 
-    private Map<NetworkEndpoint, Channel> connections = new HashMap<>();
+    private int maxQueueSize;
+
+    private ConcurrentMap<NetworkEndpoint, Connection> connections
+        = new ConcurrentHashMap<>();
 
     public ClientMessageRouter() {
+        this(DEFAULT_MAX_QUEUE_SIZE,
+                DEFAULT_LOW_WATER_MARK, DEFAULT_HIGH_WATER_MARK);
+    }
+
+    /**
+     * Creates a ClientMessageRouter with a custom outbound queue size.
+     *
+     * @param readBufferSize ignored.  Netty sizes each channel's read buffers
+     * adaptively, based on the amount of data received by previous reads, so
+     * there is no fixed read buffer to configure.
+     * @param maxWriteQueueSize maximum number of messages that may be waiting
+     * to be written to a single endpoint.
+     *
+     * @deprecated The read buffer size has no effect; use
+     * {@link #ClientMessageRouter(int, int, int)} instead.
+     */
+    @Deprecated
+    public ClientMessageRouter(int readBufferSize, int maxWriteQueueSize) {
+        this(maxWriteQueueSize,
+                DEFAULT_LOW_WATER_MARK, DEFAULT_HIGH_WATER_MARK);
+    }
+
+    /**
+     * Creates a ClientMessageRouter with custom outbound limits.
+     *
+     * @param maxQueueSize maximum number of messages that may be waiting to
+     * be written to a single endpoint.  Messages sent while the queue is full
+     * are rejected.
+     * @param lowWaterMark once a channel has become unwritable, the amount of
+     * buffered outbound data (in bytes) it must drop below before queued
+     * messages are written again.
+     * @param highWaterMark amount of buffered outbound data (in bytes) that
+     * causes a channel to become unwritable.
+     */
+    public ClientMessageRouter(
+            int maxQueueSize, int lowWaterMark, int highWaterMark) {
+        if (maxQueueSize <= 0) {
+            throw new IllegalArgumentException(
+                    "Outbound queue size must be positive");
+        }
+        if (lowWaterMark > highWaterMark) {
+            throw new IllegalArgumentException(
+                    "Low water mark cannot exceed the high water mark");
+        }
+
+        this.maxQueueSize = maxQueueSize;
+
         workerGroup = new NioEventLoopGroup();
 
         pipeline = new MessagePipeline(this);
 
+        /* The high water mark is set first, so that raising the low water
+         * mark above Netty's default high water mark is not rejected. */
         bootstrap = new Bootstrap()
             .group(workerGroup)
             .channel(NioSocketChannel.class)
             .option(ChannelOption.SO_KEEPALIVE, true)
+            .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+            .option(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, highWaterMark)
+            .option(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, lowWaterMark)
             .handler(pipeline);
     }
 
-    public ClientMessageRouter(int readBufferSize, int maxWriteQueueSize) {
-        this();
-    }
-
     /**
-     * Sends a message to multiple network destinations.
+     * Sends a message to multiple network destinations.  The message is
+     * released once it has been sent to every destination.
      */
     public List<Transmission> broadcastMessage(
             Iterable<NetworkEndpoint> endpoints, GalileoMessage message) {
         List<Transmission> transmissions = new ArrayList<>();
-        for (NetworkEndpoint endpoint : endpoints) {
-            Transmission trans = sendMessage(endpoint, message);
-            transmissions.add(trans);
+        try {
+            for (NetworkEndpoint endpoint : endpoints) {
+                Transmission trans = sendMessage(endpoint, message.retain());
+                transmissions.add(trans);
+            }
+        } finally {
+            message.release();
         }
         return transmissions;
     }
@@ -55,40 +133,52 @@ public class ClientMessageRouter extends MessageRouterBase {
     @Override
     protected void onWritabilityChange(ChannelHandlerContext ctx) {
         Channel chan = ctx.channel();
-        synchronized (chan) {
-            chan.notifyAll();
+        if (chan.isWritable() == false) {
+            return;
+        }
+
+        for (Connection conn : connections.values()) {
+            if (conn.channel == chan) {
+                conn.drain();
+                break;
+            }
         }
     }
 
+    /**
+     * Sends a message to a network destination.  This method does not block;
+     * if there is no connection to the destination, one is established in
+     * the background.  The message is released once it has been sent (or
+     * could not be sent).
+     *
+     * @return Transmission that completes when the message has been written
+     * to the network, or fails if it could not be sent.
+     */
     public Transmission sendMessage(
             NetworkEndpoint endpoint, GalileoMessage msg) {
-        Channel chan = ensureConnected(endpoint);
-        ChannelFuture cf = chan.writeAndFlush(msg);
-
-        if (chan.isWritable() == false) {
-            synchronized (chan) {
-                while (chan.isWritable() == false) {
-                    try {
-                        chan.wait();
-                    } catch (InterruptedException e) { }
-                }
-            }
+        Transmission trans = new Transmission();
+        while (connect(endpoint).enqueue(msg, trans) == false) {
+            /* The connection was closed before the message could be queued;
+             * retry with a fresh connection. */
         }
-
-        return new Transmission(cf);
+        return trans;
     }
 
-    private Channel ensureConnected(NetworkEndpoint ep) {
-        Channel chan = connections.get(ep);
-        if (chan == null) {
-            ChannelFuture cf = bootstrap.connect(ep.hostname(), ep.port());
-            cf.syncUninterruptibly();
-
-            chan = cf.channel();
-            connections.put(ep, chan);
+    /**
+     * Retrieves the Connection for an endpoint, starting a new connection
+     * attempt if necessary.
+     */
+    private Connection connect(NetworkEndpoint endpoint) {
+        Connection conn = connections.get(endpoint);
+        if (conn == null) {
+            Connection newConn = new Connection(endpoint);
+            conn = connections.putIfAbsent(endpoint, newConn);
+            if (conn == null) {
+                conn = newConn;
+                conn.open();
+            }
         }
-
-        return chan;
+        return conn;
     }
 
     public void shutdown() {
@@ -99,4 +189,148 @@ public class ClientMessageRouter extends MessageRouterBase {
         workerGroup.shutdownGracefully(0, 0, TimeUnit.MILLISECONDS)
             .syncUninterruptibly();
     }
+
+    /**
+     * A message waiting in an outbound queue.
+     */
+    private static class PendingMessage {
+        private GalileoMessage message;
+        private Transmission transmission;
+
+        public PendingMessage(GalileoMessage message, Transmission trans) {
+            this.message = message;
+            this.transmission = trans;
+        }
+    }
+
+    /**
+     * Manages the channel and outbound queue for a single endpoint.  Messages
+     * are only written from the channel's event loop, and only while the
+     * channel is writable.
+     */
+    private class Connection {
+
+        private NetworkEndpoint endpoint;
+        private volatile Channel channel;
+
+        /* Guarded by this Connection's monitor */
+        private Queue<PendingMessage> queue = new ArrayDeque<>();
+        private boolean closed = false;
+
+        private AtomicBoolean drainScheduled = new AtomicBoolean(false);
+        private Runnable drainTask = new Runnable() {
+            @Override
+            public void run() {
+                drainScheduled.set(false);
+                drain();
+            }
+        };
+
+        public Connection(NetworkEndpoint endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        public void open() {
+            ChannelFuture cf = bootstrap.connect(
+                    endpoint.hostname(), endpoint.port());
+            cf.addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture f) {
+                    if (f.isSuccess()) {
+                        connected(f.channel());
+                    } else {
+                        close(f.cause());
+                    }
+                }
+            });
+        }
+
+        private void connected(Channel chan) {
+            channel = chan;
+            chan.closeFuture().addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture f) {
+                    close(new IOException(
+                                "Connection to " + endpoint + " closed"));
+                }
+            });
+            drain();
+        }
+
+        /**
+         * Places a message in the outbound queue.
+         *
+         * @return false if the Connection has been closed, in which case the
+         * message was not queued.
+         */
+        public boolean enqueue(GalileoMessage msg, Transmission trans) {
+            synchronized (this) {
+                if (closed) {
+                    return false;
+                }
+
+                if (queue.size() >= maxQueueSize) {
+                    msg.release();
+                    trans.fail(new IOException(
+                                "Outbound queue for " + endpoint + " is full"));
+                    return true;
+                }
+
+                queue.add(new PendingMessage(msg, trans));
+            }
+
+            Channel chan = channel;
+            if (chan != null && drainScheduled.compareAndSet(false, true)) {
+                chan.eventLoop().execute(drainTask);
+            }
+            return true;
+        }
+
+        /**
+         * Writes queued messages until the queue is empty or the channel
+         * becomes unwritable.  Must be called from the channel's event loop.
+         */
+        public void drain() {
+            Channel chan = channel;
+            boolean written = false;
+            while (chan.isWritable()) {
+                PendingMessage pending;
+                synchronized (this) {
+                    pending = queue.poll();
+                }
+                if (pending == null) {
+                    break;
+                }
+
+                pending.transmission.bind(chan.write(pending.message));
+                written = true;
+            }
+
+            if (written) {
+                chan.flush();
+            }
+        }
+
+        /**
+         * Closes this Connection, failing any messages that are still queued.
+         * A subsequent send to the endpoint will establish a new connection.
+         */
+        public void close(Throwable cause) {
+            List<PendingMessage> unsent;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                unsent = new ArrayList<>(queue);
+                queue.clear();
+            }
+
+            connections.remove(endpoint, this);
+            for (PendingMessage pending : unsent) {
+                pending.message.release();
+                pending.transmission.fail(cause);
+            }
+        }
+    }
 }
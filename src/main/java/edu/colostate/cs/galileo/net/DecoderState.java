@@ -1,7 +0,0 @@
-package edu.colostate.cs.galileo.net;
-
-public enum DecoderState {
-    READ_LENGTH,
-    READ_CONTENT;
-}
-
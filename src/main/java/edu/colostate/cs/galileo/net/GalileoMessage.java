@@ -1,8 +1,20 @@
 package edu.colostate.cs.galileo.net;
 
-public class GalileoMessage {
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.ReferenceCounted;
 
-    private byte[] payload;
+/**
+ * A message that is sent or received over the network.  Message payloads are
+ * stored in reference-counted {@link ByteBuf} instances, which may be pooled
+ * or slices of inbound network buffers.  Sending a message releases it, and
+ * incoming messages are released once they have been passed to all
+ * {@link MessageListener} instances; listeners that need to hold on to a
+ * message after their onMessage method returns must retain it.
+ */
+public class GalileoMessage implements ReferenceCounted {
+
+    private ByteBuf payload;
     private MessageContext context;
 
     /**
@@ -11,7 +23,7 @@ public class GalileoMessage {
      * @param payload message payload in the form of a byte array.
      */
     public GalileoMessage(byte[] payload) {
-        this.payload = payload;
+        this(Unpooled.wrappedBuffer(payload));
     }
 
     public GalileoMessage(byte[] payload, MessageContext context) {
@@ -20,15 +32,86 @@ public class GalileoMessage {
     }
 
     /**
-     * Retrieves the payload for this GalileoMessage.
+     * Constructs a GalileoMessage from a buffer.  The message takes ownership
+     * of the buffer, and will release it when the message is released.
+     *
+     * @param payload message payload in the form of a ByteBuf.
+     */
+    public GalileoMessage(ByteBuf payload) {
+        this.payload = payload;
+    }
+
+    public GalileoMessage(ByteBuf payload, MessageContext context) {
+        this(payload);
+        this.context = context;
+    }
+
+    /**
+     * Retrieves the payload for this GalileoMessage.  Unless the message was
+     * created from a byte array, this copies the payload out of its buffer;
+     * use {@link #buffer()} to avoid the copy.
      *
      * @return the GalileoMessage payload
      */
     public byte[] payload() {
+        int length = payload.readableBytes();
+        if (payload.hasArray()
+                && payload.arrayOffset() + payload.readerIndex() == 0
+                && payload.array().length == length) {
+            return payload.array();
+        }
+
+        byte[] bytes = new byte[length];
+        payload.getBytes(payload.readerIndex(), bytes);
+        return bytes;
+    }
+
+    /**
+     * Retrieves the buffer that holds the payload of this GalileoMessage.  The
+     * buffer is owned by the message; its reader index should not be modified
+     * (use {@link ByteBuf#duplicate()} to read it).
+     *
+     * @return the GalileoMessage payload buffer
+     */
+    public ByteBuf buffer() {
         return payload;
     }
 
+    /**
+     * @return size of the message payload, in bytes.
+     */
+    public int size() {
+        return payload.readableBytes();
+    }
+
     public MessageContext context() {
         return context;
     }
+
+    @Override
+    public int refCnt() {
+        return payload.refCnt();
+    }
+
+    @Override
+    public GalileoMessage retain() {
+        payload.retain();
+        return this;
+    }
+
+    @Override
+    public GalileoMessage retain(int increment) {
+        payload.retain(increment);
+        return this;
+    }
+
+    @Override
+    public boolean release() {
+        return payload.release();
+    }
+
+    @Override
+    public boolean release(int decrement) {
+        return payload.release(decrement);
+    }
 }
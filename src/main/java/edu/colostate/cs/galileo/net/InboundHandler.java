@@ -4,6 +4,7 @@ import java.net.InetSocketAddress;
 
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.ReferenceCountUtil;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 
 @ChannelHandler.Sharable
@@ -44,7 +45,14 @@ public class InboundHandler extends ChannelInboundHandlerAdapter {
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) {
         if (msg instanceof GalileoMessage) {
-            router.onMessage((GalileoMessage) msg);
+            GalileoMessage message = (GalileoMessage) msg;
+            try {
+                router.onMessage(message);
+            } finally {
+                message.release();
+            }
+        } else {
+            ReferenceCountUtil.release(msg);
         }
     }
 
@@ -25,7 +25,16 @@ software, even if advised of the possibility of such damage.
 
 package edu.colostate.cs.galileo.net;
 
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.FileRegion;
 
 /**
  * Contains connection-specific information about the source of a
@@ -57,6 +66,15 @@ public class MessageContext {
         return new NetworkEndpoint(channelCtx.channel().localAddress());
     }
 
+    /**
+     * Stops or resumes reading messages from the connection this context
+     * belongs to.  This allows message consumers to apply backpressure to a
+     * sender without blocking the network thread that delivers its messages.
+     */
+    public void setAutoRead(boolean autoRead) {
+        channelCtx.channel().config().setAutoRead(autoRead);
+    }
+
     /**
      * Sends a message back to the originator of the message this context
      * belongs to.
@@ -64,4 +82,56 @@ public class MessageContext {
     public void sendMessage(GalileoMessage message) {
         channelCtx.channel().writeAndFlush(message);
     }
+
+    /**
+     * Sends a message back to the originator of the message this context
+     * belongs to, followed by a region of a file.  The message and the file
+     * contents form a single frame, so the receiver sees a regular
+     * GalileoMessage containing both.  The file contents are transferred
+     * directly from disk to the socket (via sendfile, where supported) rather
+     * than being copied onto the heap.
+     *
+     * @param message message to send before the file contents.  The message
+     * is released once it has been sent.
+     * @param file file to send a region of.
+     * @param position starting position of the region within the file.
+     * @param count length of the region, in bytes.
+     */
+    public void sendMessage(GalileoMessage message, String file,
+            long position, long count)
+    throws IOException {
+        long frameLength = message.size() + count;
+        if (frameLength > Integer.MAX_VALUE) {
+            message.release();
+            throw new IOException("File region is too large to send.");
+        }
+
+        FileChannel fileChannel;
+        final ByteBuf payload;
+        try {
+            fileChannel = FileChannel.open(
+                    Paths.get(file), StandardOpenOption.READ);
+            payload = message.buffer().duplicate().retain();
+        } finally {
+            message.release();
+        }
+        final FileRegion region
+            = new DefaultFileRegion(fileChannel, position, count);
+
+        final Channel channel = channelCtx.channel();
+        final ByteBuf header
+            = channel.alloc().buffer(MessageDecoder.HEADER_LENGTH);
+        header.writeInt((int) frameLength);
+
+        /* The writes are issued from the event loop so no other messages
+         * can be interleaved between the header and the file contents. */
+        channel.eventLoop().execute(new Runnable() {
+            @Override
+            public void run() {
+                channel.write(header);
+                channel.write(payload);
+                channel.writeAndFlush(region);
+            }
+        });
+    }
 }
@@ -1,44 +1,42 @@
 package edu.colostate.cs.galileo.net;
 
-import java.util.List;
-
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.ReplayingDecoder;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+
+/**
+ * Splits inbound data into length-prefixed frames and produces a
+ * {@link GalileoMessage} for each.  Message payloads are slices of the inbound
+ * buffer rather than copies of it.
+ */
+public class MessageDecoder extends LengthFieldBasedFrameDecoder {
 
-public class MessageDecoder extends ReplayingDecoder<DecoderState> {
+    /** Length of the frame header (a 32-bit frame length), in bytes. */
+    public static final int HEADER_LENGTH = 4;
 
-    private int length;
+    private static final int MAX_FRAME_LENGTH = Integer.MAX_VALUE;
 
     public MessageDecoder() {
-        super(DecoderState.READ_LENGTH);
+        super(MAX_FRAME_LENGTH, 0, HEADER_LENGTH, 0, HEADER_LENGTH);
     }
 
     @Override
-    protected void decode(
-            ChannelHandlerContext ctx, ByteBuf buf, List<Object> out)
+    protected Object decode(ChannelHandlerContext ctx, ByteBuf buf)
     throws Exception {
+        ByteBuf frame = (ByteBuf) super.decode(ctx, buf);
+        if (frame == null) {
+            return null;
+        }
 
-    switch (state()) {
-        case READ_LENGTH:
-            length = buf.readInt();
-            checkpoint(DecoderState.READ_CONTENT);
-            /* Fall through to the next state; the entire message may be
-             * available */
-
-        case READ_CONTENT:
-            ByteBuf frame = buf.readBytes(length);
-            checkpoint(DecoderState.READ_LENGTH);
-
-            byte[] payload = new byte[frame.readableBytes()];
-            frame.readBytes(payload);
-            MessageContext context = new MessageContext(ctx);
-            GalileoMessage msg = new GalileoMessage(payload, context);
-            out.add(msg);
-            break;
-
-        default:
-            throw new Error("Unknown decoder state");
+        MessageContext context = new MessageContext(ctx);
+        return new GalileoMessage(frame, context);
     }
+
+    @Override
+    protected ByteBuf extractFrame(
+            ChannelHandlerContext ctx, ByteBuf buffer, int index, int length) {
+        /* The default implementation copies the frame; a retained slice keeps
+         * the payload in the (pooled) inbound buffer until it is released. */
+        return buffer.slice(index, length).retain();
     }
 }
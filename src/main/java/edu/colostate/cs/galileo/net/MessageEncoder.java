@@ -1,19 +1,28 @@
 package edu.colostate.cs.galileo.net;
 
+import java.util.List;
+
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.MessageToByteEncoder;
+import io.netty.handler.codec.MessageToMessageEncoder;
 
+/**
+ * Frames outgoing {@link GalileoMessage} instances by prepending their length.
+ * The payload buffer is handed to the channel as-is rather than copied; the
+ * message is released once it has been encoded.
+ */
 @ChannelHandler.Sharable
-public class MessageEncoder extends MessageToByteEncoder<GalileoMessage> {
+public class MessageEncoder extends MessageToMessageEncoder<GalileoMessage> {
 
     @Override
     protected void encode(
-            ChannelHandlerContext ctx, GalileoMessage msg, ByteBuf out) {
-        byte[] payload = msg.payload();
-        out.writeInt(payload.length);
-        out.writeBytes(payload);
+            ChannelHandlerContext ctx, GalileoMessage msg, List<Object> out) {
+        ByteBuf header = ctx.alloc().buffer(MessageDecoder.HEADER_LENGTH);
+        header.writeInt(msg.size());
+        out.add(header);
+        /* Messages may be sent to several channels; each gets its own indices */
+        out.add(msg.buffer().duplicate().retain());
     }
 
 }
@@ -36,7 +36,9 @@ public interface MessageListener {
     /**
      * Called when a message is ready to be processed.  This method is invoked
      * by a worker thread group, and should generally be lightweight to avoid
-     * consuming network processing resources with business logic.
+     * consuming network processing resources with business logic.  The
+     * message is released after all listeners have been called; listeners
+     * that process it later must {@link GalileoMessage#retain()} it.
      */
     public void onMessage(GalileoMessage message);
 
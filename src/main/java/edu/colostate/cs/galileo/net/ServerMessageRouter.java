@@ -5,6 +5,7 @@ import java.util.HashMap;
 import java.util.Map;
 
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
@@ -31,7 +32,9 @@ public class ServerMessageRouter extends MessageRouterBase {
             .channel(NioServerSocketChannel.class)
             .childHandler(pipeline)
             .option(ChannelOption.SO_BACKLOG, 128)
-            .childOption(ChannelOption.SO_KEEPALIVE, true);
+            .childOption(ChannelOption.SO_KEEPALIVE, true)
+            .childOption(ChannelOption.ALLOCATOR,
+                    PooledByteBufAllocator.DEFAULT);
     }
 
     public ServerMessageRouter(int readBufferSize, int maxWriteQueueSize) {
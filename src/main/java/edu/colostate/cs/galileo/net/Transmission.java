@@ -25,24 +25,104 @@ software, even if advised of the possibility of such damage.
 
 package edu.colostate.cs.galileo.net;
 
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 
 /**
- * Represents the transmission of one unit of data ({@link GalileoMessage}).
- * This class acts as an encapsulation buffer between the netty ChannelFuture
- * and users of our networking package by only allowing sync operations.
- *
- * @author malensek
+ * Represents the outcome of an asynchronous message transmission.  A
+ * Transmission completes once its message has been written to the network, or
+ * fails if the message could not be sent (for instance, if the connection
+ * could not be established or the outbound queue for the destination was
+ * full).
  */
 public class Transmission {
 
-    private ChannelFuture channelFuture;
+    private CompletableFuture<Void> future = new CompletableFuture<>();
+
+    protected Transmission() {
+
+    }
 
     protected Transmission(ChannelFuture cf) {
-        this.channelFuture = cf;
+        bind(cf);
+    }
+
+    /**
+     * Completes this Transmission when the provided ChannelFuture completes.
+     */
+    protected void bind(ChannelFuture cf) {
+        cf.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture f) {
+                if (f.isSuccess()) {
+                    complete();
+                } else {
+                    fail(f.cause());
+                }
+            }
+        });
+    }
+
+    protected void complete() {
+        future.complete(null);
+    }
+
+    protected void fail(Throwable cause) {
+        future.completeExceptionally(cause);
+    }
+
+    /**
+     * Waits for this Transmission to complete.
+     *
+     * @throws IOException if the message could not be sent.
+     */
+    public void sync()
+    throws InterruptedException, IOException {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Transmission failed", e.getCause());
+        }
+    }
+
+    public boolean isDone() {
+        return future.isDone();
+    }
+
+    /**
+     * @return true if the message was sent successfully.
+     */
+    public boolean isSuccess() {
+        return future.isDone() && future.isCompletedExceptionally() == false;
+    }
+
+    /**
+     * @return the reason the message could not be sent, or null if the
+     * Transmission has not failed.
+     */
+    public Throwable cause() {
+        if (future.isCompletedExceptionally() == false) {
+            return null;
+        }
+
+        try {
+            future.getNow(null);
+        } catch (Exception e) {
+            return e.getCause();
+        }
+        return null;
     }
 
-    public void sync() throws InterruptedException {
-        channelFuture.sync();
+    /**
+     * Provides a view of this Transmission as a CompletableFuture, allowing
+     * dependent actions to be chained to it.  Completing the returned future
+     * has no effect on the Transmission.
+     */
+    public CompletableFuture<Void> toCompletableFuture() {
+        return future.thenApply(v -> v);
     }
 }
@@ -0,0 +1,229 @@
+/*
+Copyright (c) 2016, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package edu.colostate.cs.galileo.query2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import edu.colostate.cs.galileo.graph2.Vertex;
+import edu.colostate.cs.galileo.serialization.SerializationInputStream;
+import edu.colostate.cs.galileo.serialization.SerializationOutputStream;
+
+/**
+ * Serializes query results as a sequence of bounded-size frames, so a large
+ * result never has to be held in memory all at once.  Vertices are written
+ * in depth-first order with {@link #open} and {@link #close}.  Once the
+ * current frame reaches the frame size, it is closed off and passed to a
+ * {@link ResultFrameListener}, and the next frame starts by repeating the
+ * (data-less) ancestors of the next vertex.  Every frame is therefore a
+ * complete graph that can be merged into a Sketch on its own.
+ * <p>
+ * Feature names are repeated throughout a frame, so frames are written with
+ * string dictionary encoding (see
+ * {@link SerializationOutputStream#setStringDictionary(boolean)}), with a
+ * separate dictionary for each frame.  Frames should be read with
+ * {@link #openFrame(byte[], int)}.
+ * <p>
+ * Frames may exceed the frame size by the size of a single vertex, plus its
+ * ancestors.
+ */
+public class FramedResultWriter {
+
+    /** Default frame size, in bytes. */
+    public static final int DEFAULT_FRAME_SIZE = 1024 * 1024;
+
+    private FrameBuffer buffer = new FrameBuffer();
+    private SerializationOutputStream out
+        = new SerializationOutputStream(buffer);
+
+    private ResultFrameListener listener;
+    private int frameSize;
+
+    /* The vertices that are currently open, from the root down, along with
+     * the position of their neighbor counts in the frame and the number of
+     * neighbors written in the current frame. */
+    private Vertex[] open = new Vertex[16];
+    private int[] countPositions = new int[16];
+    private int[] counts = new int[16];
+    private int depth = 0;
+
+    private long frames = 0;
+
+    public FramedResultWriter(ResultFrameListener listener) {
+        this(listener, DEFAULT_FRAME_SIZE);
+    }
+
+    public FramedResultWriter(ResultFrameListener listener, int frameSize) {
+        if (frameSize <= 0) {
+            throw new IllegalArgumentException("Frame size must be positive");
+        }
+
+        this.listener = listener;
+        this.frameSize = frameSize;
+        out.setStringDictionary(true);
+    }
+
+    /**
+     * Creates a stream for reading a frame produced by a FramedResultWriter,
+     * in the format read by Sketch.merge.
+     *
+     * @param frame buffer containing the frame.
+     * @param length length of the frame, in bytes.
+     */
+    public static SerializationInputStream openFrame(byte[] frame, int length) {
+        SerializationInputStream in = new SerializationInputStream(
+                ByteBuffer.wrap(frame, 0, length));
+        in.setStringDictionary(true);
+        return in;
+    }
+
+    /**
+     * Writes a vertex and makes it the parent of subsequently opened
+     * vertices, until it is closed.  Opening a root vertex (when no vertices
+     * are open) always starts a new frame.
+     */
+    public void open(Vertex vertex)
+    throws IOException {
+        if (depth == 0 || buffer.size() >= frameSize) {
+            flush();
+        }
+
+        if (depth == open.length) {
+            int size = depth * 2;
+            open = Arrays.copyOf(open, size);
+            countPositions = Arrays.copyOf(countPositions, size);
+            counts = Arrays.copyOf(counts, size);
+        }
+
+        vertex.getLabel().serialize(out);
+        out.writeBoolean(vertex.hasData());
+        if (vertex.hasData() == true) {
+            vertex.getData().serialize(out);
+        }
+        push(vertex);
+    }
+
+    /**
+     * Closes the most recently opened vertex.
+     */
+    public void close() {
+        if (depth == 0) {
+            throw new IllegalStateException("No vertices are open");
+        }
+
+        depth--;
+        buffer.patchInt(countPositions[depth], counts[depth]);
+        open[depth] = null;
+    }
+
+    /**
+     * Passes the last frame to the listener.  All the vertices must have been
+     * closed.
+     */
+    public void finish()
+    throws IOException {
+        if (depth != 0) {
+            throw new IllegalStateException(
+                    depth + " vertices are still open");
+        }
+        flush();
+    }
+
+    /**
+     * @return the number of frames passed to the listener so far.
+     */
+    public long numFrames() {
+        return frames;
+    }
+
+    private void push(Vertex vertex)
+    throws IOException {
+        if (depth > 0) {
+            counts[depth - 1]++;
+        }
+
+        countPositions[depth] = buffer.size();
+        counts[depth] = 0;
+        open[depth] = vertex;
+        depth++;
+
+        /* Placeholder for the neighbor count, filled in by close() */
+        out.writeInt(0);
+    }
+
+    /**
+     * Ends the current frame, if it contains anything, and starts a new one
+     * containing the open vertices.
+     */
+    private void flush()
+    throws IOException {
+        if (buffer.size() == 0) {
+            return;
+        }
+
+        for (int i = 0; i < depth; ++i) {
+            buffer.patchInt(countPositions[i], counts[i]);
+        }
+        listener.onFrame(buffer.array(), buffer.size());
+        frames++;
+        buffer.reset();
+        out.resetStringDictionary();
+
+        /* Their data was part of the previous frame, so the ancestors are
+         * repeated without it. */
+        int ancestors = depth;
+        depth = 0;
+        for (int i = 0; i < ancestors; ++i) {
+            open[i].getLabel().serialize(out);
+            out.writeBoolean(false);
+            push(open[i]);
+        }
+    }
+
+    /**
+     * A ByteArrayOutputStream that allows previously-written values to be
+     * modified.
+     */
+    private static class FrameBuffer extends ByteArrayOutputStream {
+
+        public FrameBuffer() {
+            super(DEFAULT_FRAME_SIZE / 16);
+        }
+
+        public byte[] array() {
+            return buf;
+        }
+
+        public void patchInt(int position, int value) {
+            buf[position] = (byte) (value >>> 24);
+            buf[position + 1] = (byte) (value >>> 16);
+            buf[position + 2] = (byte) (value >>> 8);
+            buf[position + 3] = (byte) value;
+        }
+    }
+}
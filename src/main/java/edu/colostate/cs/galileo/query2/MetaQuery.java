@@ -25,10 +25,15 @@ software, even if advised of the possibility of such damage.
 
 package edu.colostate.cs.galileo.query2;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.RecursiveTask;
 
 import edu.colostate.cs.galileo.dataset.feature.FeatureType;
+import edu.colostate.cs.galileo.graph2.CompactSketch;
 import edu.colostate.cs.galileo.graph2.DataContainer;
 import edu.colostate.cs.galileo.graph2.Vertex;
 
@@ -58,38 +63,151 @@ public class MetaQuery extends Query {
         this.query(root);
     }
 
+    @Override
+    public void execute(CompactSketch sketch)
+    throws QueryException {
+        this.query(sketch, CompactSketch.ROOT, 0);
+    }
+
+    private void query(CompactSketch sketch, int vertex, int depth)
+    throws QueryException {
+        DataContainer container = sketch.getData(vertex);
+        if (container != null) {
+            this.aggregateData.merge(container);
+        }
+
+        int count = sketch.numChildren(vertex);
+        if (count == 0) {
+            /* This is a leaf node */
+            return;
+        }
+
+        List<Expression> expList
+            = this.expressions.get(sketch.getLevelName(depth));
+        if (expList != null) {
+            BitSet matches = evaluate(sketch, vertex, depth, expList);
+            for (int i = matches.nextSetBit(0); i >= 0;
+                    i = matches.nextSetBit(i + 1)) {
+                query(sketch, sketch.getChild(vertex, i), depth + 1);
+            }
+        } else {
+            /* No expression operates on this vertex. Consider all children. */
+            for (int i = 0; i < count; ++i) {
+                query(sketch, sketch.getChild(vertex, i), depth + 1);
+            }
+        }
+    }
+
+    @Override
+    public void execute(Vertex root, ParallelQueryExecutor executor)
+    throws QueryException {
+        DataContainer result = executor.invoke(
+                new QueryTask(root, 0, executor));
+        if (result.statistics.count() > 0) {
+            this.aggregateData.merge(result);
+        }
+    }
+
     private void query(Vertex vertex)
+    throws QueryException {
+        query(vertex, this.aggregateData);
+    }
+
+    private void query(Vertex vertex, DataContainer aggregate)
     throws QueryException {
         DataContainer container = vertex.getData();
         if (container != null) {
-            this.aggregateData.merge(container);
+            aggregate.merge(container);
+        }
+
+        for (Vertex child : children(vertex)) {
+            query(child, aggregate);
         }
+    }
 
+    /**
+     * Determines which children of a vertex the query should visit.
+     */
+    private Collection<Vertex> children(Vertex vertex)
+    throws QueryException {
         if (vertex.numNeighbors() == 0) {
             /* This is a leaf node */
-            return;
+            return new ArrayList<>();
         }
 
         String childFeature = vertex.getFirstNeighbor().getLabel().getName();
         List<Expression> expList = this.expressions.get(childFeature);
-        if (expList != null) {
-            Set<Vertex> matches = evaluate(vertex, expList);
-            for (Vertex match : matches) {
-                if (match == null) {
-                    continue;
+        if (expList == null) {
+            /* No expression operates on this vertex. Consider all children. */
+            return vertex.getAllNeighbors();
+        }
+
+        Set<Vertex> matches = evaluate(vertex, expList);
+        List<Vertex> children = new ArrayList<>(matches.size());
+        for (Vertex match : matches) {
+            if (match == null) {
+                continue;
+            }
+
+            if (match.getLabel().getType() == FeatureType.NULL) {
+                continue;
+            }
+
+            children.add(match);
+        }
+        return children;
+    }
+
+    /**
+     * Aggregates the records in a subtree into a task-local DataContainer.
+     * Subtrees near the top of the hierarchy are split into further tasks.
+     */
+    private class QueryTask extends RecursiveTask<DataContainer> {
+
+        private static final long serialVersionUID = 1L;
+
+        private Vertex vertex;
+        private int depth;
+        private ParallelQueryExecutor executor;
+
+        public QueryTask(
+                Vertex vertex, int depth, ParallelQueryExecutor executor) {
+            this.vertex = vertex;
+            this.depth = depth;
+            this.executor = executor;
+        }
+
+        @Override
+        protected DataContainer compute() {
+            DataContainer aggregate = new DataContainer();
+            try {
+                if (executor.split(depth) == false) {
+                    query(vertex, aggregate);
+                    return aggregate;
                 }
 
-                if (match.getLabel().getType() == FeatureType.NULL) {
-                    continue;
+                DataContainer container = vertex.getData();
+                if (container != null) {
+                    aggregate.merge(container);
                 }
 
-                query(match);
-            }
-        } else {
-            /* No expression operates on this vertex. Consider all children. */
-            for (Vertex neighbor : vertex.getAllNeighbors()) {
-                query(neighbor);
+                List<QueryTask> tasks = new ArrayList<>();
+                for (Vertex child : children(vertex)) {
+                    tasks.add(new QueryTask(child, depth + 1, executor));
+                }
+                invokeAll(tasks);
+
+                for (QueryTask task : tasks) {
+                    DataContainer result = task.join();
+                    if (result.statistics.count() > 0) {
+                        aggregate.merge(result);
+                    }
+                }
+            } catch (QueryException e) {
+                throw new ParallelQueryExecutor.TaskException(e);
             }
+
+            return aggregate;
         }
     }
 }
@@ -0,0 +1,144 @@
+/*
+Copyright (c) 2016, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package edu.colostate.cs.galileo.query2;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import edu.colostate.cs.galileo.graph2.Vertex;
+
+/**
+ * Executes queries against a graph in parallel with a {@link ForkJoinPool}.
+ * Queries fork a task for each child vertex they visit in the top levels of
+ * the hierarchy, where the fan-out is highest, and then evaluate the
+ * remainder of each subtree sequentially.  Small graphs are queried
+ * sequentially.  Queries that do not support parallel execution are executed
+ * sequentially on the calling thread.
+ * <p>
+ * The graph must not be modified while a query is executing.
+ */
+public class ParallelQueryExecutor {
+
+    /** Default number of hierarchy levels where tasks are forked. */
+    public static final int DEFAULT_SPLIT_DEPTH = 2;
+
+    /** Default graph size (in vertices) below which queries run serially. */
+    public static final long DEFAULT_SEQUENTIAL_THRESHOLD = 10000;
+
+    private ForkJoinPool pool;
+    private int splitDepth;
+    private long sequentialThreshold;
+
+    /**
+     * Creates a ParallelQueryExecutor that uses all available processors.
+     */
+    public ParallelQueryExecutor() {
+        this(Runtime.getRuntime().availableProcessors(),
+                DEFAULT_SPLIT_DEPTH, DEFAULT_SEQUENTIAL_THRESHOLD);
+    }
+
+    /**
+     * Creates a ParallelQueryExecutor.
+     *
+     * @param parallelism number of worker threads.
+     * @param splitDepth number of levels at the top of the hierarchy where
+     * subtrees are evaluated in separate tasks.
+     * @param sequentialThreshold graphs with fewer vertices than this are
+     * queried sequentially.  Requires the query's GraphMetrics to be set.
+     */
+    public ParallelQueryExecutor(
+            int parallelism, int splitDepth, long sequentialThreshold) {
+        if (splitDepth < 0) {
+            throw new IllegalArgumentException(
+                    "Split depth cannot be negative");
+        }
+
+        this.pool = new ForkJoinPool(parallelism);
+        this.splitDepth = splitDepth;
+        this.sequentialThreshold = sequentialThreshold;
+    }
+
+    /**
+     * Executes a query against the graph rooted at the given vertex, and
+     * waits for it to complete.
+     */
+    public void execute(Query query, Vertex root)
+    throws QueryException {
+        if (query.metrics != null
+                && query.metrics.getVertexCount() < sequentialThreshold) {
+            query.execute(root);
+            return;
+        }
+
+        query.execute(root, this);
+    }
+
+    /**
+     * Runs a task in the pool and waits for its result.  QueryExceptions
+     * thrown by the task are rethrown here.
+     */
+    <T> T invoke(ForkJoinTask<T> task)
+    throws QueryException {
+        try {
+            return pool.invoke(task);
+        } catch (TaskException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Determines whether a subtree at the given depth should be split into
+     * separate tasks.
+     */
+    boolean split(int depth) {
+        return depth < splitDepth;
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Carries a QueryException out of a task.
+     */
+    static class TaskException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        public TaskException(QueryException cause) {
+            super(cause);
+        }
+
+        @Override
+        public QueryException getCause() {
+            return (QueryException) super.getCause();
+        }
+    }
+}
@@ -28,6 +28,8 @@ package edu.colostate.cs.galileo.query2;
 import java.io.IOException;
 import java.util.Iterator;
 
+import edu.colostate.cs.galileo.graph2.CompactSketch;
+import edu.colostate.cs.galileo.graph2.SlabDataContainer;
 import edu.colostate.cs.galileo.graph2.Vertex;
 import edu.colostate.cs.galileo.serialization.SerializationOutputStream;
 
@@ -47,6 +49,23 @@ public class PartitionQuery extends RelationalQuery {
         serializeAndDeleteResults(vertex, out);
     }
 
+    @Override
+    public void serializeResults(Vertex vertex, FramedResultWriter writer)
+    throws IOException {
+        serializeAndDeleteResults(vertex, writer);
+    }
+
+    /**
+     * Vertices cannot be removed from a {@link CompactSketch}, so partitioning
+     * is not supported.
+     */
+    @Override
+    public void execute(CompactSketch sketch)
+    throws QueryException {
+        throw new QueryException(
+                "CompactSketch graphs cannot be partitioned");
+    }
+
     /**
      * @return true if the Vertex this method was called on can be deleted;
      * Vertices are deletable if the query matched it, AND all of its children.
@@ -86,13 +105,7 @@ public class PartitionQuery extends RelationalQuery {
             Vertex v = it.next();
             if (pruned.contains(v) == false) {
                 if (serializeAndDeleteResults(v, out) == true) {
-                    if (this.metrics != null) {
-                        this.metrics.removeVertex();
-                        if (v.hasData()) {
-                            this.metrics.removeLeaf();
-                        }
-                    }
-                    it.remove();
+                    delete(v, it);
                 } else {
                     deletable = false;
                 }
@@ -101,5 +114,50 @@ public class PartitionQuery extends RelationalQuery {
 
         return deletable;
     }
+
+    /**
+     * Streaming version of
+     * {@link #serializeAndDeleteResults(Vertex, SerializationOutputStream)}.
+     */
+    private boolean serializeAndDeleteResults(
+            Vertex vertex, FramedResultWriter writer)
+    throws IOException {
+        if (pruned.contains(vertex)) {
+            return false;
+        }
+
+        writer.open(vertex);
+        boolean deletable = true;
+        Iterator<Vertex> it = vertex.getAllNeighbors().iterator();
+        while (it.hasNext()) {
+            Vertex v = it.next();
+            if (serializeAndDeleteResults(v, writer) == true) {
+                delete(v, it);
+            } else {
+                deletable = false;
+            }
+        }
+        writer.close();
+
+        return deletable;
+    }
+
+    /**
+     * Removes a vertex that has been serialized from the graph.
+     *
+     * @param it iterator over the parent's neighbors, positioned at the vertex.
+     */
+    private void delete(Vertex vertex, Iterator<Vertex> it) {
+        if (this.metrics != null) {
+            this.metrics.removeVertex();
+            if (vertex.hasData()) {
+                this.metrics.removeLeaf();
+            }
+        }
+        it.remove();
+        if (vertex.getData() instanceof SlabDataContainer) {
+            ((SlabDataContainer) vertex.getData()).release();
+        }
+    }
 }
 
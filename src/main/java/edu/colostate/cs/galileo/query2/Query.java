@@ -27,6 +27,7 @@ package edu.colostate.cs.galileo.query2;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -34,6 +35,8 @@ import java.util.Map;
 import java.util.Set;
 
 import edu.colostate.cs.galileo.dataset.feature.Feature;
+import edu.colostate.cs.galileo.dataset.feature.FeatureType;
+import edu.colostate.cs.galileo.graph2.CompactSketch;
 import edu.colostate.cs.galileo.graph2.GraphMetrics;
 import edu.colostate.cs.galileo.graph2.Vertex;
 import edu.colostate.cs.galileo.serialization.ByteSerializable;
@@ -59,6 +62,26 @@ public abstract class Query implements ByteSerializable {
     public abstract void execute(Vertex root)
     throws QueryException;
 
+    /**
+     * Executes this query in parallel with a {@link ParallelQueryExecutor}.
+     * Query types that do not support parallel execution run sequentially on
+     * the calling thread.
+     */
+    public void execute(Vertex root, ParallelQueryExecutor executor)
+    throws QueryException {
+        execute(root);
+    }
+
+    /**
+     * Executes this query against a {@link CompactSketch}.  Query types that
+     * do not support CompactSketch graphs throw a QueryException.
+     */
+    public void execute(CompactSketch sketch)
+    throws QueryException {
+        throw new QueryException(getClass().getSimpleName()
+                + " does not support CompactSketch graphs");
+    }
+
     public void addExpression(Expression e) {
         String name = e.getOperand().getName();
         List<Expression> expList = expressions.get(name);
@@ -85,15 +108,23 @@ public abstract class Query implements ByteSerializable {
                 }
 
                 case NOTEQUAL: {
-                    boolean exists = matches.contains(operand);
-                    matches.addAll(vertex.getAllNeighbors());
-                    if (exists == false) {
+                    Vertex excluded = vertex.getNeighbor(operand);
+                    boolean exists = excluded != null
+                        && matches.contains(excluded);
+                    for (Vertex neighbor : vertex.getAllNeighbors()) {
+                        /* Wildcard (NULL) neighbors never satisfy a
+                         * comparison, matching the CompactSketch path. */
+                        if (neighbor.getLabel().getType() != FeatureType.NULL) {
+                            matches.add(neighbor);
+                        }
+                    }
+                    if (exists == false && excluded != null) {
                         /* If the operand (not equal value) wasn't already added
                          * by another expression, we can safely remove it now.
                          * In other words, if another expression includes the
                          * value excluded by this expression, the user has
                          * effectively requested the entire neighbor set. */
-                        matches.remove(operand);
+                        matches.remove(excluded);
                     }
                     break;
                 }
@@ -194,6 +225,173 @@ public abstract class Query implements ByteSerializable {
         return matches;
     }
 
+    /**
+     * Evaluates expressions against the children of a {@link CompactSketch}
+     * vertex.  Wildcard children never match.
+     *
+     * @param depth level of the hierarchy the children are at.
+     * @return positions of the matching children.
+     */
+    protected BitSet evaluate(CompactSketch sketch, int vertex, int depth,
+            List<Expression> expressions)
+    throws QueryException {
+        int first = sketch.firstValue(vertex);
+        int count = sketch.numChildren(vertex);
+        BitSet matches = new BitSet(count);
+
+        for (Expression expression : expressions) {
+
+            Operator operator = expression.getOperator();
+            Feature operand = expression.getOperand();
+            Feature secondOperand = expression.getSecondOperand();
+
+            switch (operator) {
+                case EQUAL: {
+                    int position = sketch.find(vertex, depth, operand);
+                    if (position >= first) {
+                        matches.set(position);
+                    }
+                    break;
+                }
+
+                case NOTEQUAL: {
+                    int position = sketch.find(vertex, depth, operand);
+                    boolean exists = position >= first
+                        && matches.get(position);
+                    matches.set(first, count);
+                    if (exists == false && position >= first) {
+                        /* As above, the excluded value is only removed if no
+                         * other expression has selected it. */
+                        matches.clear(position);
+                    }
+                    break;
+                }
+
+                case LESS:
+                    addRange(matches, sketch, vertex, depth,
+                            null, false, operand, false);
+                    break;
+
+                case LESSEQUAL:
+                    addRange(matches, sketch, vertex, depth,
+                            null, false, operand, true);
+                    break;
+
+                case GREATER:
+                    addRange(matches, sketch, vertex, depth,
+                            operand, false, null, false);
+                    break;
+
+                case GREATEREQUAL:
+                    addRange(matches, sketch, vertex, depth,
+                            operand, true, null, false);
+                    break;
+
+                case RANGE_INC:
+                    addRange(matches, sketch, vertex, depth,
+                            operand, true, secondOperand, true);
+                    break;
+
+                case RANGE_EXC:
+                    addRange(matches, sketch, vertex, depth,
+                            operand, false, secondOperand, false);
+                    break;
+
+                case RANGE_INC_EXC:
+                    addRange(matches, sketch, vertex, depth,
+                            operand, true, secondOperand, false);
+                    break;
+
+                case RANGE_EXC_INC:
+                    addRange(matches, sketch, vertex, depth,
+                            operand, false, secondOperand, true);
+                    break;
+
+                case STR_PREFIX: {
+                    String prefix = operand.getString();
+                    for (int i = first; i < count; ++i) {
+                        if (sketch.getLabel(vertex, depth, i)
+                                .getString().startsWith(prefix)) {
+                            matches.set(i);
+                        }
+                    }
+                    break;
+                }
+
+                case STR_SUFFIX: {
+                    String suffix = operand.getString();
+                    for (int i = first; i < count; ++i) {
+                        if (sketch.getLabel(vertex, depth, i)
+                                .getString().endsWith(suffix)) {
+                            matches.set(i);
+                        }
+                    }
+                    break;
+                }
+
+                default:
+                    throw new QueryException("Unknown operator: " + operator);
+            }
+        }
+
+        return matches;
+    }
+
+    /**
+     * Selects the children of a {@link CompactSketch} vertex that fall within
+     * a range.  Ordered levels are searched with binary searches; other
+     * levels are scanned.
+     *
+     * @param from beginning of the range, or null for no lower bound.
+     * @param to end of the range, or null for no upper bound.
+     */
+    private void addRange(BitSet matches, CompactSketch sketch,
+            int vertex, int depth,
+            Feature from, boolean fromInclusive,
+            Feature to, boolean toInclusive) {
+        int first = sketch.firstValue(vertex);
+        int count = sketch.numChildren(vertex);
+
+        if (sketch.isOrdered(depth)) {
+            int start = first;
+            if (from != null) {
+                start = fromInclusive
+                    ? sketch.lowerBound(vertex, depth, from)
+                    : sketch.upperBound(vertex, depth, from);
+            }
+
+            int end = count;
+            if (to != null) {
+                end = toInclusive
+                    ? sketch.upperBound(vertex, depth, to)
+                    : sketch.lowerBound(vertex, depth, to);
+            }
+
+            if (start < end) {
+                matches.set(start, end);
+            }
+            return;
+        }
+
+        for (int i = first; i < count; ++i) {
+            if (from != null) {
+                int compare = sketch.compare(vertex, depth, i, from);
+                if (compare < 0 || (compare == 0 && fromInclusive == false)) {
+                    continue;
+                }
+            }
+
+            if (to != null) {
+                int compare = sketch.compare(vertex, depth, i, to);
+                if (compare > 0 || (compare == 0 && toInclusive == false)) {
+                    continue;
+                }
+            }
+
+            matches.set(i);
+        }
+    }
+
     public void setGraphMetrics(GraphMetrics metrics) {
         this.metrics = metrics;
     }
@@ -1,40 +1,71 @@
 package edu.colostate.cs.galileo.query2;
 
 import java.io.IOException;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.RecursiveAction;
 
 import edu.colostate.cs.galileo.dataset.feature.FeatureType;
+import edu.colostate.cs.galileo.graph2.CompactSketch;
 import edu.colostate.cs.galileo.graph2.Vertex;
 import edu.colostate.cs.galileo.serialization.SerializationOutputStream;
 
 public class RelationalQuery extends Query {
 
-    protected Set<Vertex> pruned;
+    protected VertexSet pruned;
+
+    /** IDs of the pruned vertices when querying a {@link CompactSketch} */
+    protected BitSet prunedVertices;
 
     public RelationalQuery() {
 
     }
 
     public int numPruned() {
+        if (this.prunedVertices != null) {
+            return this.prunedVertices.cardinality();
+        }
         return this.pruned.size();
     }
 
     @Override
     public void execute(Vertex root)
     throws QueryException {
-        if (this.metrics != null) {
-            /* To make sure we don't spend time resizing the pruned HashSet, set
-             * it to the number of vertices in the graph divided by the default
-             * load factor. */
-            this.pruned = new HashSet<Vertex>(
-                    (int) (metrics.getVertexCount() / 0.75));
-        } else {
-            this.pruned = new HashSet<>();
+        this.pruned = VertexSet.create(this.metrics);
+        this.prunedVertices = null;
+        prune(root, 0);
+    }
+
+    @Override
+    public void execute(Vertex root, ParallelQueryExecutor executor)
+    throws QueryException {
+        this.pruned = VertexSet.create(this.metrics);
+        this.prunedVertices = null;
+        executor.invoke(new PruneTask(root, 0, 0, executor));
+    }
+
+    @Override
+    public void execute(CompactSketch sketch)
+    throws QueryException {
+        this.pruned = null;
+        this.prunedVertices = new BitSet(sketch.numVertices());
+        prune(sketch, CompactSketch.ROOT, 0, 0);
+    }
+
+    /**
+     * Serializes the portions of a {@link CompactSketch} that were not pruned
+     * by this query.
+     */
+    public void serializeResults(
+            CompactSketch sketch, SerializationOutputStream out)
+    throws IOException {
+        if (prunedVertices.get(CompactSketch.ROOT)) {
+            return;
         }
 
-        prune(root, 0);
+        sketch.serialize(out, prunedVertices);
     }
 
     public void serializeResults(Vertex vertex, SerializationOutputStream out)
@@ -65,7 +96,26 @@ public class RelationalQuery extends Query {
         }
     }
 
-    private boolean prune(Vertex vertex, int expressionsEvaluated)
+    /**
+     * Serializes the portions of the graph that were not pruned by this query
+     * as a sequence of bounded-size frames.  {@link FramedResultWriter#finish}
+     * must be called once all the results have been written.
+     */
+    public void serializeResults(Vertex vertex, FramedResultWriter writer)
+    throws IOException {
+        if (pruned.contains(vertex)) {
+            return;
+        }
+
+        writer.open(vertex);
+        for (Vertex v : vertex.getAllNeighbors()) {
+            serializeResults(v, writer);
+        }
+        writer.close();
+    }
+
+    private boolean prune(CompactSketch sketch, int vertex, int depth,
+            int expressionsEvaluated)
     throws QueryException {
         if (expressionsEvaluated == this.expressions.size()) {
             /* There are no further expressions to evaluate. Therefore, we must
@@ -73,48 +123,189 @@ public class RelationalQuery extends Query {
             return true;
         }
 
+        int count = sketch.numChildren(vertex);
+        if (count == 0) {
+            /* A leaf with expressions left to evaluate cannot match */
+            prunedVertices.set(vertex);
+            return false;
+        }
+
         boolean foundSubMatch = false;
-        String childFeature = vertex.getFirstNeighbor().getLabel().getName();
-        List<Expression> expList = this.expressions.get(childFeature);
+        List<Expression> expList
+            = this.expressions.get(sketch.getLevelName(depth));
         if (expList != null) {
-            Set<Vertex> matches = evaluate(vertex, expList);
-            if (matches.size() == 0) {
-                pruned.add(vertex);
+            BitSet matches = evaluate(sketch, vertex, depth, expList);
+            if (matches.isEmpty()) {
+                prunedVertices.set(vertex);
                 return false;
             }
 
-            for (Vertex match : matches) {
-                if (match == null) {
-                    continue;
-                }
-
-                if (match.getLabel().getType() == FeatureType.NULL) {
+            for (int i = 0; i < count; ++i) {
+                int child = sketch.getChild(vertex, i);
+                if (matches.get(i) == false) {
+                    prunedVertices.set(child);
                     continue;
                 }
 
-                if (prune(match, expressionsEvaluated + 1) == true) {
+                if (prune(sketch, child, depth + 1,
+                            expressionsEvaluated + 1) == true) {
                     foundSubMatch = true;
                 }
             }
-
-            Set<Vertex> nonMatches = new HashSet<>(vertex.getAllNeighbors());
-            nonMatches.removeAll(matches);
-            for (Vertex nonMatch : nonMatches) {
-                pruned.add(nonMatch);
-            }
         } else {
             /* No expression operates on this vertex. Consider all children. */
-            for (Vertex neighbor : vertex.getAllNeighbors()) {
-                if (prune(neighbor, expressionsEvaluated) == true) {
+            for (int i = 0; i < count; ++i) {
+                if (prune(sketch, sketch.getChild(vertex, i), depth + 1,
+                            expressionsEvaluated) == true) {
                     foundSubMatch = true;
                 }
             }
         }
 
+        if (foundSubMatch == false) {
+            prunedVertices.set(vertex);
+        }
+
+        return foundSubMatch;
+    }
+
+    private boolean prune(Vertex vertex, int expressionsEvaluated)
+    throws QueryException {
+        if (expressionsEvaluated == this.expressions.size()) {
+            /* There are no further expressions to evaluate. Therefore, we must
+             * assume all children from this point are relevant to the query. */
+            return true;
+        }
+
+        List<Vertex> children = new ArrayList<>();
+        int childExpressions = selectChildren(
+                vertex, expressionsEvaluated, children);
+        if (childExpressions == -1) {
+            return false;
+        }
+
+        boolean foundSubMatch = false;
+        for (Vertex child : children) {
+            if (prune(child, childExpressions) == true) {
+                foundSubMatch = true;
+            }
+        }
+
         if (foundSubMatch == false) {
             pruned.add(vertex);
         }
 
         return foundSubMatch;
     }
+
+    /**
+     * Evaluates the expressions that apply to the children of a vertex.
+     * Children that do not match are pruned.
+     *
+     * @param children populated with the children that must be visited.
+     * @return the number of expressions evaluated once the children are
+     * reached, or -1 if the vertex itself was pruned.
+     */
+    private int selectChildren(Vertex vertex, int expressionsEvaluated,
+            List<Vertex> children)
+    throws QueryException {
+        if (vertex.numNeighbors() == 0) {
+            /* A leaf with expressions left to evaluate cannot match */
+            pruned.add(vertex);
+            return -1;
+        }
+
+        String childFeature = vertex.getFirstNeighbor().getLabel().getName();
+        List<Expression> expList = this.expressions.get(childFeature);
+        if (expList == null) {
+            /* No expression operates on this vertex. Consider all children. */
+            children.addAll(vertex.getAllNeighbors());
+            return expressionsEvaluated;
+        }
+
+        Set<Vertex> matches = evaluate(vertex, expList);
+        if (matches.size() == 0) {
+            pruned.add(vertex);
+            return -1;
+        }
+
+        /* Walk the neighbors once, pruning the ones that did not match */
+        for (Vertex neighbor : vertex.getAllNeighbors()) {
+            if (matches.contains(neighbor) == false) {
+                pruned.add(neighbor);
+                continue;
+            }
+
+            if (neighbor.getLabel().getType() == FeatureType.NULL) {
+                continue;
+            }
+
+            children.add(neighbor);
+        }
+
+        return expressionsEvaluated + 1;
+    }
+
+    /**
+     * Prunes a subtree.  Subtrees near the top of the hierarchy are split into
+     * further tasks; all the tasks record pruned vertices in the query's
+     * (thread-safe) pruned set.
+     */
+    private class PruneTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private Vertex vertex;
+        private int depth;
+        private int expressionsEvaluated;
+        private ParallelQueryExecutor executor;
+
+        private boolean foundSubMatch;
+
+        public PruneTask(Vertex vertex, int depth, int expressionsEvaluated,
+                ParallelQueryExecutor executor) {
+            this.vertex = vertex;
+            this.depth = depth;
+            this.expressionsEvaluated = expressionsEvaluated;
+            this.executor = executor;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                if (executor.split(depth) == false
+                        || expressionsEvaluated == expressions.size()) {
+                    foundSubMatch = prune(vertex, expressionsEvaluated);
+                    return;
+                }
+
+                List<Vertex> children = new ArrayList<>();
+                int childExpressions = selectChildren(
+                        vertex, expressionsEvaluated, children);
+                if (childExpressions == -1) {
+                    foundSubMatch = false;
+                    return;
+                }
+
+                List<PruneTask> tasks = new ArrayList<>(children.size());
+                for (Vertex child : children) {
+                    tasks.add(new PruneTask(
+                                child, depth + 1, childExpressions, executor));
+                }
+                invokeAll(tasks);
+
+                for (PruneTask task : tasks) {
+                    if (task.foundSubMatch) {
+                        foundSubMatch = true;
+                    }
+                }
+
+                if (foundSubMatch == false) {
+                    pruned.add(vertex);
+                }
+            } catch (QueryException e) {
+                throw new ParallelQueryExecutor.TaskException(e);
+            }
+        }
+    }
 }
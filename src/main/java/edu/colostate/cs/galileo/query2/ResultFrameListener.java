@@ -0,0 +1,44 @@
+/*
+Copyright (c) 2016, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package edu.colostate.cs.galileo.query2;
+
+import java.io.IOException;
+
+/**
+ * Receives the frames produced by a {@link FramedResultWriter}.
+ */
+public interface ResultFrameListener {
+
+    /**
+     * Called when a frame is complete.  Each frame is a self-contained graph
+     * in the format read by
+     * {@link edu.colostate.cs.galileo.graph2.Sketch#merge}.  The buffer is
+     * reused for the next frame once this method returns, so the frame must
+     * be written out or copied before then.
+     */
+    public void onFrame(byte[] frame, int length)
+    throws IOException;
+}
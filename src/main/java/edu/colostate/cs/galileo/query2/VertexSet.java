@@ -0,0 +1,131 @@
+/*
+Copyright (c) 2016, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package edu.colostate.cs.galileo.query2;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import edu.colostate.cs.galileo.graph2.GraphMetrics;
+import edu.colostate.cs.galileo.graph2.Vertex;
+
+/**
+ * A thread-safe set of vertices, used to record the vertices pruned by a
+ * {@link RelationalQuery}.  Graphs that maintain {@link GraphMetrics} assign
+ * dense IDs to their vertices, so the set is stored as a bitmap with one bit
+ * per ID.  Vertices without IDs are stored in a hash set instead.
+ */
+abstract class VertexSet {
+
+    public abstract void add(Vertex vertex);
+
+    public abstract boolean contains(Vertex vertex);
+
+    public abstract int size();
+
+    /**
+     * Creates a VertexSet suitable for the vertices of a graph.
+     *
+     * @param metrics the graph's metrics, or null if its vertices were
+     * connected without IDs.
+     */
+    public static VertexSet create(GraphMetrics metrics) {
+        if (metrics == null) {
+            return new HashVertexSet();
+        }
+        return new BitmapVertexSet(metrics.getVertexIdLimit());
+    }
+
+    private static class BitmapVertexSet extends VertexSet {
+
+        private AtomicLongArray words;
+        private int limit;
+
+        public BitmapVertexSet(int limit) {
+            this.limit = limit;
+            this.words = new AtomicLongArray((limit + 63) >>> 6);
+        }
+
+        private int index(Vertex vertex) {
+            int id = vertex.getId();
+            if (id >= limit) {
+                throw new IllegalStateException("Vertex " + vertex
+                        + " was added to the graph during the query");
+            }
+            return id;
+        }
+
+        @Override
+        public void add(Vertex vertex) {
+            int id = index(vertex);
+            int word = id >>> 6;
+            long bit = 1L << id;
+            long current;
+            do {
+                current = words.get(word);
+                if ((current & bit) != 0) {
+                    return;
+                }
+            } while (words.compareAndSet(word, current, current | bit)
+                    == false);
+        }
+
+        @Override
+        public boolean contains(Vertex vertex) {
+            int id = index(vertex);
+            return (words.get(id >>> 6) & (1L << id)) != 0;
+        }
+
+        @Override
+        public int size() {
+            int size = 0;
+            for (int i = 0; i < words.length(); ++i) {
+                size += Long.bitCount(words.get(i));
+            }
+            return size;
+        }
+    }
+
+    private static class HashVertexSet extends VertexSet {
+
+        private Set<Vertex> vertices = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public void add(Vertex vertex) {
+            vertices.add(vertex);
+        }
+
+        @Override
+        public boolean contains(Vertex vertex) {
+            return vertices.contains(vertex);
+        }
+
+        @Override
+        public int size() {
+            return vertices.size();
+        }
+    }
+}
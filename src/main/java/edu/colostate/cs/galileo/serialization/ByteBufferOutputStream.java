@@ -0,0 +1,159 @@
+/*
+Copyright (c) 2016, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package edu.colostate.cs.galileo.serialization;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes a stream to a growable {@link ByteBuffer}.  The buffer can either
+ * be on the heap or allocated directly; when it fills up, it is replaced with
+ * a buffer of the same kind that is twice as large.
+ * <p>
+ * Unlike ByteArrayOutputStream, this class is not synchronized, and its
+ * contents can be retrieved with {@link #buffer()} without being copied.
+ * When a {@link SerializationOutputStream} is created over a
+ * ByteBufferOutputStream, it also writes arrays of primitives directly to the
+ * buffer.
+ */
+public class ByteBufferOutputStream extends OutputStream {
+
+    private static final int DEFAULT_CAPACITY = 256;
+
+    private ByteBuffer buffer;
+
+    public ByteBufferOutputStream() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a ByteBufferOutputStream backed by a heap buffer.
+     *
+     * @param capacity initial capacity of the buffer, in bytes.
+     */
+    public ByteBufferOutputStream(int capacity) {
+        this(ByteBuffer.allocate(capacity));
+    }
+
+    /**
+     * Creates a ByteBufferOutputStream that writes to the remaining space in
+     * an existing (heap, direct, or memory-mapped) buffer.  If the space runs
+     * out, the stream switches to a larger copy of its contents, so callers
+     * should retrieve the contents with {@link #buffer()} rather than through
+     * the original buffer.
+     */
+    public ByteBufferOutputStream(ByteBuffer buffer) {
+        this.buffer = buffer.slice();
+    }
+
+    @Override
+    public void write(int b) {
+        reserve(1).put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        reserve(len).put(b, off, len);
+    }
+
+    /**
+     * Ensures there is room for a number of bytes in the buffer, growing it if
+     * necessary.
+     *
+     * @return the buffer, positioned where the bytes should be written.
+     */
+    ByteBuffer reserve(int bytes) {
+        if (buffer.remaining() >= bytes) {
+            return buffer;
+        }
+
+        long required = (long) buffer.position() + bytes;
+        if (required > Integer.MAX_VALUE) {
+            throw new OutOfMemoryError("Required buffer size is too large");
+        }
+        int capacity = (int) Math.min(Integer.MAX_VALUE,
+                Math.max(buffer.capacity() * 2L, required));
+
+        ByteBuffer larger;
+        if (buffer.isDirect()) {
+            larger = ByteBuffer.allocateDirect(capacity);
+        } else {
+            larger = ByteBuffer.allocate(capacity);
+        }
+        buffer.flip();
+        larger.put(buffer);
+        buffer = larger;
+        return buffer;
+    }
+
+    /**
+     * Retrieves the bytes that have been written without copying them.
+     *
+     * @return a view of the underlying buffer, positioned at the first byte
+     * written and limited to the last.
+     */
+    public ByteBuffer buffer() {
+        ByteBuffer view = buffer.duplicate();
+        view.flip();
+        return view;
+    }
+
+    /**
+     * @return the number of bytes that have been written.
+     */
+    public int size() {
+        return buffer.position();
+    }
+
+    /**
+     * Discards the contents of the stream, so the buffer can be reused.
+     */
+    public void reset() {
+        buffer.clear();
+    }
+
+    /**
+     * @return a copy of the bytes that have been written.
+     */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[buffer.position()];
+        buffer().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Writes the contents of this stream to another OutputStream.
+     */
+    public void writeTo(OutputStream out)
+    throws IOException {
+        if (buffer.hasArray()) {
+            out.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+        } else {
+            out.write(toByteArray());
+        }
+    }
+}
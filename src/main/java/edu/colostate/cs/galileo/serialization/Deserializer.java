@@ -0,0 +1,50 @@
+/*
+Copyright (c) 2016, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package edu.colostate.cs.galileo.serialization;
+
+import java.io.IOException;
+
+/**
+ * Creates instances of a {@link ByteSerializable} type from their serialized
+ * form.  The {@link Serializer} resolves a Deserializer for each type once and
+ * reuses it for every subsequent object of that type.  By default, this calls
+ * the type's {@link ByteSerializable.Deserialize} constructor through a cached
+ * MethodHandle, but frequently-deserialized types can register a direct
+ * factory (such as a constructor reference) with
+ * {@link Serializer#registerDeserializer(Class, Deserializer)}.
+ */
+@FunctionalInterface
+public interface Deserializer<T extends ByteSerializable> {
+
+    /**
+     * Reads an object from a stream.
+     *
+     * @param in SerializationInputStream containing a serialized instance of
+     *           the object being loaded.
+     */
+    public T deserialize(SerializationInputStream in)
+        throws IOException, SerializationException;
+}
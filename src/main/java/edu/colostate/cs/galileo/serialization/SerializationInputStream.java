@@ -27,20 +27,114 @@ package edu.colostate.cs.galileo.serialization;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.zip.GZIPInputStream;
 
 public class SerializationInputStream extends DataInputStream {
 
+    /* Non-null when reading directly from a ByteBuffer */
+    private ByteBuffer buffer;
+
+    /* Strings read so far; non-null when string dictionary decoding is
+     * enabled */
+    private List<String> stringDictionary;
+    private byte[] stringBytes = new byte[0];
+
     public SerializationInputStream(InputStream in) {
         super(in);
+        if (in instanceof ByteBufferInputStream) {
+            this.buffer = ((ByteBufferInputStream) in).buffer();
+        }
+    }
+
+    /**
+     * Creates a SerializationInputStream that reads from a heap, direct, or
+     * memory-mapped ByteBuffer, starting at its current position.  The
+     * buffer's position advances as the stream is read.
+     */
+    public SerializationInputStream(ByteBuffer buffer) {
+        this(new ByteBufferInputStream(buffer));
     }
 
     public String readString()
     throws IOException {
-        return readUTF();
+        if (stringDictionary == null) {
+            return readUTF();
+        }
+
+        int tag = readVarInt();
+        if (tag >= 2) {
+            int id = tag - 2;
+            if (id >= stringDictionary.size()) {
+                throw new IOException("Invalid string dictionary reference: "
+                        + id);
+            }
+            return stringDictionary.get(id);
+        }
+
+        int length = readVarInt();
+        if (length < 0) {
+            throw new IOException("Invalid string length: " + length);
+        }
+        if (stringBytes.length < length) {
+            stringBytes = new byte[Math.max(length, stringBytes.length * 2)];
+        }
+        readFully(stringBytes, 0, length);
+        String str = new String(stringBytes, 0, length, StandardCharsets.UTF_8);
+
+        if (tag == 1) {
+            stringDictionary.add(str);
+        }
+        return str;
+    }
+
+    /**
+     * Enables or disables string dictionary decoding for
+     * {@link #readString()}.
+     *
+     * @see SerializationOutputStream#setStringDictionary(boolean)
+     */
+    public void setStringDictionary(boolean enabled) {
+        if (enabled == false) {
+            stringDictionary = null;
+        } else if (stringDictionary == null) {
+            stringDictionary = new ArrayList<>();
+        }
+    }
+
+    /**
+     * Forgets the Strings read so far.
+     *
+     * @see SerializationOutputStream#resetStringDictionary()
+     */
+    public void resetStringDictionary() {
+        if (stringDictionary != null) {
+            stringDictionary.clear();
+        }
+    }
+
+    /**
+     * Reads an int written by
+     * {@link SerializationOutputStream#writeVarInt(int)}.
+     */
+    public int readVarInt()
+    throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable-length int");
     }
 
     public byte[] readField()
@@ -75,6 +169,72 @@ public class SerializationInputStream extends DataInputStream {
         }
     }
 
+    /**
+     * Reads an array of doubles that was written by
+     * {@link SerializationOutputStream#writeDoubles(double[])}.  The length
+     * of the array is not part of the stream; the entire array is filled.
+     */
+    public void readDoubles(double[] values)
+    throws IOException {
+        if (buffer != null) {
+            checkRemaining(values.length, Double.BYTES);
+            buffer.slice().asDoubleBuffer().get(values);
+            skipBuffer(values.length, Double.BYTES);
+            return;
+        }
+
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = readDouble();
+        }
+    }
+
+    /**
+     * Reads an array of longs that was written by
+     * {@link SerializationOutputStream#writeLongs(long[])}.
+     */
+    public void readLongs(long[] values)
+    throws IOException {
+        if (buffer != null) {
+            checkRemaining(values.length, Long.BYTES);
+            buffer.slice().asLongBuffer().get(values);
+            skipBuffer(values.length, Long.BYTES);
+            return;
+        }
+
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = readLong();
+        }
+    }
+
+    /**
+     * Reads an array of ints that was written by
+     * {@link SerializationOutputStream#writeInts(int[])}.
+     */
+    public void readInts(int[] values)
+    throws IOException {
+        if (buffer != null) {
+            checkRemaining(values.length, Integer.BYTES);
+            buffer.slice().asIntBuffer().get(values);
+            skipBuffer(values.length, Integer.BYTES);
+            return;
+        }
+
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = readInt();
+        }
+    }
+
+    private void checkRemaining(int count, int size)
+    throws EOFException {
+        if (buffer.remaining() < (long) count * size) {
+            throw new EOFException();
+        }
+    }
+
+    private void skipBuffer(int count, int size) {
+        buffer.position(buffer.position() + count * size);
+    }
+
     public <T extends ByteSerializable> void readSerializableCollection(
             Class<T> type, Collection<T> collection)
     throws IOException, SerializationException {
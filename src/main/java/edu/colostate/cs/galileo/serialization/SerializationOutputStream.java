@@ -29,16 +29,36 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.zip.Deflater;
 import java.util.zip.GZIPOutputStream;
 
 public class SerializationOutputStream extends DataOutputStream {
 
+    /** Maximum number of Strings kept in a string dictionary. */
+    private static final int MAX_DICTIONARY_SIZE = 65536;
+
+    /** Longest String (in chars) that will be added to a dictionary. */
+    private static final int MAX_DICTIONARY_STRING = 256;
+
     private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
 
+    /* Identifiers of the Strings written so far; non-null when string
+     * dictionary encoding is enabled */
+    private Map<String, Integer> stringDictionary;
+
+    /* Non-null when writing directly to a ByteBuffer */
+    private ByteBufferOutputStream buffer;
+
     public SerializationOutputStream(OutputStream out) {
         super(out);
+        if (out instanceof ByteBufferOutputStream) {
+            this.buffer = (ByteBufferOutputStream) out;
+        }
     }
 
     /**
@@ -50,7 +70,73 @@ public class SerializationOutputStream extends DataOutputStream {
      */
     public void writeString(String field)
     throws IOException {
-        writeUTF(field);
+        if (stringDictionary == null) {
+            writeUTF(field);
+            return;
+        }
+
+        /* Tags: 0 = String follows, 1 = String follows and is added to the
+         * dictionary, 2+ = reference to dictionary entry (tag - 2) */
+        Integer id = stringDictionary.get(field);
+        if (id != null) {
+            writeVarInt(id + 2);
+            return;
+        }
+
+        if (stringDictionary.size() < MAX_DICTIONARY_SIZE
+                && field.length() <= MAX_DICTIONARY_STRING) {
+            stringDictionary.put(field, stringDictionary.size());
+            writeVarInt(1);
+        } else {
+            writeVarInt(0);
+        }
+
+        byte[] bytes = field.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(bytes.length);
+        write(bytes);
+    }
+
+    /**
+     * Enables or disables string dictionary encoding for
+     * {@link #writeString(String)}.  When enabled, each String is written once
+     * (as UTF-8, without the 64 KB limit of writeUTF) and subsequent
+     * occurrences of it are written as a variable-length reference.  This
+     * changes the wire format, so the stream must be read by a
+     * {@link SerializationInputStream} that has string dictionary decoding
+     * enabled at the same point in the stream.  Unpaired surrogate chars are
+     * not preserved.
+     */
+    public void setStringDictionary(boolean enabled) {
+        if (enabled == false) {
+            stringDictionary = null;
+        } else if (stringDictionary == null) {
+            stringDictionary = new HashMap<>();
+        }
+    }
+
+    /**
+     * Forgets the Strings written so far, so that the data written from this
+     * point on can be decoded without the preceding data.  The reader must
+     * reset its dictionary at the same point.
+     */
+    public void resetStringDictionary() {
+        if (stringDictionary != null) {
+            stringDictionary.clear();
+        }
+    }
+
+    /**
+     * Writes an int using a variable-length encoding: seven bits per byte,
+     * with the high bit set on every byte but the last.  Small non-negative
+     * values take a single byte; negative values take five.
+     */
+    public void writeVarInt(int value)
+    throws IOException {
+        while ((value & ~0x7F) != 0) {
+            write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        write(value);
     }
 
     /**
@@ -99,6 +185,80 @@ public class SerializationOutputStream extends DataOutputStream {
         }
     }
 
+    /**
+     * Writes an array of doubles.  The length of the array is not written;
+     * use {@link SerializationInputStream#readDoubles(double[])} to read the
+     * values back into an array of the same length.
+     */
+    public void writeDoubles(double[] values)
+    throws IOException {
+        if (buffer != null) {
+            ByteBuffer b = reserve(values.length, Double.BYTES);
+            b.slice().asDoubleBuffer().put(values);
+            advance(b, values.length, Double.BYTES);
+            return;
+        }
+
+        for (double value : values) {
+            writeDouble(value);
+        }
+    }
+
+    /**
+     * Writes an array of longs.  The length of the array is not written.
+     */
+    public void writeLongs(long[] values)
+    throws IOException {
+        if (buffer != null) {
+            ByteBuffer b = reserve(values.length, Long.BYTES);
+            b.slice().asLongBuffer().put(values);
+            advance(b, values.length, Long.BYTES);
+            return;
+        }
+
+        for (long value : values) {
+            writeLong(value);
+        }
+    }
+
+    /**
+     * Writes an array of ints.  The length of the array is not written.
+     */
+    public void writeInts(int[] values)
+    throws IOException {
+        if (buffer != null) {
+            ByteBuffer b = reserve(values.length, Integer.BYTES);
+            b.slice().asIntBuffer().put(values);
+            advance(b, values.length, Integer.BYTES);
+            return;
+        }
+
+        for (int value : values) {
+            writeInt(value);
+        }
+    }
+
+    private ByteBuffer reserve(int count, int size) {
+        long bytes = (long) count * size;
+        if (bytes > Integer.MAX_VALUE) {
+            throw new OutOfMemoryError("Array is too large to serialize");
+        }
+        return buffer.reserve((int) bytes);
+    }
+
+    /**
+     * Moves past values that were written to the buffer directly, and counts
+     * them towards the size of this stream.
+     */
+    private void advance(ByteBuffer b, int count, int size) {
+        int bytes = count * size;
+        b.position(b.position() + bytes);
+        written += bytes;
+        if (written < 0) {
+            written = Integer.MAX_VALUE;
+        }
+    }
+
     public void writeSerializableCollection(
             Collection<? extends ByteSerializable> object)
     throws IOException {
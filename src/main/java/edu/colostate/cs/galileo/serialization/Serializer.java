@@ -27,13 +27,16 @@ package edu.colostate.cs.galileo.serialization;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.lang.reflect.Constructor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
@@ -44,9 +47,22 @@ import java.util.zip.GZIPOutputStream;
  *
  * In brief, the static methods in this class will initialize proper streams for
  * reading or creating objects, do the work, and then close the streams.
+ *
+ * The {@link Deserializer} used to create each type of object is resolved the
+ * first time the type is deserialized and cached from then on.
  */
 public class Serializer {
 
+    private static final MethodType STREAM_CONSTRUCTOR
+        = MethodType.methodType(void.class, SerializationInputStream.class);
+
+    private static final MethodType DESERIALIZER_TYPE
+        = MethodType.methodType(
+                ByteSerializable.class, SerializationInputStream.class);
+
+    private static final ConcurrentMap<Class<?>, Deserializer<?>>
+        deserializers = new ConcurrentHashMap<>();
+
     /**
      * Dumps a ByteSerializable object to a portable byte array.
      *
@@ -56,11 +72,9 @@ public class Serializer {
      */
     public static byte[] serialize(ByteSerializable obj)
     throws IOException {
-        ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-        BufferedOutputStream buffOut = new BufferedOutputStream(byteOut);
-
+        ByteBufferOutputStream byteOut = new ByteBufferOutputStream();
         SerializationOutputStream serialOut =
-            new SerializationOutputStream(buffOut);
+            new SerializationOutputStream(byteOut);
 
         serialOut.writeSerializable(obj);
         serialOut.close();
@@ -79,11 +93,25 @@ public class Serializer {
     public static <T extends ByteSerializable> T
         deserialize(Class<T> type, byte[] bytes)
     throws IOException, SerializationException {
-        ByteArrayInputStream byteIn = new ByteArrayInputStream(bytes);
-        BufferedInputStream buffIn = new BufferedInputStream(byteIn);
+        return deserialize(type, ByteBuffer.wrap(bytes));
+    }
 
+    /**
+     * Loads a ByteSerializable object's binary form from a (heap, direct, or
+     * memory-mapped) ByteBuffer and then instantiates a new object using the
+     * SerializationInputStream constructor.  The object is read starting at
+     * the buffer's position, which is advanced past it.
+     *
+     * @param type The type of object to create (deserialize).
+     *             For example, Something.class.
+     *
+     * @param buffer Buffer containing the binary form of the object.
+     */
+    public static <T extends ByteSerializable> T
+        deserialize(Class<T> type, ByteBuffer buffer)
+    throws IOException, SerializationException {
         SerializationInputStream serialIn =
-            new SerializationInputStream(buffIn);
+            new SerializationInputStream(buffer);
 
         T obj = deserialize(type, serialIn);
         serialIn.close();
@@ -107,12 +135,9 @@ public class Serializer {
     private static <T extends ByteSerializable> T deserialize(Class<T> type,
             SerializationInputStream in)
     throws IOException, SerializationException {
-        /* ABANDON HOPE, ALL YE WHO ENTER HERE... */
         T obj = null;
         try {
-            Constructor<T> constructor =
-                type.getConstructor(SerializationInputStream.class);
-            obj = constructor.newInstance(in);
+            obj = deserializer(type).deserialize(in);
         } catch (Exception e) {
             /* We compress the myriad of possible exceptions that could occur
              * here down to a single exception (SerializationException) to
@@ -124,6 +149,74 @@ public class Serializer {
         return obj;
     }
 
+    /**
+     * Retrieves the cached Deserializer for a type, creating one that calls
+     * its SerializationInputStream constructor if the type has not been
+     * deserialized before.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T extends ByteSerializable> Deserializer<T> deserializer(
+            Class<T> type)
+    throws NoSuchMethodException, IllegalAccessException {
+        Deserializer<?> deserializer = deserializers.get(type);
+        if (deserializer == null) {
+            MethodHandle constructor = MethodHandles.lookup()
+                .findConstructor(type, STREAM_CONSTRUCTOR)
+                .asType(DESERIALIZER_TYPE);
+            deserializer = deserializers.putIfAbsent(
+                    type, new ConstructorDeserializer<>(constructor));
+            if (deserializer == null) {
+                deserializer = deserializers.get(type);
+            }
+        }
+        return (Deserializer<T>) deserializer;
+    }
+
+    /**
+     * Deserializes objects by invoking their SerializationInputStream
+     * constructor.
+     */
+    private static class ConstructorDeserializer<T extends ByteSerializable>
+    implements Deserializer<T> {
+
+        private MethodHandle constructor;
+
+        public ConstructorDeserializer(MethodHandle constructor) {
+            this.constructor = constructor;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T deserialize(SerializationInputStream in)
+        throws IOException, SerializationException {
+            try {
+                return (T) (ByteSerializable) constructor.invokeExact(in);
+            } catch (IOException | SerializationException
+                    | RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new SerializationException(
+                        "Deserialization constructor failed", t);
+            }
+        }
+    }
+
+    /**
+     * Registers a factory for creating instances of a type from their
+     * serialized form, replacing the default Deserializer that calls the
+     * type's SerializationInputStream constructor.  Types that are
+     * deserialized in bulk can register a constructor reference here (for
+     * example, {@code registerDeserializer(Something.class,
+     * Something::new)}) to avoid calling the constructor indirectly.
+     *
+     * @param type The type of object the Deserializer creates.
+     * @param deserializer Deserializer for the type.
+     */
+    public static <T extends ByteSerializable> void registerDeserializer(
+            Class<T> type, Deserializer<? extends T> deserializer) {
+        deserializers.put(type, deserializer);
+    }
+
     /**
      * Deserializes and instantiates a ByteSerializable class from a stream.
      * This method should only be used in cases where the type of the
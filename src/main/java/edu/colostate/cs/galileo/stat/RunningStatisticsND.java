@@ -61,6 +61,24 @@ public class RunningStatisticsND implements ByteSerializable {
         this.copyFrom(that);
     }
 
+    /**
+     * Creates a heap-based copy of a record stored in a
+     * {@link StatisticsSlab}.
+     */
+    public RunningStatisticsND(StatisticsSlab slab, int slot) {
+        initialize(slab.dimensions());
+        this.n = slab.count(slot);
+        for (int i = 0; i < this.dimensions(); ++i) {
+            this.mean[i] = slab.mean(slot, i);
+            this.m2[i] = slab.m2(slot, i);
+            this.min[i] = slab.min(slot, i);
+            this.max[i] = slab.max(slot, i);
+        }
+        for (int i = 0; i < this.ss.length; ++i) {
+            this.ss[i] = slab.ss(slot, i);
+        }
+    }
+
     /**
      * Initializes all instance variables based on a given number of dimensions.
      * Useful for constructing new instances or resetting already existing
@@ -112,7 +130,10 @@ public class RunningStatisticsND implements ByteSerializable {
      * @return corresponding array position.
      */
     private int index1D(int i, int j) {
-        int dims = this.dimensions();
+        return index1D(this.dimensions(), i, j);
+    }
+
+    static int index1D(int dims, int i, int j) {
         return (dims * (dims - 1) / 2)
             - (dims - i) * ((dims - i) - 1) / 2 + j - i - 1;
     }
@@ -137,7 +158,7 @@ public class RunningStatisticsND implements ByteSerializable {
                 double dx = samples[i] - mean[i];
                 double dy = samples[j] - mean[j];
                 int index = index1D(i, j);
-                ss[index] += dx * dy * n / (n + 1);
+                ss[index] += dx * dy * (n - 1) / n;
             }
         }
 
@@ -188,6 +209,49 @@ public class RunningStatisticsND implements ByteSerializable {
         this.n = newN;
     }
 
+    /**
+     * Merges a record stored in a {@link StatisticsSlab} into these
+     * statistics without copying it to the heap first.
+     */
+    public void merge(StatisticsSlab slab, int slot) {
+        if (this.initialized() == false) {
+            this.copyFrom(new RunningStatisticsND(slab, slot));
+            return;
+        }
+
+        if (this.dimensions() != slab.dimensions()) {
+            throw new IllegalArgumentException("Dimension mismatch: "
+                    + this.dimensions() + " =/= " + slab.dimensions() + "; "
+                    + "merge operations require equal number of dimensions.");
+        }
+
+        long thatN = slab.count(slot);
+        long newN = n + thatN;
+
+        for (int i = 0; i < this.dimensions() - 1; ++i) {
+            for (int j = i + 1; j < this.dimensions(); ++j) {
+                double dx = slab.mean(slot, i) - this.mean[i];
+                double dy = slab.mean(slot, j) - this.mean[j];
+                int index = index1D(i, j);
+                ss[index] += slab.ss(slot, index) + this.n * thatN * dx * dy
+                    / (this.n + thatN);
+            }
+        }
+
+        for (int d = 0; d < this.dimensions(); ++d) {
+            double thatMean = slab.mean(slot, d);
+            double delta = this.mean[d] - thatMean;
+            this.mean[d] = (this.n * this.mean[d] + thatN * thatMean) / newN;
+            this.m2[d] += slab.m2(slot, d)
+                + delta * delta * this.n * thatN / newN;
+
+            min[d] = FastMath.min(this.min[d], slab.min(slot, d));
+            max[d] = FastMath.max(this.max[d], slab.max(slot, d));
+        }
+
+        this.n = newN;
+    }
+
     public void clear() {
         this.initialize(this.dimensions());
     }
@@ -224,6 +288,30 @@ public class RunningStatisticsND implements ByteSerializable {
         return m2[dimension] / (n - ddof);
     }
 
+    /**
+     * @return Sample covariance of two dimensions
+     */
+    public double cov(int i, int j) {
+        if (i == j) {
+            return var(i);
+        }
+
+        if (n == 0) {
+            return Double.NaN;
+        }
+
+        int index = (i < j) ? index1D(i, j) : index1D(j, i);
+        return ss[index] / (n - 1.0);
+    }
+
+    double m2(int dimension) {
+        return this.m2[dimension];
+    }
+
+    double ss(int index) {
+        return this.ss[index];
+    }
+
     public double min(int dimension) {
         return this.min[dimension];
     }
@@ -285,9 +373,7 @@ public class RunningStatisticsND implements ByteSerializable {
             max[i] = in.readDouble();
         }
 
-        for (int i = 0; i < this.ss.length; ++i) {
-            ss[i] = in.readDouble();
-        }
+        in.readDoubles(ss);
     }
 
     @Override
@@ -307,9 +393,7 @@ public class RunningStatisticsND implements ByteSerializable {
             out.writeDouble(max[i]);
         }
 
-        for (int i = 0; i < ss.length; ++i) {
-            out.writeDouble(ss[i]);
-        }
+        out.writeDoubles(ss);
     }
 
 }
@@ -0,0 +1,74 @@
+/*
+Copyright (c) 2016, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package edu.colostate.cs.galileo.stat;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Manages a collection of {@link StatisticsSlab} instances, one for each
+ * number of dimensions in use.  Graphs whose paths vary in length can share a
+ * single arena for all of their off-heap statistics.
+ */
+public class StatisticsArena {
+
+    private Map<Integer, StatisticsSlab> slabs = new HashMap<>();
+
+    /**
+     * Retrieves the slab that stores records with the given number of
+     * dimensions, creating it if necessary.
+     */
+    public synchronized StatisticsSlab slab(int dimensions) {
+        StatisticsSlab slab = slabs.get(dimensions);
+        if (slab == null) {
+            slab = new StatisticsSlab(dimensions);
+            slabs.put(dimensions, slab);
+        }
+        return slab;
+    }
+
+    /**
+     * Retrieves the number of records allocated across all slabs.
+     */
+    public synchronized long size() {
+        long size = 0;
+        for (StatisticsSlab slab : slabs.values()) {
+            size += slab.size();
+        }
+        return size;
+    }
+
+    /**
+     * Retrieves the amount of off-heap memory reserved by all slabs, in bytes.
+     */
+    public synchronized long capacity() {
+        long capacity = 0;
+        for (StatisticsSlab slab : slabs.values()) {
+            capacity += slab.capacity();
+        }
+        return capacity;
+    }
+}
@@ -0,0 +1,348 @@
+/*
+Copyright (c) 2016, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package edu.colostate.cs.galileo.stat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import org.apache.commons.math3.util.FastMath;
+
+import edu.colostate.cs.galileo.serialization.SerializationOutputStream;
+
+/**
+ * Stores {@link RunningStatisticsND} records with a fixed number of dimensions
+ * outside the Java heap.  Records are addressed by integer slots and packed
+ * into direct ByteBuffers, so large collections of statistics do not add to
+ * the number of objects the garbage collector has to trace.  Records are laid
+ * out as: n, means, m2s, mins, maxes, and the upper triangle of the
+ * co-moment matrix.
+ * <p>
+ * Merging records from separate threads is not synchronized; callers are
+ * responsible for serializing updates to the same slot.
+ */
+public class StatisticsSlab {
+
+    /** Approximate size of each direct buffer allocated by the slab. */
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    private final int dimensions;
+    private final int covariances;
+    private final int recordSize;
+    private final int recordsPerChunk;
+
+    private final int meanOffset;
+    private final int m2Offset;
+    private final int minOffset;
+    private final int maxOffset;
+    private final int ssOffset;
+
+    /* Replaced (never modified) when the slab grows, so readers do not need
+     * to synchronize with allocate() */
+    private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+    private int numSlots = 0;
+
+    private int[] freeSlots = new int[16];
+    private int numFree = 0;
+
+    public StatisticsSlab(int dimensions) {
+        if (dimensions < 0) {
+            throw new IllegalArgumentException(
+                    "Number of dimensions cannot be negative");
+        }
+
+        this.dimensions = dimensions;
+        this.covariances = dimensions * (dimensions - 1) / 2;
+
+        this.meanOffset = Long.BYTES;
+        this.m2Offset = meanOffset + dimensions * Double.BYTES;
+        this.minOffset = m2Offset + dimensions * Double.BYTES;
+        this.maxOffset = minOffset + dimensions * Double.BYTES;
+        this.ssOffset = maxOffset + dimensions * Double.BYTES;
+        this.recordSize = ssOffset + covariances * Double.BYTES;
+
+        this.recordsPerChunk = FastMath.max(1, CHUNK_SIZE / recordSize);
+    }
+
+    public int dimensions() {
+        return dimensions;
+    }
+
+    /**
+     * Allocates a new, empty record.
+     *
+     * @return slot of the record.
+     */
+    public synchronized int allocate() {
+        int slot;
+        if (numFree > 0) {
+            slot = freeSlots[--numFree];
+        } else {
+            slot = numSlots++;
+            if (slot / recordsPerChunk == chunks.length) {
+                ByteBuffer[] grown
+                    = Arrays.copyOf(chunks, chunks.length + 1);
+                grown[chunks.length] = ByteBuffer
+                    .allocateDirect(recordsPerChunk * recordSize)
+                    .order(ByteOrder.nativeOrder());
+                chunks = grown;
+            }
+        }
+
+        clear(slot);
+        return slot;
+    }
+
+    /**
+     * Returns a record to the slab so its space can be reused.  The slot must
+     * not be accessed afterward.
+     */
+    public synchronized void free(int slot) {
+        if (numFree == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, numFree * 2);
+        }
+        freeSlots[numFree++] = slot;
+    }
+
+    /**
+     * Retrieves the number of records currently allocated.
+     */
+    public synchronized int size() {
+        return numSlots - numFree;
+    }
+
+    /**
+     * Retrieves the amount of off-heap memory reserved by this slab, in bytes.
+     */
+    public synchronized long capacity() {
+        return (long) chunks.length * recordsPerChunk * recordSize;
+    }
+
+    private ByteBuffer chunk(int slot) {
+        return chunks[slot / recordsPerChunk];
+    }
+
+    private int offset(int slot) {
+        return (slot % recordsPerChunk) * recordSize;
+    }
+
+    /**
+     * Resets a record to its initial (empty) state.
+     */
+    public void clear(int slot) {
+        ByteBuffer chunk = chunk(slot);
+        int base = offset(slot);
+        chunk.putLong(base, 0);
+        for (int d = 0; d < dimensions; ++d) {
+            int pos = base + d * Double.BYTES;
+            chunk.putDouble(pos + meanOffset, 0.0);
+            chunk.putDouble(pos + m2Offset, 0.0);
+            chunk.putDouble(pos + minOffset, Double.MAX_VALUE);
+            chunk.putDouble(pos + maxOffset, Double.MIN_VALUE);
+        }
+        for (int i = 0; i < covariances; ++i) {
+            chunk.putDouble(base + ssOffset + i * Double.BYTES, 0.0);
+        }
+    }
+
+    public long count(int slot) {
+        return chunk(slot).getLong(offset(slot));
+    }
+
+    public double mean(int slot, int dimension) {
+        return get(slot, meanOffset, dimension);
+    }
+
+    public double min(int slot, int dimension) {
+        return get(slot, minOffset, dimension);
+    }
+
+    public double max(int slot, int dimension) {
+        return get(slot, maxOffset, dimension);
+    }
+
+    double m2(int slot, int dimension) {
+        return get(slot, m2Offset, dimension);
+    }
+
+    double ss(int slot, int index) {
+        return get(slot, ssOffset, index);
+    }
+
+    private double get(int slot, int field, int index) {
+        return chunk(slot).getDouble(
+                offset(slot) + field + index * Double.BYTES);
+    }
+
+    /**
+     * Adds a new set of samples to a record.
+     */
+    public void put(int slot, double... samples) {
+        if (samples.length != dimensions) {
+            throw new IllegalArgumentException("Input dimension mismatch: "
+                    + samples.length + " =/= " + dimensions);
+        }
+
+        ByteBuffer chunk = chunk(slot);
+        int base = offset(slot);
+        long n = chunk.getLong(base) + 1;
+        chunk.putLong(base, n);
+
+        for (int i = 0; i < dimensions - 1; ++i) {
+            for (int j = i + 1; j < dimensions; ++j) {
+                double dx = samples[i]
+                    - chunk.getDouble(base + meanOffset + i * Double.BYTES);
+                double dy = samples[j]
+                    - chunk.getDouble(base + meanOffset + j * Double.BYTES);
+                int index = RunningStatisticsND.index1D(dimensions, i, j);
+                int pos = base + ssOffset + index * Double.BYTES;
+                chunk.putDouble(pos,
+                        chunk.getDouble(pos) + dx * dy * (n - 1) / n);
+            }
+        }
+
+        for (int d = 0; d < dimensions; ++d) {
+            int pos = base + d * Double.BYTES;
+            double mean = chunk.getDouble(pos + meanOffset);
+            double delta = samples[d] - mean;
+            mean = mean + delta / n;
+            chunk.putDouble(pos + meanOffset, mean);
+            chunk.putDouble(pos + m2Offset, chunk.getDouble(pos + m2Offset)
+                    + delta * (samples[d] - mean));
+            chunk.putDouble(pos + minOffset, FastMath.min(
+                        chunk.getDouble(pos + minOffset), samples[d]));
+            chunk.putDouble(pos + maxOffset, FastMath.max(
+                        chunk.getDouble(pos + maxOffset), samples[d]));
+        }
+    }
+
+    /**
+     * Merges heap-based statistics into a record.
+     */
+    public void merge(int slot, RunningStatisticsND that) {
+        if (that.dimensions() != this.dimensions) {
+            throw new IllegalArgumentException("Dimension mismatch: "
+                    + this.dimensions + " =/= " + that.dimensions() + "; "
+                    + "merge operations require equal number of dimensions.");
+        }
+
+        ByteBuffer chunk = chunk(slot);
+        int base = offset(slot);
+
+        long thisN = chunk.getLong(base);
+        long thatN = that.count();
+        long newN = thisN + thatN;
+        if (thisN == 0) {
+            set(chunk, base, that);
+            return;
+        }
+
+        for (int i = 0; i < dimensions - 1; ++i) {
+            for (int j = i + 1; j < dimensions; ++j) {
+                double dx = that.mean(i)
+                    - chunk.getDouble(base + meanOffset + i * Double.BYTES);
+                double dy = that.mean(j)
+                    - chunk.getDouble(base + meanOffset + j * Double.BYTES);
+                int index = RunningStatisticsND.index1D(dimensions, i, j);
+                int pos = base + ssOffset + index * Double.BYTES;
+                chunk.putDouble(pos, chunk.getDouble(pos) + that.ss(index)
+                        + thisN * thatN * dx * dy / newN);
+            }
+        }
+
+        for (int d = 0; d < dimensions; ++d) {
+            int pos = base + d * Double.BYTES;
+            double mean = chunk.getDouble(pos + meanOffset);
+            double delta = mean - that.mean(d);
+            chunk.putDouble(pos + meanOffset,
+                    (thisN * mean + thatN * that.mean(d)) / newN);
+            chunk.putDouble(pos + m2Offset, chunk.getDouble(pos + m2Offset)
+                    + that.m2(d) + delta * delta * thisN * thatN / newN);
+            chunk.putDouble(pos + minOffset, FastMath.min(
+                        chunk.getDouble(pos + minOffset), that.min(d)));
+            chunk.putDouble(pos + maxOffset, FastMath.max(
+                        chunk.getDouble(pos + maxOffset), that.max(d)));
+        }
+
+        chunk.putLong(base, newN);
+    }
+
+    /**
+     * Overwrites a record with the contents of heap-based statistics.
+     */
+    public void set(int slot, RunningStatisticsND that) {
+        if (that.dimensions() != this.dimensions) {
+            throw new IllegalArgumentException("Dimension mismatch: "
+                    + this.dimensions + " =/= " + that.dimensions());
+        }
+
+        set(chunk(slot), offset(slot), that);
+    }
+
+    private void set(ByteBuffer chunk, int base, RunningStatisticsND that) {
+        chunk.putLong(base, that.count());
+        for (int d = 0; d < dimensions; ++d) {
+            int pos = base + d * Double.BYTES;
+            chunk.putDouble(pos + meanOffset, that.mean(d));
+            chunk.putDouble(pos + m2Offset, that.m2(d));
+            chunk.putDouble(pos + minOffset, that.min(d));
+            chunk.putDouble(pos + maxOffset, that.max(d));
+        }
+        for (int i = 0; i < covariances; ++i) {
+            chunk.putDouble(base + ssOffset + i * Double.BYTES, that.ss(i));
+        }
+    }
+
+    /**
+     * Serializes a record in the same format as
+     * {@link RunningStatisticsND#serialize(SerializationOutputStream)}.
+     */
+    public void serialize(int slot, SerializationOutputStream out)
+    throws IOException {
+        out.writeInt(dimensions);
+        if (dimensions == 0) {
+            return;
+        }
+
+        ByteBuffer chunk = chunk(slot);
+        int base = offset(slot);
+        out.writeLong(chunk.getLong(base));
+
+        for (int d = 0; d < dimensions; ++d) {
+            int pos = base + d * Double.BYTES;
+            out.writeDouble(chunk.getDouble(pos + meanOffset));
+            out.writeDouble(chunk.getDouble(pos + m2Offset));
+            out.writeDouble(chunk.getDouble(pos + minOffset));
+            out.writeDouble(chunk.getDouble(pos + maxOffset));
+        }
+
+        for (int i = 0; i < covariances; ++i) {
+            int pos = base + ssOffset + i * Double.BYTES;
+            out.writeDouble(chunk.getDouble(pos));
+        }
+    }
+}
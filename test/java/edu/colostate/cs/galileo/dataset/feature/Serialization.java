@@ -27,12 +27,17 @@ package galileo.test.dataset.feature;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import org.junit.Test;
 
 import galileo.dataset.feature.Feature;
+import galileo.serialization.ByteBufferOutputStream;
 import galileo.serialization.SerializationException;
+import galileo.serialization.SerializationInputStream;
+import galileo.serialization.SerializationOutputStream;
 import galileo.serialization.Serializer;
 
 public class Serialization {
@@ -92,10 +97,153 @@ public class Serialization {
         testSerialization(new Feature("interval", 1337.00d, 1000345.234d));
     }
 
+    @Test
+    public void testHeapBuffer() throws Exception {
+        testBufferSerialization(new Feature("test", "testing string!"),
+                ByteBuffer.allocate(128));
+    }
+
+    @Test
+    public void testDirectBuffer() throws Exception {
+        testBufferSerialization(new Feature("test", 3.6d),
+                ByteBuffer.allocateDirect(128));
+    }
+
+    @Test
+    public void testArrays() throws Exception {
+        double[] doubles = { 0.0, -1.5, Double.MAX_VALUE, Double.NaN };
+        long[] longs = { 0L, -1L, Long.MIN_VALUE, Long.MAX_VALUE };
+        int[] ints = { 0, -1, Integer.MIN_VALUE, Integer.MAX_VALUE };
+
+        /* Starts small so the output buffer has to grow */
+        ByteBufferOutputStream buffer = new ByteBufferOutputStream(4);
+        SerializationOutputStream out = new SerializationOutputStream(buffer);
+        out.writeDoubles(doubles);
+        out.writeLongs(longs);
+        out.writeInts(ints);
+        out.writeInt(42);
+        out.close();
+        assertEquals("Size", 4 * 8 + 4 * 8 + 4 * 4 + 4, buffer.size());
+
+        /* Bulk reads from a buffer and element-by-element reads from a
+         * stream must produce the same values */
+        byte[] bytes = buffer.toByteArray();
+        checkArrays(new SerializationInputStream(ByteBuffer.wrap(bytes)),
+                doubles, longs, ints);
+        checkArrays(new SerializationInputStream(
+                    new ByteArrayInputStream(bytes)), doubles, longs, ints);
+    }
+
+    @Test
+    public void testStringDictionary() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 300; ++i) {
+            sb.append('x');
+        }
+        /* Includes a String too long to be added to the dictionary, and one
+         * longer than writeUTF allows */
+        String large = sb.toString();
+        for (int i = 0; i < 250; ++i) {
+            sb.append("0123456789");
+        }
+        String[] strings = { "temperature", "", "\u00e9t\u00e9 \u6e29\u5ea6",
+            large, sb.toString() };
+
+        ByteBufferOutputStream buffer = new ByteBufferOutputStream();
+        SerializationOutputStream out = new SerializationOutputStream(buffer);
+        out.setStringDictionary(true);
+        for (int i = 0; i < 3; ++i) {
+            for (String string : strings) {
+                out.writeString(string);
+            }
+            out.writeInt(i);
+            out.resetStringDictionary();
+        }
+        out.close();
+
+        SerializationInputStream in = new SerializationInputStream(
+                ByteBuffer.wrap(buffer.toByteArray()));
+        in.setStringDictionary(true);
+        for (int i = 0; i < 3; ++i) {
+            for (String string : strings) {
+                assertEquals("String", string, in.readString());
+            }
+            assertEquals("Trailing int", i, in.readInt());
+            in.resetStringDictionary();
+        }
+        in.close();
+    }
+
+    @Test
+    public void testDictionaryReferences() throws Exception {
+        ByteBufferOutputStream plain = new ByteBufferOutputStream();
+        ByteBufferOutputStream dict = new ByteBufferOutputStream();
+        SerializationOutputStream plainOut
+            = new SerializationOutputStream(plain);
+        SerializationOutputStream dictOut
+            = new SerializationOutputStream(dict);
+        dictOut.setStringDictionary(true);
+
+        for (int i = 0; i < 1000; ++i) {
+            String name = "feature" + (i % 10);
+            plainOut.writeString(name);
+            dictOut.writeString(name);
+        }
+        plainOut.close();
+        dictOut.close();
+
+        /* After the first occurrence, each repeated String is a single byte
+         * reference */
+        assertEquals("Dictionary size", 10 * 10 + 990, dict.size());
+        assertTrue("Smaller than plain", dict.size() < plain.size());
+
+        SerializationInputStream in = new SerializationInputStream(
+                dict.buffer());
+        in.setStringDictionary(true);
+        for (int i = 0; i < 1000; ++i) {
+            assertEquals("String", "feature" + (i % 10), in.readString());
+        }
+        in.close();
+    }
+
+    private void checkArrays(SerializationInputStream in, double[] doubles,
+            long[] longs, int[] ints)
+    throws IOException {
+        double[] d = new double[doubles.length];
+        long[] l = new long[longs.length];
+        int[] i = new int[ints.length];
+        in.readDoubles(d);
+        in.readLongs(l);
+        in.readInts(i);
+        assertArrayEquals("Doubles", doubles, d, 0.0);
+        assertArrayEquals("Longs", longs, l);
+        assertArrayEquals("Ints", ints, i);
+        assertEquals("Trailing int", 42, in.readInt());
+        in.close();
+    }
+
     private void testSerialization(Feature f1)
     throws IOException, SerializationException {
         byte[] bytes = Serializer.serialize(f1);
         Feature f2 = Serializer.deserialize(Feature.class, bytes);
         assertEquals("Equality", f1, f2);
     }
+
+    /**
+     * Deserializes a Feature from the middle of a buffer, which must leave
+     * the buffer positioned just past it.
+     */
+    private void testBufferSerialization(Feature f1, ByteBuffer buffer)
+    throws IOException, SerializationException {
+        byte[] bytes = Serializer.serialize(f1);
+        buffer.putInt(7);
+        buffer.put(bytes);
+        buffer.putInt(9);
+        buffer.flip();
+
+        assertEquals("Leading int", 7, buffer.getInt());
+        Feature f2 = Serializer.deserialize(Feature.class, buffer);
+        assertEquals("Equality", f1, f2);
+        assertEquals("Trailing int", 9, buffer.getInt());
+    }
 }
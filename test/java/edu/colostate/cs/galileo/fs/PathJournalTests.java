@@ -27,6 +27,9 @@ package galileo.test.fs;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
 
 import galileo.dataset.feature.Feature;
 import galileo.fs.PathJournal;
@@ -75,4 +78,88 @@ public class PathJournalTests {
 
         System.out.println("=======");
     }
+
+    private FeaturePath<String> createPath(int i) {
+        FeaturePath<String> fp = new FeaturePath<>();
+        fp.add(new Feature("humidity", i * 1.5f));
+        fp.add(new Feature("temperature", i * 0.25));
+        fp.add(new Feature("station", "station-" + i));
+        fp.addPayload("/a/b/" + i);
+        return fp;
+    }
+
+    /**
+     * Writes paths to a new journal, using both single and batched (group
+     * committed) appends.
+     */
+    private void writeJournal(int count) throws Exception {
+        removeJournal();
+        PathJournal pj = new PathJournal(journal);
+        pj.start();
+
+        List<FeaturePath<String>> batch = new ArrayList<>();
+        for (int i = 1; i < count; ++i) {
+            batch.add(createPath(i));
+        }
+        pj.persistPath(createPath(0));
+        pj.persistPaths(batch);
+        pj.shutdown();
+    }
+
+    private List<FeaturePath<String>> recoverJournal(boolean parallel)
+    throws Exception {
+        PathJournal pj = new PathJournal(journal);
+        pj.setParallelRecovery(parallel);
+        List<FeaturePath<String>> paths = new ArrayList<>();
+        assertTrue("Clean recovery", pj.recover(paths));
+        pj.shutdown();
+        return paths;
+    }
+
+    private void checkPaths(List<FeaturePath<String>> paths, int count) {
+        assertEquals("Recovered paths", count, paths.size());
+        for (int i = 0; i < count; ++i) {
+            FeaturePath<String> expected = createPath(i);
+            FeaturePath<String> actual = paths.get(i);
+            assertEquals("Labels", expected.getLabels(), actual.getLabels());
+            assertEquals("Payload", expected.getPayload(),
+                    actual.getPayload());
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        writeJournal(100);
+        checkPaths(recoverJournal(false), 100);
+        checkPaths(recoverJournal(true), 100);
+    }
+
+    @Test
+    public void testTornRecord() throws Exception {
+        writeJournal(10);
+
+        /* Simulate a crash part way through writing the final record */
+        try (RandomAccessFile file = new RandomAccessFile(journal, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        checkPaths(recoverJournal(false), 9);
+        checkPaths(recoverJournal(true), 9);
+    }
+
+    @Test
+    public void testCorruptRecord() throws Exception {
+        writeJournal(10);
+
+        /* Flip a bit in the final record so its checksum no longer matches */
+        try (RandomAccessFile file = new RandomAccessFile(journal, "rw")) {
+            file.seek(file.length() - 1);
+            int b = file.read();
+            file.seek(file.length() - 1);
+            file.write(b ^ 0x01);
+        }
+
+        checkPaths(recoverJournal(false), 9);
+        checkPaths(recoverJournal(true), 9);
+    }
 }
@@ -0,0 +1,274 @@
+/*
+Copyright (c) 2016, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.test.graph;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Map;
+import java.util.TreeMap;
+
+import galileo.dataset.feature.Feature;
+import galileo.dataset.feature.FeatureType;
+import galileo.graph.FeatureHierarchy;
+import galileo.graph2.CompactSketch;
+import galileo.graph2.Path;
+import galileo.graph2.Sketch;
+import galileo.graph2.Vertex;
+import galileo.query2.Expression;
+import galileo.query2.MetaQuery;
+import galileo.query2.Operator;
+import galileo.query2.PartitionQuery;
+import galileo.query2.QueryException;
+import galileo.query2.RelationalQuery;
+import galileo.serialization.SerializationInputStream;
+import galileo.serialization.SerializationOutputStream;
+import galileo.stat.RunningStatisticsND;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that queries return the same results from a {@link CompactSketch} as
+ * from a {@link Sketch} holding the same paths.
+ */
+public class CompactSketchQueries {
+
+    private static final float[] TEMPERATURES = {
+        -40.5f, -12.25f, -1.0f, -0.0f, 0.0f, 0.5f, 3.5f, 21.0f, 99.0f,
+        Float.NaN,
+    };
+
+    private Sketch sketch;
+    private CompactSketch compact;
+
+    @Before
+    public void setUp() throws Exception {
+        FeatureHierarchy hierarchy = new FeatureHierarchy();
+        hierarchy.addFeature("temperature", FeatureType.FLOAT);
+        hierarchy.addFeature("humidity", FeatureType.FLOAT);
+        hierarchy.addFeature("location", FeatureType.STRING);
+
+        sketch = new Sketch(hierarchy);
+        compact = new CompactSketch(hierarchy);
+
+        int i = 0;
+        for (float temperature : TEMPERATURES) {
+            for (String location : new String[] { "9xj", "9xk" }) {
+                /* Every third path leaves out the humidity, so that level
+                 * contains wildcards */
+                Path path;
+                if (i % 3 == 0) {
+                    path = new Path(
+                            new Feature("temperature", temperature),
+                            new Feature("location", location));
+                } else {
+                    path = new Path(
+                            new Feature("temperature", temperature),
+                            new Feature("humidity", (float) (i % 4)),
+                            new Feature("location", location));
+                }
+                sketch.addPath(new Path(path));
+                compact.addPath(path);
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Flattens a serialized graph into a map from each leaf's labels to a
+     * summary of its statistics, so graphs can be compared regardless of the
+     * order their vertices were written in.
+     */
+    private static Map<String, String> leaves(byte[] graph)
+    throws Exception {
+        Sketch result = new Sketch();
+        result.merge(new SerializationInputStream(
+                    new ByteArrayInputStream(graph)));
+        Map<String, String> leaves = new TreeMap<>();
+        leaves(result.getRoot(), "", leaves);
+        return leaves;
+    }
+
+    private static void leaves(Vertex vertex, String prefix,
+            Map<String, String> leaves) {
+        for (Vertex v : vertex.getAllNeighbors()) {
+            Feature label = v.getLabel();
+            String labels = prefix + "/" + label.getType() + ":"
+                + label.dataToString();
+            if (v.hasData()) {
+                RunningStatisticsND stats = v.getData().statistics;
+                leaves.put(labels, stats.count() + " " + stats.mean(0));
+            }
+            leaves(v, labels, leaves);
+        }
+    }
+
+    private byte[] results(RelationalQuery query) throws Exception {
+        ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+        SerializationOutputStream out = new SerializationOutputStream(byteOut);
+        sketch.query(query);
+        query.serializeResults(sketch.getRoot(), out);
+        out.close();
+        return byteOut.toByteArray();
+    }
+
+    private byte[] compactResults(RelationalQuery query) throws Exception {
+        ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+        SerializationOutputStream out = new SerializationOutputStream(byteOut);
+        compact.query(query);
+        query.serializeResults(compact, out);
+        out.close();
+        return byteOut.toByteArray();
+    }
+
+    private void compare(Expression... expressions) throws Exception {
+        RelationalQuery relational = new RelationalQuery();
+        RelationalQuery compactRelational = new RelationalQuery();
+        MetaQuery meta = new MetaQuery();
+        MetaQuery compactMeta = new MetaQuery();
+        for (Expression expression : expressions) {
+            relational.addExpression(expression);
+            compactRelational.addExpression(expression);
+            meta.addExpression(expression);
+            compactMeta.addExpression(expression);
+        }
+
+        Map<String, String> expected = leaves(results(relational));
+        Map<String, String> actual = leaves(compactResults(compactRelational));
+        assertEquals(expected, actual);
+
+        sketch.query(meta);
+        compact.query(compactMeta);
+        RunningStatisticsND stats = meta.result().statistics;
+        RunningStatisticsND compactStats = compactMeta.result().statistics;
+        assertEquals(stats.count(), compactStats.count());
+        if (stats.count() > 0) {
+            assertEquals(stats.mean(0), compactStats.mean(0), 0.0);
+        }
+    }
+
+    private static Feature temperature(float value) {
+        return new Feature("temperature", value);
+    }
+
+    @Test
+    public void testAllPaths() throws Exception {
+        compare();
+    }
+
+    @Test
+    public void testNegativeKeys() throws Exception {
+        compare(new Expression(Operator.LESS, temperature(-1.0f)));
+        compare(new Expression(Operator.LESSEQUAL, temperature(-12.25f)));
+        compare(new Expression(Operator.GREATER, temperature(-12.25f)));
+        compare(new Expression(Operator.EQUAL, temperature(-40.5f)));
+        compare(new Expression(Operator.RANGE_INC,
+                    temperature(-40.5f), temperature(-1.0f)));
+        compare(new Expression(Operator.RANGE_EXC,
+                    temperature(-50.0f), temperature(0.5f)));
+    }
+
+    @Test
+    public void testNegativeZero() throws Exception {
+        compare(new Expression(Operator.EQUAL, temperature(-0.0f)));
+        compare(new Expression(Operator.EQUAL, temperature(0.0f)));
+        compare(new Expression(Operator.LESS, temperature(0.0f)));
+        compare(new Expression(Operator.LESSEQUAL, temperature(-0.0f)));
+        compare(new Expression(Operator.GREATEREQUAL, temperature(-0.0f)));
+        compare(new Expression(Operator.GREATER, temperature(-0.0f)));
+        compare(new Expression(Operator.NOTEQUAL, temperature(-0.0f)));
+    }
+
+    @Test
+    public void testNaN() throws Exception {
+        compare(new Expression(Operator.EQUAL, temperature(Float.NaN)));
+        compare(new Expression(Operator.NOTEQUAL, temperature(Float.NaN)));
+        compare(new Expression(Operator.GREATER, temperature(99.0f)));
+        compare(new Expression(Operator.GREATEREQUAL,
+                    temperature(Float.NaN)));
+        compare(new Expression(Operator.LESS, temperature(Float.NaN)));
+    }
+
+    @Test
+    public void testNotEqualWithWildcards() throws Exception {
+        compare(new Expression(Operator.NOTEQUAL,
+                    new Feature("humidity", 1.0f)));
+        compare(new Expression(Operator.NOTEQUAL,
+                    new Feature("humidity", 5.0f)));
+        compare(new Expression(Operator.NOTEQUAL,
+                    new Feature("humidity", 1.0f)),
+                new Expression(Operator.EQUAL,
+                    new Feature("humidity", 1.0f)));
+        compare(new Expression(Operator.NOTEQUAL, temperature(3.5f)),
+                new Expression(Operator.NOTEQUAL,
+                    new Feature("humidity", 2.0f)));
+    }
+
+    @Test
+    public void testSerializeRoundTrip() throws Exception {
+        byte[] graph = results(new RelationalQuery());
+        ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+        SerializationOutputStream out = new SerializationOutputStream(byteOut);
+        compact.serialize(out);
+        out.close();
+        byte[] compactGraph = byteOut.toByteArray();
+        assertEquals(leaves(graph), leaves(compactGraph));
+
+        /* Merging the Sketch's graph into an empty CompactSketch (and
+         * serializing it again) must not change it either */
+        CompactSketch merged = new CompactSketch();
+        merged.merge(new SerializationInputStream(
+                    new ByteArrayInputStream(graph)));
+        byteOut = new ByteArrayOutputStream();
+        out = new SerializationOutputStream(byteOut);
+        merged.serialize(out);
+        out.close();
+        assertEquals(leaves(graph), leaves(byteOut.toByteArray()));
+        assertEquals(compact.getMetrics().getVertexCount(),
+                merged.getMetrics().getVertexCount());
+        assertEquals(compact.getMetrics().getLeafCount(),
+                merged.getMetrics().getLeafCount());
+    }
+
+    @Test
+    public void testMergeIntoCompactSketch() throws Exception {
+        /* Merged data replaces the existing data */
+        byte[] graph = results(new RelationalQuery());
+        compact.merge(new SerializationInputStream(
+                    new ByteArrayInputStream(graph)));
+        compare();
+        compare(new Expression(Operator.LESS, temperature(0.0f)));
+    }
+
+    @Test(expected = QueryException.class)
+    public void testPartitionUnsupported() throws Exception {
+        PartitionQuery query = new PartitionQuery();
+        query.addExpression(new Expression(Operator.EQUAL, temperature(0.5f)));
+        compact.query(query);
+    }
+}
@@ -0,0 +1,302 @@
+/*
+Copyright (c) 2016, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.test.graph;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import galileo.dataset.analysis.Quantizer;
+import galileo.dataset.feature.Feature;
+import galileo.dataset.feature.FeatureType;
+import galileo.graph.FeatureHierarchy;
+import galileo.graph2.ConcurrentSketch;
+import galileo.graph2.Path;
+import galileo.graph2.Sketch;
+import galileo.graph2.Vertex;
+import galileo.query2.Expression;
+import galileo.query2.MetaQuery;
+import galileo.query2.Operator;
+import galileo.query2.RelationalQuery;
+import galileo.serialization.SerializationInputStream;
+import galileo.serialization.SerializationOutputStream;
+import galileo.stat.RunningStatisticsND;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Ingests the same paths and records into a {@link ConcurrentSketch} from
+ * several threads and into a {@link Sketch} from one, and checks that the
+ * two graphs are the same.
+ */
+public class ConcurrentIngest {
+
+    private static final int THREADS = 8;
+    private static final int RECORDS = 20000;
+    private static final double EPSILON = 0.000001;
+
+    private static final List<String> FEATURES
+        = Arrays.asList("temperature", "humidity");
+
+    private FeatureHierarchy hierarchy;
+    private Map<String, Quantizer> quantizers = new HashMap<>();
+    private double[][] values = new double[RECORDS][];
+    private String[] locations = new String[RECORDS];
+
+    private Sketch sketch;
+    private ConcurrentSketch concurrent;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        hierarchy = new FeatureHierarchy();
+        hierarchy.addFeature("temperature", FeatureType.FLOAT);
+        hierarchy.addFeature("humidity", FeatureType.FLOAT);
+        hierarchy.addFeature("location", FeatureType.STRING);
+        quantizers.put("temperature", new Quantizer(
+                    new Feature("temperature", 0.0f),
+                    new Feature("temperature", 100.0f),
+                    new Feature("temperature", 5.0f)));
+        quantizers.put("humidity", new Quantizer(
+                    new Feature("humidity", 0.0f),
+                    new Feature("humidity", 100.0f),
+                    new Feature("humidity", 10.0f)));
+
+        Random random = new Random(5);
+        for (int i = 0; i < RECORDS; ++i) {
+            values[i] = new double[] {
+                random.nextDouble() * 100.0,
+                (i % 9 == 0) ? Double.NaN : random.nextDouble() * 100.0,
+            };
+            locations[i] = "9x" + (char) ('a' + random.nextInt(20));
+        }
+
+        sketch = new Sketch(hierarchy);
+        sketch.prepareRecords(FEATURES, quantizers);
+        concurrent = new ConcurrentSketch(hierarchy, 4, null);
+        concurrent.prepareRecords(FEATURES, quantizers);
+        executor = Executors.newFixedThreadPool(THREADS + 1);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Every third record is added as a Path, and the rest with addRecord.
+     */
+    private Path path(int i) {
+        Path path = new Path();
+        for (int d = 0; d < FEATURES.size(); ++d) {
+            if (Double.isNaN(values[i][d]) == false) {
+                String name = FEATURES.get(d);
+                path.add(quantizers.get(name).quantize(
+                            new Feature(name, (float) values[i][d])));
+            }
+        }
+        path.add(new Feature("location", locations[i]));
+        return path;
+    }
+
+    private void ingest() throws Exception {
+        for (int i = 0; i < RECORDS; ++i) {
+            if (i % 3 == 0) {
+                sketch.addPath(path(i));
+            } else {
+                sketch.addRecord(values[i], locations[i]);
+            }
+        }
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean done = new AtomicBoolean(false);
+        List<Future<?>> writers = new ArrayList<>();
+        for (int t = 0; t < THREADS; ++t) {
+            final int thread = t;
+            writers.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    for (int i = thread; i < RECORDS; i += THREADS) {
+                        if (i % 3 == 0) {
+                            concurrent.addPath(path(i));
+                        } else {
+                            concurrent.addRecord(values[i], locations[i]);
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        /* Queries running alongside the writers never see records go
+         * missing */
+        Future<?> reader = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                start.await();
+                long previous = 0;
+                while (done.get() == false) {
+                    MetaQuery query = new MetaQuery();
+                    concurrent.query(query);
+                    long count = query.result().statistics.count();
+                    assertTrue(count >= previous);
+                    assertTrue(count <= RECORDS);
+                    previous = count;
+                }
+                return null;
+            }
+        });
+
+        start.countDown();
+        for (Future<?> writer : writers) {
+            writer.get();
+        }
+        done.set(true);
+        reader.get();
+    }
+
+    private static Map<String, RunningStatisticsND> leaves(byte[] graph)
+    throws Exception {
+        Sketch result = new Sketch();
+        result.merge(new SerializationInputStream(
+                    new ByteArrayInputStream(graph)));
+        Map<String, RunningStatisticsND> leaves = new TreeMap<>();
+        leaves(result.getRoot(), "", leaves);
+        return leaves;
+    }
+
+    private static void leaves(Vertex vertex, String prefix,
+            Map<String, RunningStatisticsND> leaves) {
+        for (Vertex v : vertex.getAllNeighbors()) {
+            String labels = prefix + "/" + v.getLabel();
+            if (v.hasData()) {
+                leaves.put(labels, v.getData().statistics);
+            }
+            leaves(v, labels, leaves);
+        }
+    }
+
+    private static void assertSameStatistics(String message,
+            RunningStatisticsND expected, RunningStatisticsND actual) {
+        assertEquals(message + ", count", expected.count(), actual.count());
+        for (int i = 0; i < expected.dimensions(); ++i) {
+            assertEquals(message + ", mean " + i,
+                    expected.mean(i), actual.mean(i), EPSILON);
+            assertEquals(message + ", var " + i,
+                    expected.var(i), actual.var(i), EPSILON);
+        }
+    }
+
+    private void compare(Expression... expressions) throws Exception {
+        RelationalQuery query = new RelationalQuery();
+        RelationalQuery concurrentQuery = new RelationalQuery();
+        MetaQuery meta = new MetaQuery();
+        MetaQuery concurrentMeta = new MetaQuery();
+        for (Expression expression : expressions) {
+            query.addExpression(expression);
+            concurrentQuery.addExpression(expression);
+            meta.addExpression(expression);
+            concurrentMeta.addExpression(expression);
+        }
+
+        ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+        SerializationOutputStream out = new SerializationOutputStream(byteOut);
+        sketch.query(query);
+        query.serializeResults(sketch.getRoot(), out);
+        out.close();
+        byte[] expected = byteOut.toByteArray();
+
+        byteOut = new ByteArrayOutputStream();
+        out = new SerializationOutputStream(byteOut);
+        concurrent.query(concurrentQuery, out);
+        out.close();
+        byte[] actual = byteOut.toByteArray();
+
+        /* The stripes' results are spliced under a single root, whose
+         * neighbor count must cover all of them */
+        assertEquals(rootNeighbors(expected), rootNeighbors(actual));
+
+        Map<String, RunningStatisticsND> expectedLeaves = leaves(expected);
+        Map<String, RunningStatisticsND> actualLeaves = leaves(actual);
+        assertEquals(expectedLeaves.keySet(), actualLeaves.keySet());
+        for (String labels : expectedLeaves.keySet()) {
+            assertSameStatistics(labels,
+                    expectedLeaves.get(labels), actualLeaves.get(labels));
+        }
+
+        sketch.query(meta);
+        concurrent.query(concurrentMeta);
+        assertSameStatistics("aggregate", meta.result().statistics,
+                concurrentMeta.result().statistics);
+    }
+
+    private static int rootNeighbors(byte[] graph) throws Exception {
+        SerializationInputStream in = new SerializationInputStream(
+                new ByteArrayInputStream(graph));
+        new Feature(in);
+        assertFalse(in.readBoolean());
+        return in.readInt();
+    }
+
+    @Test
+    public void testConcurrentIngest() throws Exception {
+        ingest();
+
+        assertEquals(sketch.getMetrics().getVertexCount(),
+                concurrent.getMetrics().getVertexCount());
+        assertEquals(sketch.getMetrics().getLeafCount(),
+                concurrent.getMetrics().getLeafCount());
+
+        MetaQuery all = new MetaQuery();
+        concurrent.query(all);
+        assertEquals(RECORDS, all.result().statistics.count());
+
+        compare();
+        compare(new Expression(Operator.LESS,
+                    new Feature("temperature", 30.0f)));
+        compare(new Expression(Operator.GREATEREQUAL,
+                    new Feature("humidity", 50.0f)),
+                new Expression(Operator.NOTEQUAL,
+                    new Feature("temperature", 50.0f)));
+    }
+}
@@ -0,0 +1,196 @@
+/*
+Copyright (c) 2016, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.test.graph;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import galileo.dataset.analysis.Quantizer;
+import galileo.dataset.feature.Feature;
+import galileo.dataset.feature.FeatureType;
+import galileo.graph.FeatureHierarchy;
+import galileo.graph2.DataContainer;
+import galileo.graph2.Sketch;
+import galileo.query2.Expression;
+import galileo.query2.FramedResultWriter;
+import galileo.query2.Operator;
+import galileo.query2.RelationalQuery;
+import galileo.serialization.SerializationInputStream;
+import galileo.serialization.SerializationOutputStream;
+import galileo.stat.RunningStatisticsND;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that query results written with a {@link FramedResultWriter} merge
+ * into the same graph as the unframed results.
+ */
+public class FramedResults {
+
+    private FeatureHierarchy hierarchy;
+    private Sketch sketch;
+
+    @Before
+    public void setUp() throws Exception {
+        hierarchy = new FeatureHierarchy();
+        hierarchy.addFeature("temperature", FeatureType.FLOAT);
+        hierarchy.addFeature("humidity", FeatureType.FLOAT);
+        hierarchy.addFeature("location", FeatureType.STRING);
+        Map<String, Quantizer> quantizers = new HashMap<>();
+        quantizers.put("temperature", new Quantizer(0.0f, 100.0f, 10.0f));
+        quantizers.put("humidity", new Quantizer(0.0f, 100.0f, 20.0f));
+
+        sketch = new Sketch(hierarchy);
+        sketch.prepareRecords(
+                Arrays.asList("temperature", "humidity"), quantizers);
+        Random random = new Random(11);
+        double[] values = new double[2];
+        for (int i = 0; i < 5000; ++i) {
+            values[0] = random.nextDouble() * 100.0;
+            /* Some missing values, so there are wildcard vertices */
+            values[1] = (i % 7 == 0)
+                ? Double.NaN : random.nextDouble() * 100.0;
+            String location = "9x" + (char) ('a' + random.nextInt(16));
+            sketch.addRecord(values, location);
+        }
+    }
+
+    private static byte[] graph(Sketch sketch) throws Exception {
+        ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+        SerializationOutputStream out = new SerializationOutputStream(byteOut);
+        sketch.getRoot().serialize(out);
+        out.close();
+        return byteOut.toByteArray();
+    }
+
+    private Sketch unframed(RelationalQuery query) throws Exception {
+        ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+        SerializationOutputStream out = new SerializationOutputStream(byteOut);
+        sketch.query(query);
+        query.serializeResults(sketch.getRoot(), out);
+        out.close();
+
+        Sketch result = new Sketch(hierarchy);
+        result.merge(new SerializationInputStream(
+                    new ByteArrayInputStream(byteOut.toByteArray())));
+        return result;
+    }
+
+    private List<byte[]> frames(RelationalQuery query, int frameSize)
+    throws Exception {
+        final List<byte[]> frames = new ArrayList<>();
+        FramedResultWriter writer = new FramedResultWriter(
+                (frame, length) -> frames.add(
+                    Arrays.copyOf(frame, length)), frameSize);
+        sketch.query(query);
+        query.serializeResults(sketch.getRoot(), writer);
+        writer.finish();
+        assertEquals(frames.size(), writer.numFrames());
+        return frames;
+    }
+
+    private Sketch merge(List<byte[]> frames) throws Exception {
+        Sketch result = new Sketch(hierarchy);
+        for (byte[] frame : frames) {
+            result.merge(FramedResultWriter.openFrame(frame, frame.length));
+        }
+        return result;
+    }
+
+    private void compare(int frameSize, Expression... expressions)
+    throws Exception {
+        RelationalQuery query = new RelationalQuery();
+        RelationalQuery framedQuery = new RelationalQuery();
+        for (Expression expression : expressions) {
+            query.addExpression(expression);
+            framedQuery.addExpression(expression);
+        }
+
+        Sketch expected = unframed(query);
+        List<byte[]> frames = frames(framedQuery, frameSize);
+        Sketch actual = merge(frames);
+        assertArrayEquals(graph(expected), graph(actual));
+        assertEquals(expected.getMetrics().getVertexCount(),
+                actual.getMetrics().getVertexCount());
+        assertEquals(expected.getMetrics().getLeafCount(),
+                actual.getMetrics().getLeafCount());
+    }
+
+    @Test
+    public void testTinyFrames() throws Exception {
+        /* Smaller than a single vertex: every frame holds one leaf */
+        compare(1);
+        compare(64);
+        compare(1000);
+        compare(64, new Expression(Operator.GREATER,
+                    new Feature("temperature", 40.0f)),
+                new Expression(Operator.NOTEQUAL,
+                    new Feature("humidity", 20.0f)));
+    }
+
+    @Test
+    public void testSingleFrame() throws Exception {
+        RelationalQuery query = new RelationalQuery();
+        assertEquals(1, frames(query, Integer.MAX_VALUE).size());
+        compare(Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void testFramesStandAlone() throws Exception {
+        /* Each frame has its own string dictionary and repeats the ancestors
+         * of its first vertex, so it can be read without the others */
+        List<byte[]> frames = frames(new RelationalQuery(), 256);
+        assertTrue(frames.size() > 10);
+        long leaves = 0;
+        for (byte[] frame : frames) {
+            Sketch single = new Sketch(hierarchy);
+            single.merge(FramedResultWriter.openFrame(frame, frame.length));
+            assertTrue(single.getMetrics().getLeafCount() > 0);
+            leaves += single.getMetrics().getLeafCount();
+        }
+        assertEquals(sketch.getMetrics().getLeafCount(), leaves);
+    }
+
+    @Test
+    public void testRepeatedAncestorsKeepData() throws Exception {
+        /* Ancestors repeated at the start of a frame are written without
+         * their data; merging them must not clear the data written in the
+         * previous frame. */
+        sketch.getRoot().getFirstNeighbor().setData(
+                new DataContainer(new RunningStatisticsND(1.0, 2.0, 3.0)));
+        compare(64);
+        compare(1000);
+    }
+}
@@ -31,7 +31,11 @@ import org.junit.runners.Suite.SuiteClasses;
 
 @RunWith(Suite.class)
 @SuiteClasses({
+    CompactSketchQueries.class,
+    ConcurrentIngest.class,
     FeaturePathQuery.class,
+    FramedResults.class,
+    TieredSketchSpilling.class,
     VariableTickHashing.class,
 })
 public class TestSuite { }
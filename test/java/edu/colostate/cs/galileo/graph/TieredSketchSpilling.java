@@ -0,0 +1,240 @@
+/*
+Copyright (c) 2016, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.test.graph;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import galileo.dataset.analysis.Quantizer;
+import galileo.dataset.feature.Feature;
+import galileo.dataset.feature.FeatureType;
+import galileo.graph.FeatureHierarchy;
+import galileo.graph2.Sketch;
+import galileo.graph2.TieredSketch;
+import galileo.graph2.Vertex;
+import galileo.query2.Expression;
+import galileo.query2.MetaQuery;
+import galileo.query2.Operator;
+import galileo.query2.Query;
+import galileo.query2.QueryException;
+import galileo.query2.RelationalQuery;
+import galileo.serialization.SerializationOutputStream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that a {@link TieredSketch} that keeps a single subtree in memory
+ * answers queries the same way as a {@link Sketch}, no matter how many times
+ * its subtrees are spilled and loaded back in.
+ */
+public class TieredSketchSpilling {
+
+    private static final List<String> FEATURES
+        = Arrays.asList("temperature", "humidity");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private Sketch sketch;
+    private TieredSketch tiered;
+
+    /**
+     * Walks the whole graph, recording the ID of every vertex and the number
+     * of resident subtrees once everything has been visited.
+     */
+    private class WalkQuery extends Query {
+        Map<String, Integer> ids = new HashMap<>();
+        int resident;
+
+        @Override
+        public void execute(Vertex root)
+        throws QueryException {
+            walk(root, "");
+            resident = tiered.numResident();
+        }
+
+        private void walk(Vertex vertex, String prefix) {
+            for (Vertex v : vertex.getAllNeighbors()) {
+                String labels = prefix + "/" + v.getLabel();
+                ids.put(labels, v.getId());
+                walk(v, labels);
+            }
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        FeatureHierarchy hierarchy = new FeatureHierarchy();
+        hierarchy.addFeature("temperature", FeatureType.FLOAT);
+        hierarchy.addFeature("humidity", FeatureType.FLOAT);
+        hierarchy.addFeature("location", FeatureType.STRING);
+        Map<String, Quantizer> quantizers = new HashMap<>();
+        quantizers.put("temperature", new Quantizer(0.0f, 100.0f, 10.0f));
+        quantizers.put("humidity", new Quantizer(0.0f, 100.0f, 25.0f));
+
+        directory = folder.newFolder("spill");
+        sketch = new Sketch(hierarchy);
+        sketch.prepareRecords(FEATURES, quantizers);
+        tiered = new TieredSketch(hierarchy, directory, 1);
+        tiered.prepareRecords(FEATURES, quantizers);
+
+        Random random = new Random(3);
+        double[] values = new double[2];
+        for (int i = 0; i < 1000; ++i) {
+            values[0] = random.nextDouble() * 100.0;
+            values[1] = random.nextDouble() * 100.0;
+            String location = "9x" + random.nextInt(8);
+            sketch.addRecord(values, location);
+            tiered.addRecord(values, location);
+        }
+    }
+
+    private byte[] results(RelationalQuery query) throws Exception {
+        ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+        SerializationOutputStream out = new SerializationOutputStream(byteOut);
+        sketch.query(query);
+        query.serializeResults(sketch.getRoot(), out);
+        out.close();
+        return byteOut.toByteArray();
+    }
+
+    private byte[] tieredResults(RelationalQuery query) throws Exception {
+        ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+        SerializationOutputStream out = new SerializationOutputStream(byteOut);
+        tiered.query(query, out);
+        out.close();
+        return byteOut.toByteArray();
+    }
+
+    private void compare(Expression... expressions) throws Exception {
+        RelationalQuery relational = new RelationalQuery();
+        RelationalQuery tieredRelational = new RelationalQuery();
+        MetaQuery meta = new MetaQuery();
+        MetaQuery tieredMeta = new MetaQuery();
+        for (Expression expression : expressions) {
+            relational.addExpression(expression);
+            tieredRelational.addExpression(expression);
+            meta.addExpression(expression);
+            tieredMeta.addExpression(expression);
+        }
+
+        assertArrayEquals(results(relational),
+                tieredResults(tieredRelational));
+        assertEquals(1, tiered.numResident());
+
+        /* Leaves may be merged in a different order, so the aggregate can
+         * differ in the last few bits */
+        sketch.query(meta);
+        tiered.query(tieredMeta);
+        assertEquals(meta.result().statistics.count(),
+                tieredMeta.result().statistics.count());
+        assertEquals(meta.result().statistics.mean(0),
+                tieredMeta.result().statistics.mean(0), 1e-9);
+        assertEquals(1, tiered.numResident());
+    }
+
+    @Test
+    public void testSpilled() throws Exception {
+        assertEquals(1, tiered.numResident());
+        assertEquals(9, tiered.numSpilled());
+        assertEquals(9, directory.list().length);
+        assertEquals(sketch.getMetrics().getVertexCount(),
+                tiered.getMetrics().getVertexCount());
+        assertEquals(sketch.getMetrics().getLeafCount(),
+                tiered.getMetrics().getLeafCount());
+    }
+
+    @Test
+    public void testQueriesAfterReload() throws Exception {
+        /* Each pass loads the subtrees the previous one spilled */
+        for (int i = 0; i < 3; ++i) {
+            compare();
+            compare(new Expression(Operator.LESS,
+                        new Feature("temperature", 35.0f)));
+            compare(new Expression(Operator.GREATEREQUAL,
+                        new Feature("humidity", 50.0f)));
+            compare(new Expression(Operator.RANGE_INC,
+                        new Feature("temperature", 20.0f),
+                        new Feature("temperature", 60.0f)),
+                    new Expression(Operator.NOTEQUAL,
+                        new Feature("humidity", 25.0f)),
+                    new Expression(Operator.EQUAL,
+                        new Feature("location", "9x3")));
+        }
+    }
+
+    @Test
+    public void testIdsPreserved() throws Exception {
+        /* RelationalQuery tracks pruned vertices by ID, so a subtree must
+         * come back from disk with the IDs it was spilled with */
+        WalkQuery first = new WalkQuery();
+        tiered.query(first);
+        WalkQuery second = new WalkQuery();
+        tiered.query(second);
+        assertEquals(first.ids, second.ids);
+
+        WalkQuery expected = new WalkQuery();
+        sketch.query(expected);
+        assertEquals(expected.ids.keySet(), first.ids.keySet());
+    }
+
+    @Test
+    public void testEvictionDeferredDuringQuery() throws Exception {
+        WalkQuery query = new WalkQuery();
+        tiered.query(query);
+        /* Every subtree was loaded during the query, and none were written
+         * out until it completed */
+        assertEquals(10, query.resident);
+        assertEquals(1, tiered.numResident());
+        assertEquals(9, tiered.numSpilled());
+        assertEquals(9, directory.list().length);
+    }
+
+    @Test
+    public void testStaleSpillFilesRemoved() throws Exception {
+        File stale = new File(directory, "subtree-100");
+        assertTrue(stale.createNewFile());
+        File other = new File(directory, "notes.txt");
+        assertTrue(other.createNewFile());
+
+        TieredSketch reopened = new TieredSketch(
+                tiered.getFeatureHierarchy(), directory, 1);
+        assertFalse(stale.exists());
+        assertTrue(other.exists());
+        assertEquals(0, reopened.numSpilled());
+    }
+}
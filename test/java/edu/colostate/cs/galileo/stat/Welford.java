@@ -28,7 +28,21 @@ package galileo.test.stat;
 import static org.junit.Assert.*;
 import org.junit.Test;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import galileo.dataset.analysis.Quantizer;
+import galileo.dataset.feature.Feature;
+import galileo.dataset.feature.FeatureType;
+import galileo.graph.FeatureHierarchy;
+import galileo.graph2.Path;
+import galileo.graph2.Sketch;
+import galileo.graph2.Vertex;
 import galileo.stat.RunningStatistics;
+import galileo.stat.RunningStatisticsND;
 
 /**
  * Tests the RunningStatistics implementation based on the algorithm outlined by
@@ -142,6 +156,166 @@ public class Welford {
                 0.0, rs.popStd(), EPSILON);
     }
 
+    private static double[][] samples(int count, int dimensions) {
+        Random random = new Random(42);
+        double[][] samples = new double[count][dimensions];
+        for (double[] sample : samples) {
+            /* Correlated dimensions with a large offset, so errors in the
+             * co-moment updates are not hidden by small magnitudes */
+            double base = random.nextGaussian();
+            for (int d = 0; d < dimensions; ++d) {
+                sample[d] = 1000.0 * (d + 1)
+                    + base * (d + 1) + random.nextGaussian();
+            }
+        }
+        return samples;
+    }
+
+    private static void assertSameStatistics(String message,
+            RunningStatisticsND expected, RunningStatisticsND actual) {
+        assertEquals(message + ", count", expected.count(), actual.count());
+        for (int i = 0; i < expected.dimensions(); ++i) {
+            assertEquals(message + ", mean " + i,
+                    expected.mean(i), actual.mean(i), EPSILON);
+            assertEquals(message + ", min " + i,
+                    expected.min(i), actual.min(i), 0.0);
+            assertEquals(message + ", max " + i,
+                    expected.max(i), actual.max(i), 0.0);
+            for (int j = 0; j < expected.dimensions(); ++j) {
+                assertEquals(message + ", cov " + i + ", " + j,
+                        expected.cov(i, j), actual.cov(i, j), EPSILON);
+            }
+        }
+    }
+
+    @Test
+    public void putMatchesMerge() {
+        double[][] samples = samples(1000, 4);
+        RunningStatisticsND put = new RunningStatisticsND(4);
+        RunningStatisticsND merged = new RunningStatisticsND(4);
+        for (double[] sample : samples) {
+            put.put(sample);
+            merged.merge(new RunningStatisticsND(sample));
+        }
+        assertSameStatistics("put vs. merge", merged, put);
+
+        /* Merging two halves built with put gives the same result */
+        RunningStatisticsND first = new RunningStatisticsND(4);
+        RunningStatisticsND second = new RunningStatisticsND(4);
+        for (int i = 0; i < samples.length; ++i) {
+            if (i < samples.length / 3) {
+                first.put(samples[i]);
+            } else {
+                second.put(samples[i]);
+            }
+        }
+        first.merge(second);
+        assertSameStatistics("put vs. merged halves", put, first);
+    }
+
+    @Test
+    public void putMatchesTwoPass() {
+        double[][] samples = samples(1000, 3);
+        RunningStatisticsND rs = new RunningStatisticsND(3);
+        for (double[] sample : samples) {
+            rs.put(sample);
+        }
+
+        double[] means = new double[3];
+        for (double[] sample : samples) {
+            for (int d = 0; d < 3; ++d) {
+                means[d] += sample[d] / samples.length;
+            }
+        }
+
+        for (int i = 0; i < 3; ++i) {
+            assertEquals("mean " + i, means[i], rs.mean(i), EPSILON);
+            for (int j = 0; j < 3; ++j) {
+                double ss = 0.0;
+                for (double[] sample : samples) {
+                    ss += (sample[i] - means[i]) * (sample[j] - means[j]);
+                }
+                assertEquals("cov " + i + ", " + j,
+                        ss / (samples.length - 1), rs.cov(i, j), EPSILON);
+            }
+        }
+
+        /* Two samples: the co-moment is exactly (x1 - x2)(y1 - y2) / 2 */
+        RunningStatisticsND two = new RunningStatisticsND(1.0, 10.0);
+        two.put(3.0, 4.0);
+        assertEquals("cov of two samples", -6.0, two.cov(0, 1), EPSILON);
+        assertEquals("cov of two samples", -6.0, two.cov(1, 0), EPSILON);
+    }
+
+    /**
+     * Flattens a Sketch into a map from each leaf's labels to its statistics.
+     */
+    private static void leaves(Vertex vertex, String prefix,
+            Map<String, RunningStatisticsND> leaves) {
+        for (Vertex v : vertex.getAllNeighbors()) {
+            String labels = prefix + "/" + v.getLabel();
+            if (v.hasData()) {
+                leaves.put(labels, v.getData().statistics);
+            }
+            leaves(v, labels, leaves);
+        }
+    }
+
+    @Test
+    public void addRecordMatchesAddPath() throws Exception {
+        String[] names = { "temperature", "humidity", "wind" };
+        FeatureHierarchy hierarchy = new FeatureHierarchy();
+        Map<String, Quantizer> quantizers = new HashMap<>();
+        for (String name : names) {
+            hierarchy.addFeature(name, FeatureType.FLOAT);
+            quantizers.put(name, new Quantizer(
+                        new Feature(name, 0.0f),
+                        new Feature(name, 100.0f),
+                        new Feature(name, 25.0f)));
+        }
+        hierarchy.addFeature("location", FeatureType.STRING);
+
+        Sketch records = new Sketch(hierarchy);
+        records.prepareRecords(Arrays.asList(names), quantizers);
+        Sketch paths = new Sketch(hierarchy);
+
+        Random random = new Random(7);
+        for (int i = 0; i < 2000; ++i) {
+            double[] values = new double[names.length];
+            Path path = new Path();
+            for (int d = 0; d < names.length; ++d) {
+                if (random.nextInt(10) == 0) {
+                    /* Missing values become wildcards */
+                    values[d] = Double.NaN;
+                    continue;
+                }
+                values[d] = random.nextDouble() * 120.0 - 10.0;
+                path.add(quantizers.get(names[d]).quantize(
+                            new Feature(names[d], (float) values[d])));
+            }
+            String location = "9x" + random.nextInt(4);
+            path.add(new Feature("location", location));
+
+            records.addRecord(values, location);
+            paths.addPath(path);
+        }
+
+        assertEquals("vertices", paths.getMetrics().getVertexCount(),
+                records.getMetrics().getVertexCount());
+        assertEquals("leaves", paths.getMetrics().getLeafCount(),
+                records.getMetrics().getLeafCount());
+
+        Map<String, RunningStatisticsND> expected = new TreeMap<>();
+        Map<String, RunningStatisticsND> actual = new TreeMap<>();
+        leaves(paths.getRoot(), "", expected);
+        leaves(records.getRoot(), "", actual);
+        assertEquals("leaf labels", expected.keySet(), actual.keySet());
+        for (String labels : expected.keySet()) {
+            assertSameStatistics(labels,
+                    expected.get(labels), actual.get(labels));
+        }
+    }
+
     private String stringify(double[] ds) {
         String s = "";
         for (double d : ds) {